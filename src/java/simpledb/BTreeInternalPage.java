@@ -353,11 +353,14 @@ public class BTreeInternalPage extends BTreePage {
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null entry.");
 		if(deleteRightChild) {
+			changes.touch(this, rid.tupleno());
 			markSlotUsed(rid.tupleno(), false); 
 		}
 		else {
 			for(int i = rid.tupleno() - 1; i >= 0; i--) {
 				if(isSlotUsed(i)) {
+					changes.touch(this, i);
+					changes.touch(this, rid.tupleno());
 					children[i] = children[rid.tupleno()];
 					markSlotUsed(rid.tupleno(), false); 
 					break;
@@ -425,10 +428,12 @@ public class BTreeInternalPage extends BTreePage {
 					throw new DbException("attempt to update entry with invalid key " + e.getKey() +
 							" HINT: updated key must be greater than or equal to keys on the left");
 				}
+				changes.touch(this, i);
 				children[i] = e.getLeftChild().pageNumber();
 				break;
 			}	
 		}
+		changes.touch(this, rid.tupleno());
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
 		keys[rid.tupleno()] = e.getKey();
 	}
@@ -451,6 +456,7 @@ public class BTreeInternalPage extends BTreePage {
 			if(e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
 				throw new DbException("child page category mismatch in insertEntry");
 
+			changes.touch(this, META_SLOT);
 			childCategory = e.getLeftChild().pgcateg();
 		}
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
@@ -458,6 +464,8 @@ public class BTreeInternalPage extends BTreePage {
 
 		// if this is the first entry, add it and return
 		if(getNumEmptySlots() == getMaxEntries()) {
+			changes.touch(this, 0);
+			changes.touch(this, 1);
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
 			keys[1] = e.getKey();
@@ -494,6 +502,7 @@ public class BTreeInternalPage extends BTreePage {
 					}
 					lessOrEqKey = i;
 					if(children[i] == e.getRightChild().pageNumber()) {
+						changes.touch(this, i);
 						children[i] = e.getLeftChild().pageNumber();
 					}
 				}
@@ -538,6 +547,7 @@ public class BTreeInternalPage extends BTreePage {
 		}
 
 		// insert new entry into the correct spot in sorted order
+		changes.touch(this, goodSlot);
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
 		keys[goodSlot] = e.getKey();
@@ -551,6 +561,8 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	private void moveEntry(int from, int to) {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
+			changes.touch(this, to);
+			changes.touch(this, from);
 			markSlotUsed(to, true);
 			keys[to] = keys[from];
 			children[to] = children[from];
@@ -558,6 +570,58 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * The contents of a slot are whether it is used and its key (except in
+	 * slot 0) and child pointer; {@link #META_SLOT} holds the parent pointer
+	 * and the category of the children.
+	 */
+	public byte[] getSlotData(int slot) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			if (slot == META_SLOT) {
+				dos.writeInt(parent);
+				dos.writeByte((byte) childCategory);
+			}
+			else {
+				dos.writeBoolean(isSlotUsed(slot));
+				if (isSlotUsed(slot)) {
+					if (slot > 0)
+						keys[slot].serialize(dos);
+					dos.writeInt(children[slot]);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	public void setSlotData(int slot, byte[] data) {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+		try {
+			if (slot == META_SLOT) {
+				parent = dis.readInt();
+				childCategory = dis.readByte();
+			}
+			else if (dis.readBoolean()) {
+				markSlotUsed(slot, true);
+				if (slot > 0)
+					keys[slot] = td.getFieldType(keyField).parse(dis);
+				children[slot] = dis.readInt();
+			}
+			else {
+				markSlotUsed(slot, false);
+				keys[slot] = null;
+				children[slot] = -1;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (java.text.ParseException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
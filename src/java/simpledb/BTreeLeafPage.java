@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
@@ -294,6 +295,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("tried to delete tuple on invalid page or table");
 		if (!isSlotUsed(rid.tupleno()))
 			throw new DbException("tried to delete null tuple.");
+		changes.touch(this, rid.tupleno());
 		markSlotUsed(rid.tupleno(), false);
 		t.setRecordId(null);
 	}
@@ -351,6 +353,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// insert new record into the correct spot in sorted order
+		changes.touch(this, goodSlot);
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
@@ -364,6 +367,8 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	private void moveRecord(int from, int to) {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
+			changes.touch(this, to);
+			changes.touch(this, from);
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
 			tuples[to] = tuples[from];
@@ -372,6 +377,37 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * The contents of a slot are whether it is used and the fields of its
+	 * tuple; {@link #META_SLOT} holds the parent and sibling pointers.
+	 */
+	public byte[] getSlotData(int slot) {
+		if (slot != META_SLOT)
+			return PageDelta.tupleSlotData(isSlotUsed(slot), tuples[slot]);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(3 * INDEX_SIZE);
+		DataOutputStream dos = new DataOutputStream(baos);
+		try {
+			dos.writeInt(parent);
+			dos.writeInt(leftSibling);
+			dos.writeInt(rightSibling);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return baos.toByteArray();
+	}
+
+	public void setSlotData(int slot, byte[] data) {
+		if (slot != META_SLOT) {
+			tuples[slot] = PageDelta.parseTupleSlot(data, td, new RecordId(pid, slot));
+			markSlotUsed(slot, tuples[slot] != null);
+			return;
+		}
+		ByteBuffer b = ByteBuffer.wrap(data);
+		parent = b.getInt();
+		leftSibling = b.getInt();
+		rightSibling = b.getInt();
+	}
+
 	/**
 	 * Get the id of the left sibling of this page
 	 * @return the id of the left sibling
@@ -401,6 +437,7 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public void setLeftSiblingId(BTreePageId id) throws DbException {
 		if(id == null) {
+			changes.touch(this, META_SLOT);
 			leftSibling = 0;
 		}
 		else {
@@ -410,6 +447,7 @@ public class BTreeLeafPage extends BTreePage {
 			if(id.pgcateg() != BTreePageId.LEAF) {
 				throw new DbException("leftSibling must be a leaf node");
 			}
+			changes.touch(this, META_SLOT);
 			leftSibling = id.pageNumber();
 		}
 	}
@@ -421,6 +459,7 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public void setRightSiblingId(BTreePageId id) throws DbException {
 		if(id == null) {
+			changes.touch(this, META_SLOT);
 			rightSibling = 0;
 		}
 		else {
@@ -430,6 +469,7 @@ public class BTreeLeafPage extends BTreePage {
 			if(id.pgcateg() != BTreePageId.LEAF) {
 				throw new DbException("rightSibling must be a leaf node");
 			}
+			changes.touch(this, META_SLOT);
 			rightSibling = id.pageNumber();
 		}
 	}
@@ -13,7 +13,7 @@ import simpledb.Predicate.Op;
  * @see BufferPool
  *
  */
-public abstract class BTreePage implements Page {
+public abstract class BTreePage implements DeltaPage {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
 
@@ -26,6 +26,7 @@ public abstract class BTreePage implements Page {
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final PageDelta.Recorder changes = new PageDelta.Recorder();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -104,6 +105,7 @@ public abstract class BTreePage implements Page {
 		if(id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
 			throw new DbException("parent must be an internal node or root pointer");
 		}
+		changes.touch(this, META_SLOT);
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = 0;
 		}
@@ -112,6 +114,14 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * Returns the changes made to the slots and pointers of this page since
+	 * the last call
+	 */
+	public PageDelta takeDelta() {
+		return changes.take(this);
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
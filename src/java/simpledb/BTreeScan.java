@@ -17,6 +17,8 @@ public class BTreeScan implements DbIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private int tableid;
+	private int keyField = -1;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -75,6 +77,7 @@ public class BTreeScan implements DbIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
@@ -82,6 +85,8 @@ public class BTreeScan implements DbIterator {
 		else {
 			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
 		}
+		DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+		this.keyField = f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1;
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
 		Type[] newTypes = new Type[myTd.numFields()];
@@ -95,6 +100,37 @@ public class BTreeScan implements DbIterator {
 		myTd = new TupleDesc(newTypes, newNames);
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 * */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the transaction this operator reads on behalf of
+	 * */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * @return the index predicate this scan filters on, or null if the scan
+	 *         returns every tuple
+	 */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
+	/**
+	 * @return the index of the field on which the tuples returned by this scan
+	 *         are sorted (the key field of the underlying B+ tree), or -1 if
+	 *         the scanned file is not a BTreeFile
+	 */
+	public int getKeyField() {
+		return this.keyField;
+	}
+
 	public BTreeScan(TransactionId tid, int tableid, IndexPredicate ipred) {
 		this(tid, tableid, Database.getCatalog().getTableName(tableid), ipred);
 	}
@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * BlockNestedLoopJoin is a nested-loops join that buffers a block of tuples
+ * from the outer relation in memory and scans the inner relation once per
+ * block, rather than once per outer tuple as {@link Join} does.
+ * <p>
+ * The size of a block is given in pages of the outer relation; the number of
+ * tuples that fit in a block is derived from the outer schema using the same
+ * slot layout as {@link HeapPage}. Any {@link JoinPredicate} is supported, so
+ * this operator is used for predicates that cannot be hashed, such as
+ * <code>LESS_THAN</code> or <code>LIKE</code>.
+ */
+public class BlockNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Default number of outer pages buffered per block.
+     */
+    public static final int DEFAULT_BLOCK_PAGES = 16;
+
+    private final int blockPages;
+
+    private transient int blockCapacity;
+    private transient ArrayList<Tuple> block;
+    private transient int blockPos;
+    private transient Tuple inner;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on, using a block of {@link #DEFAULT_BLOCK_PAGES} outer pages.
+     *
+     * @param p      The predicate to use to join the children
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Iterator for the right(inner) relation to join
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, DEFAULT_BLOCK_PAGES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p          The predicate to use to join the children
+     * @param child1     Iterator for the left(outer) relation to join
+     * @param child2     Iterator for the right(inner) relation to join
+     * @param blockPages The number of pages' worth of outer tuples to buffer
+     *                   for each scan of the inner relation; must be positive
+     */
+    public BlockNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int blockPages) {
+        super(p, child1, child2);
+        if (blockPages < 1)
+            throw new IllegalArgumentException("blockPages must be positive");
+        this.blockPages = blockPages;
+    }
+
+    /**
+     * @return the number of outer pages buffered per block
+     */
+    public int getBlockPages() {
+        return blockPages;
+    }
+
+    /**
+     * Returns the number of tuples of the given schema that fit in the given
+     * number of pages.
+     *
+     * @param td         the schema of the buffered tuples
+     * @param blockPages the number of pages in a block
+     * @return the number of tuples in one block, at least 1
+     */
+    public static int tuplesPerBlock(TupleDesc td, int blockPages) {
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return Math.max(1, perPage) * blockPages;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        super.open();
+        blockCapacity = tuplesPerBlock(child1.getTupleDesc(), blockPages);
+        block = new ArrayList<Tuple>(blockCapacity);
+        inner = null;
+        // Join.open has already pulled the first outer tuple into tuple1
+        if (tuple1 != null) {
+            block.add(tuple1);
+            tuple1 = null;
+        }
+        fillBlock();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        super.close();
+        block = null;
+        inner = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. For each inner tuple, every buffered outer tuple is tested
+     * against the predicate; once the inner relation is exhausted, the next
+     * block of outer tuples is loaded and the inner relation is rewound.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    @Override
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (!block.isEmpty()) {
+            while (inner != null || child2.hasNext()) {
+                if (inner == null) {
+                    inner = child2.next();
+                    blockPos = 0;
+                }
+                while (blockPos < block.size()) {
+                    Tuple outer = block.get(blockPos++);
+                    if (p.filter(outer, inner)) {
+                        return mergeTuples(outer, inner);
+                    }
+                }
+                inner = null;
+            }
+            block.clear();
+            fillBlock();
+            if (block.isEmpty())
+                break;
+            child2.rewind();
+        }
+        return null;
+    }
+
+    /**
+     * Appends tuples from the outer relation to the current block until it is
+     * full or the outer relation is exhausted.
+     */
+    private void fillBlock() throws DbException, TransactionAbortedException {
+        while (block.size() < blockCapacity && child1.hasNext()) {
+            block.add(child1.next());
+        }
+    }
+}
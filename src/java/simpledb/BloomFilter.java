@@ -0,0 +1,84 @@
+package simpledb;
+
+/**
+ * A Bloom filter over {@link Field} values. It answers "definitely not
+ * present" or "possibly present" for a value, using a fixed-size bit array
+ * and several hash functions derived from {@link Field#hashCode()}.
+ * <p>
+ * {@link HashEquiJoin} builds one over the join keys of its build side and
+ * pushes it down into the probe side, so that probe tuples that cannot match
+ * are dropped by the scan (see {@link SeqScan#setBloomFilter}).
+ */
+public class BloomFilter {
+
+    /**
+     * Number of bits allotted per expected value; with {@link #NUM_HASHES}
+     * hash functions this gives a false positive rate of about 1%.
+     */
+    public static final int BITS_PER_VALUE = 10;
+
+    /**
+     * Number of hash functions applied to each value.
+     */
+    public static final int NUM_HASHES = 7;
+
+    private final long[] bits;
+    private final int numBits;
+
+    /**
+     * Create an empty filter sized for the given number of values.
+     *
+     * @param expectedValues the number of distinct values that will be added
+     */
+    public BloomFilter(int expectedValues) {
+        long n = Math.max(64L, (long) Math.max(expectedValues, 1) * BITS_PER_VALUE);
+        numBits = (int) Math.min(n, Integer.MAX_VALUE - 63);
+        bits = new long[(numBits + 63) / 64];
+    }
+
+    /**
+     * Add a value to the filter.
+     */
+    public void add(Field f) {
+        int h = f.hashCode();
+        int h1 = mix(h);
+        int h2 = mix(h1 ^ 0x5bd1e995) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = ((h1 + i * h2) & 0x7fffffff) % numBits;
+            bits[b >>> 6] |= 1L << b;
+        }
+    }
+
+    /**
+     * @return false if the value was definitely never added to the filter,
+     * true if it may have been
+     */
+    public boolean mightContain(Field f) {
+        int h = f.hashCode();
+        int h1 = mix(h);
+        int h2 = mix(h1 ^ 0x5bd1e995) | 1;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int b = ((h1 + i * h2) & 0x7fffffff) % numBits;
+            if ((bits[b >>> 6] & (1L << b)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the size of the bit array
+     */
+    public int numBits() {
+        return numBits;
+    }
+
+    // finalizer of MurmurHash3, so that consecutive integer keys spread out
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
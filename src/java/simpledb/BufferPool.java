@@ -2,7 +2,12 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -13,7 +18,34 @@ import java.util.concurrent.ConcurrentHashMap;
  * <p>
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
- * locks to read/write the page.
+ * locks to read/write the page. Locks are page-level shared/exclusive locks
+ * held until the transaction completes (see {@link LockManager}).
+ * <p>
+ * Dirty pages are written lazily (STEAL/NO-FORCE): a page may be written
+ * before the transaction that changed it commits, when it is evicted, and
+ * need not be written when it commits. Write-ahead logging makes this safe:
+ * the buffer pool remembers the LSN of the last log record that changed each
+ * page, and forces the log up to that record before it writes the page. For
+ * every dirty page it also keeps the LSN of the first record that changed it
+ * since it was last written, which tells recovery where redo must start.
+ * <p>
+ * A page cleaner thread runs while there are dirty pages. Every
+ * {@link #getCleanerInterval()} milliseconds it writes up to
+ * {@link #getCleanerBatch()} of the pages that were changed first, so that
+ * fuzzy checkpoints (see {@link LogFile#logCheckpoint}) can move the start of
+ * the log forward, and eviction mostly finds clean pages.
+ * <p>
+ * With MVCC enabled (see {@link #setMvccEnabled}), read-only transactions can
+ * read a snapshot of the database instead of locking (see
+ * {@link #beginSnapshot}). For every page written since the buffer pool was
+ * created, it keeps a chain of committed versions, newest first, each tagged
+ * with the timestamp of the commit that made it. A writer saves the page's
+ * committed contents as its before-image when it locks the page exclusively,
+ * and its commit installs the new contents as a version with the next
+ * timestamp. A snapshot reader sees the newest version no younger than its
+ * snapshot, so it neither waits for writers nor sees their uncommitted
+ * changes. Versions that no active snapshot can see any more are dropped
+ * when transactions complete.
  *
  * @Threadsafe, all fields are final
  */
@@ -25,6 +57,31 @@ public class BufferPool {
      * constructor instead.
      */
     public static final int DEFAULT_PAGES = 50;
+
+    /**
+     * Default value of {@link #getCleanerInterval()}, in milliseconds.
+     */
+    public static final long DEFAULT_CLEANER_INTERVAL = 100;
+
+    /**
+     * Default value of {@link #getCleanerBatch()}.
+     */
+    public static final int DEFAULT_CLEANER_BATCH = 8;
+
+    /**
+     * Number of times {@link #peekPage} tries to copy a cached page.
+     */
+    static final int PEEK_ATTEMPTS = 3;
+
+    /**
+     * Default value of {@link #isMvccEnabled()}.
+     */
+    public static final boolean DEFAULT_MVCC = false;
+
+    private static volatile long cleanerInterval = DEFAULT_CLEANER_INTERVAL;
+    private static volatile int cleanerBatch = DEFAULT_CLEANER_BATCH;
+    private static volatile boolean mvccEnabled = DEFAULT_MVCC;
+
     /**
      * Bytes per page, including header.
      */
@@ -34,7 +91,38 @@ public class BufferPool {
     private final int PAGE_NUMBER;
     private final ConcurrentHashMap<PageId, Page> cache;
     private final Random randomPicker;
+    // the dirty page table: for every page changed since it was last
+    // written, the LSN of the first log record that changed it
+    private final ConcurrentHashMap<PageId, Long> recLsns;
+    // the LSN of the last log record that changed each dirty page
+    private final ConcurrentHashMap<PageId, Long> pageLsns;
+    private volatile Thread cleaner; // null when no page cleaner runs
+    private final LockManager locks;
+    // the thread of every transaction inserting or deleting a tuple; the
+    // pages it holds exclusive locks on may be half changed, and are not
+    // written by other threads
+    private final ConcurrentHashMap<TransactionId, Thread> changing;
+
+    // a committed version of a page, in a chain from newest to oldest
+    private static class Version {
+        final long timestamp; // of the commit that made it, 0 if older
+        final Page page;
+        Version older;
+
+        Version(long timestamp, Page page, Version older) {
+            this.timestamp = timestamp;
+            this.page = page;
+            this.older = older;
+        }
+    }
 
+    private final boolean mvcc;
+    // the version chain of every page written or read in a snapshot; the
+    // monitor of this map also guards the clock
+    private final HashMap<PageId, Version> versions;
+    private long clock = 0; // the timestamp of the last commit
+    // the snapshot timestamp of each transaction that reads a snapshot
+    private final ConcurrentHashMap<TransactionId, Long> snapshots;
 
     /**
      * Creates a BufferPool that caches up to numPages pages.
@@ -45,6 +133,13 @@ public class BufferPool {
         this.PAGE_NUMBER = numPages;
         this.cache = new ConcurrentHashMap<>();
         this.randomPicker = new Random();
+        this.recLsns = new ConcurrentHashMap<>();
+        this.pageLsns = new ConcurrentHashMap<>();
+        this.locks = new LockManager(LockManager.DEFAULT_STRIPES);
+        this.changing = new ConcurrentHashMap<>();
+        this.mvcc = mvccEnabled;
+        this.versions = new HashMap<>();
+        this.snapshots = new ConcurrentHashMap<>();
     }
 
 
@@ -62,6 +157,74 @@ public class BufferPool {
         BufferPool.pageSize = PAGE_SIZE;
     }
 
+    /**
+     * @return the time, in milliseconds, the page cleaner waits between
+     * rounds
+     */
+    public static long getCleanerInterval() {
+        return cleanerInterval;
+    }
+
+    /**
+     * Sets the time, in milliseconds, the page cleaner waits between rounds.
+     */
+    public static void setCleanerInterval(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("cleaner interval must be positive");
+        cleanerInterval = millis;
+    }
+
+    /**
+     * @return the largest number of pages the page cleaner writes in one
+     * round
+     */
+    public static int getCleanerBatch() {
+        return cleanerBatch;
+    }
+
+    /**
+     * Sets the largest number of pages the page cleaner writes in one round.
+     */
+    public static void setCleanerBatch(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("cleaner batch must be positive");
+        cleanerBatch = pages;
+    }
+
+    /**
+     * @return true if buffer pools created from now on keep page versions
+     * for snapshot reads
+     */
+    public static boolean isMvccEnabled() {
+        return mvccEnabled;
+    }
+
+    /**
+     * Sets whether buffer pools created from now on keep page versions for
+     * snapshot reads. The buffer pool in use is not affected.
+     */
+    public static void setMvccEnabled(boolean enabled) {
+        mvccEnabled = enabled;
+    }
+
+    /**
+     * Makes a read-only transaction read a snapshot of the database, as left
+     * by the transactions committed so far, until it completes. It takes no
+     * locks, and may not ask for pages with {@link Permissions#READ_WRITE}.
+     *
+     * @param tid the transaction, which has not fetched any page yet
+     * @return false, and the transaction locks pages as usual, if this buffer
+     * pool does not keep page versions
+     */
+    public boolean beginSnapshot(TransactionId tid) {
+        if (!mvcc)
+            return false;
+        synchronized (versions) {
+            snapshots.put(tid, clock);
+        }
+        return true;
+    }
+
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -72,6 +235,9 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, an page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * A transaction that reads a snapshot gets, without locking, the version
+     * of the page its snapshot sees; the page must not be changed.
      *
      * @param tid  the ID of the transaction requesting the page
      * @param pid  the ID of the requested page
@@ -79,20 +245,172 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
-        // FIXME: in PA2, we simply ignore tid & perm
-        if (cache.containsKey(pid)) {
-            return cache.get(pid);
-        } else {
-            if (cache.size() == PAGE_NUMBER) {
-                evictPage();
+        Long snapshot = snapshots.get(tid);
+        if (snapshot != null) {
+            if (perm == Permissions.READ_WRITE)
+                throw new DbException("transaction reading a snapshot cannot write " + pid);
+            return getVersion(pid, snapshot);
+        }
+        locks.acquire(tid, pid, perm);
+        Page page = fetchPage(pid);
+        if (mvcc && perm == Permissions.READ_WRITE) {
+            // nobody else has uncommitted changes on the page now, and the
+            // caller makes none before it gets the page
+            synchronized (versions) {
+                if (!versions.containsKey(pid))
+                    versions.put(pid, new Version(0, committedCopy(page), null));
+            }
+        }
+        return page;
+    }
+
+    // the cached page, read and added to the cache if missing; misses are
+    // handled under the monitor, so that concurrent ones can neither grow
+    // the cache past its size nor read the same page twice
+    private Page fetchPage(PageId pid) throws DbException {
+        Page page = cache.get(pid);
+        if (page != null)
+            return page;
+        synchronized (this) {
+            page = cache.get(pid);
+            if (page == null) {
+                if (cache.size() >= PAGE_NUMBER) {
+                    evictPage();
+                }
+                DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = table.readPage(pid);
+                cache.put(pid, page);
             }
-            DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = table.readPage(pid);
-            cache.put(pid, page);
             return page;
         }
     }
 
+    // a copy of a page that has no uncommitted changes, taken as its
+    // before-image
+    private static Page committedCopy(Page page) {
+        page.setBeforeImage();
+        return page.getBeforeImage();
+    }
+
+    // the version of a page a snapshot sees
+    private Page getVersion(PageId pid, long snapshot) throws DbException {
+        Version v;
+        synchronized (versions) {
+            v = versions.get(pid);
+        }
+        if (v == null) {
+            // nobody has changed the page since the chain was last dropped,
+            // unless a writer installed a chain meanwhile
+            Page page = fetchPage(pid);
+            synchronized (versions) {
+                v = versions.get(pid);
+                if (v == null) {
+                    v = new Version(0, committedCopy(page), null);
+                    versions.put(pid, v);
+                }
+            }
+        }
+        synchronized (versions) {
+            while (v.timestamp > snapshot)
+                v = v.older;
+        }
+        return v.page;
+    }
+
+    /**
+     * Installs the pages a committing transaction changed as their newest
+     * versions.
+     */
+    private void installVersions(TransactionId tid) {
+        ArrayList<Page> committed = new ArrayList<>();
+        for (PageId pid : locks.getLockedPages(tid)) {
+            if (!locks.holdsExclusiveLock(tid, pid))
+                continue;
+            Page page = cache.get(pid);
+            if (page == null)
+                page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            committed.add(committedCopy(page));
+        }
+        if (committed.isEmpty())
+            return;
+        synchronized (versions) {
+            clock++;
+            for (Page page : committed)
+                versions.put(page.getId(), new Version(clock, page, versions.get(page.getId())));
+        }
+    }
+
+    /**
+     * Drops the versions no active snapshot sees, and the chains of pages
+     * that nobody writes and whose current contents every snapshot sees.
+     */
+    private void collectVersions() {
+        synchronized (versions) {
+            long oldest = clock;
+            for (long snapshot : snapshots.values())
+                oldest = Math.min(oldest, snapshot);
+            Iterator<Map.Entry<PageId, Version>> it = versions.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PageId, Version> e = it.next();
+                Version v = e.getValue();
+                while (v.timestamp > oldest)
+                    v = v.older;
+                v.older = null;
+                if (v == e.getValue() && !locks.isLockedExclusively(e.getKey()))
+                    it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of pages in the cache
+     */
+    int numCachedPages() {
+        return cache.size();
+    }
+
+    /**
+     * @return the number of page versions kept for snapshot reads
+     */
+    int numVersions() {
+        synchronized (versions) {
+            int n = 0;
+            for (Version v : versions.values()) {
+                for (; v != null; v = v.older)
+                    n++;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Returns the specified page without adding it to the buffer pool: a
+     * copy of the cached page if there is one, so that changes not yet
+     * flushed are seen, and otherwise the page as read from disk. No lock is
+     * acquired. This is meant for scans, such as computing statistics, that
+     * tolerate reading uncommitted data and should not evict the pages of
+     * running queries.
+     * <p>
+     * Writers change cached pages in place without holding any latch, so
+     * the copy may catch a change half made. A copy that cannot be taken
+     * because of that is taken again, and after {@link #PEEK_ATTEMPTS}
+     * attempts the page is read from disk instead. The caller gets a page of
+     * its own, which later changes to the cached page do not affect.
+     *
+     * @param pid the ID of the requested page
+     */
+    public Page peekPage(PageId pid) {
+        Page page = cache.get(pid);
+        for (int i = 0; page != null && i < PEEK_ATTEMPTS; i++) {
+            try {
+                return LogFile.copyPage(page);
+            } catch (Exception e) {
+                // torn by a concurrent change
+            }
+        }
+        return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -103,8 +421,7 @@ public class BufferPool {
      * @param pid the ID of the page to unlock
      */
     public void releasePage(TransactionId tid, PageId pid) {
-        // some code goes here
-        // not necessary for lab1|lab2
+        locks.release(tid, pid);
     }
 
     /**
@@ -113,30 +430,40 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the unlock
      */
     public void transactionComplete(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        transactionComplete(tid, true);
     }
 
     /**
      * Return true if the specified transaction has a lock on the specified page
      */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return locks.holdsLock(tid, p);
     }
 
     /**
      * Commit or abort a given transaction; release all locks associated to
-     * the transaction.
+     * the transaction. The pages of the transaction are written lazily
+     * either way; the changes of an aborted transaction are undone by the
+     * log (see {@link LogFile#logAbort}) before its locks are released.
+     * When page versions are kept, a commit installs the pages the
+     * transaction changed as new versions, and the versions no snapshot
+     * needs any more are dropped.
      *
      * @param tid    the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
      */
     public void transactionComplete(TransactionId tid, boolean commit)
             throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        if (!mvcc) {
+            locks.releaseAll(tid);
+            return;
+        }
+        if (snapshots.remove(tid) == null) {
+            if (commit)
+                installVersions(tid);
+            locks.releaseAll(tid);
+        }
+        collectVersions();
     }
 
     /**
@@ -148,7 +475,10 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. Their changes are written
+     * to the log (see {@link LogFile#logChanges}). The insertion is counted
+     * towards refreshing the statistics of the table (see
+     * {@link TableStats#recordModification}).
      *
      * @param tid     the transaction adding the tuple
      * @param tableId the table to add the tuple to
@@ -159,14 +489,25 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile hf = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> pages = hf.insertTuple(tid, t);
-        for (Page page : pages) {
-            page.markDirty(true, tid);
-            if (!this.cache.containsKey(page.getId())) {
-                this.getPage(tid, page.getId(), Permissions.READ_WRITE);
+        beginChange(tid);
+        try {
+            List<Page> pages = hf.insertTuple(tid, t);
+            for (Page page : pages) {
+                // the page is logged and entered into the dirty page table
+                // atomically with respect to flushes and checkpoints
+                synchronized (this) {
+                    page.markDirty(true, tid);
+                    if (!this.cache.containsKey(page.getId())) {
+                        this.getPage(tid, page.getId(), Permissions.READ_WRITE);
+                    }
+                    this.cache.put(page.getId(), page);
+                    pageChanged(page.getId(), Database.getLogFile().logChanges(tid, page));
+                }
             }
-            this.cache.put(page.getId(), page);
+        } finally {
+            changing.remove(tid);
         }
+        TableStats.recordModification(tableId);
     }
 
     /**
@@ -177,7 +518,10 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
      * been dirtied to the cache (replacing any existing versions of those pages) so
-     * that future requests see up-to-date pages.
+     * that future requests see up-to-date pages. Their changes are written
+     * to the log (see {@link LogFile#logChanges}). The deletion is counted
+     * towards refreshing the statistics of the table (see
+     * {@link TableStats#recordModification}).
      *
      * @param tid the transaction deleting the tuple.
      * @param t   the tuple to delete
@@ -186,16 +530,158 @@ public class BufferPool {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
-        DbFile hf = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
-        List<Page> pages = hf.deleteTuple(tid, t);
-        for (Page page : pages) {
-            page.markDirty(true, tid);
-            PageId pid = page.getId();
-            if (!this.cache.containsKey(pid)) {
-                this.getPage(tid, pid, Permissions.READ_WRITE);
+        int tableId = t.getRecordId().getPageId().getTableId();
+        DbFile hf = Database.getCatalog().getDatabaseFile(tableId);
+        beginChange(tid);
+        try {
+            List<Page> pages = hf.deleteTuple(tid, t);
+            for (Page page : pages) {
+                synchronized (this) {
+                    page.markDirty(true, tid);
+                    PageId pid = page.getId();
+                    if (!this.cache.containsKey(pid)) {
+                        this.getPage(tid, pid, Permissions.READ_WRITE);
+                    }
+                    this.cache.put(pid, page);
+                    pageChanged(pid, Database.getLogFile().logChanges(tid, page));
+                }
+            }
+        } finally {
+            changing.remove(tid);
+        }
+        TableStats.recordModification(tableId);
+    }
+
+    // registers the thread of a transaction about to change pages, once no
+    // page is being written
+    private synchronized void beginChange(TransactionId tid) {
+        changing.put(tid, Thread.currentThread());
+    }
+
+    // false while the transaction holding the exclusive lock on a page
+    // changes pages in another thread, so that the page may be half changed
+    private boolean stealable(PageId pid) {
+        TransactionId holder = locks.getExclusiveHolder(pid);
+        Thread t = holder == null ? null : changing.get(holder);
+        return t == null || t == Thread.currentThread();
+    }
+
+    // logs the changes made to a cached page since they were last logged,
+    // on behalf of the transaction holding its exclusive lock
+    private synchronized void logPending(PageId pid) throws IOException {
+        Page page = cache.get(pid);
+        TransactionId holder = locks.getExclusiveHolder(pid);
+        if (page == null || holder == null)
+            return;
+        long lsn = Database.getLogFile().logChanges(holder, page);
+        if (lsn >= 0) {
+            page.markDirty(true, holder);
+            pageChanged(pid, lsn);
+        }
+    }
+
+    /**
+     * Logs the changes a transaction made to the pages it holds exclusive
+     * locks on that are not logged yet, such as those of an insertion or
+     * deletion that failed part way. Called by {@link LogFile#rollback}
+     * before it reads the log, so that they are undone with the rest.
+     *
+     * @param tid the transaction
+     */
+    synchronized void logPendingChanges(TransactionId tid) throws IOException {
+        for (PageId pid : new ArrayList<PageId>(locks.getLockedPages(tid))) {
+            if (locks.holdsExclusiveLock(tid, pid))
+                logPending(pid);
+        }
+    }
+
+    // a page was changed by the log record at lsn, or by none if lsn is -1
+    private synchronized void pageChanged(PageId pid, long lsn) {
+        if (lsn < 0)
+            return;
+        recLsns.putIfAbsent(pid, lsn);
+        pageLsns.put(pid, lsn);
+        if (cleaner == null) {
+            cleaner = new Thread("page cleaner") {
+                public void run() {
+                    try {
+                        while (cleanPages())
+                            ;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        synchronized (BufferPool.this) {
+                            cleaner = null;
+                        }
+                    }
+                }
+            };
+            cleaner.setDaemon(true);
+            cleaner.start();
+        }
+    }
+
+    /**
+     * One round of the page cleaner: wait, then write the dirty pages that
+     * were changed first.
+     *
+     * @return false if no page is dirty, or this buffer pool is no longer the
+     * one of the database, and the cleaner exits
+     */
+    private boolean cleanPages() throws IOException, InterruptedException {
+        Thread.sleep(cleanerInterval);
+        synchronized (this) {
+            if (recLsns.isEmpty() || Database.getBufferPool() != this) {
+                cleaner = null;
+                return false;
+            }
+        }
+        List<Map.Entry<PageId, Long>> oldest = new ArrayList<>(recLsns.entrySet());
+        Collections.sort(oldest, new Comparator<Map.Entry<PageId, Long>>() {
+            public int compare(Map.Entry<PageId, Long> a, Map.Entry<PageId, Long> b) {
+                return Long.compare(a.getValue(), b.getValue());
+            }
+        });
+        // one page at a time, so that others get the monitor in between
+        for (int i = 0; i < oldest.size() && i < cleanerBatch; i++)
+            flushPage(oldest.get(i).getKey());
+        return true;
+    }
+
+    /**
+     * Puts a page changed by the recovery manager into the buffer pool, as a
+     * dirty page, replacing any cached version of it. The page is written
+     * lazily like any other change.
+     *
+     * @param tid      the transaction the changes were made for
+     * @param page     the page
+     * @param firstLsn the LSN of the first log record of the changes
+     * @param lastLsn  the LSN of the last log record of the changes
+     */
+    synchronized void installPage(TransactionId tid, Page page, long firstLsn, long lastLsn)
+            throws IOException {
+        PageId pid = page.getId();
+        if (!cache.containsKey(pid) && cache.size() >= PAGE_NUMBER) {
+            try {
+                evictPage();
+            } catch (DbException e) {
+                throw new IOException(e);
             }
-            this.cache.put(pid, page);
         }
+        page.markDirty(true, tid);
+        cache.put(pid, page);
+        pageChanged(pid, firstLsn);
+        pageChanged(pid, lastLsn);
+    }
+
+    /**
+     * Returns the dirty page table: for every page that was changed since it
+     * was last written, the LSN of the first log record that changed it.
+     * Redo recovery of a page needs to start no earlier than this record.
+     * Every page changed by a record logged before the call is either in the
+     * table or written.
+     */
+    public synchronized Map<PageId, Long> getDirtyPageTable() {
+        return Collections.unmodifiableMap(new HashMap<PageId, Long>(recLsns));
     }
 
     /**
@@ -222,40 +708,65 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         cache.remove(pid);
+        recLsns.remove(pid);
+        pageLsns.remove(pid);
     }
 
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk, after the log records of its changes.
+     * Changes not logged yet are logged first; a page that may be half
+     * changed by another thread is not written.
      *
      * @param pid an ID indicating the page to flush
      */
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        if (!cache.containsKey(pid)) return;
+        if (!cache.containsKey(pid) || !stealable(pid)) return;
+        logPending(pid);
         Page page = cache.get(pid);
         if (page.isDirty() == null) return;
+        Long lsn = pageLsns.get(pid);
+        if (lsn != null)
+            Database.getLogFile().flushTo(lsn + 1);
         DbFile table = Database.getCatalog().getDatabaseFile(pid.getTableId());
         table.writePage(page);
         page.markDirty(false, null);
+        recLsns.remove(pid);
+        pageLsns.remove(pid);
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
     public synchronized void flushPages(TransactionId tid) throws IOException {
-        // some code goes here
-        // not necessary for lab1|lab2
+        for (Map.Entry<PageId, Page> e : cache.entrySet()) {
+            if (tid.equals(e.getValue().isDirty()))
+                flushPage(e.getKey());
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards a page from the buffer pool, preferring clean pages, which
+     * need not be written. Pages that may be half changed by another thread
+     * are kept.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
     private synchronized void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        List<PageId> pids = new ArrayList<>(cache.keySet());
+        List<PageId> pids = new ArrayList<>(), clean = new ArrayList<>();
+        for (Map.Entry<PageId, Page> e : cache.entrySet()) {
+            if (!stealable(e.getKey()))
+                continue;
+            pids.add(e.getKey());
+            if (e.getValue().isDirty() == null)
+                clean.add(e.getKey());
+        }
+        if (!clean.isEmpty())
+            pids = clean;
+        if (pids.isEmpty())
+            throw new DbException("no page can be evicted");
         PageId pid = pids.get(randomPicker.nextInt(pids.size()));
         try {
             flushPage(pid);
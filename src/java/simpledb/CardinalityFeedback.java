@@ -0,0 +1,230 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A store of corrections to cardinality estimates, learned by comparing the
+ * estimates with the number of tuples operators actually produced.
+ * <p>
+ * After a query has run to completion, {@link Query#execute} calls {@link
+ * #record}, which walks its plan and, for every {@link Filter} over a base
+ * table and every join of two base table fields, compares the tuples that
+ * flowed with what {@link TableStats} and {@link JoinOptimizer} estimate for
+ * the same inputs. The ratio of actual to estimated output is kept per
+ * predicate shape (table, field and operator, but not constant) and per join
+ * (the two fields and operator), smoothed over executions, and multiplied
+ * into later estimates by {@link TableStats#estimateSelectivity} and {@link
+ * JoinOptimizer#estimateTableJoinCardinality}, so repeated queries of the
+ * same shape are planned with corrected estimates.
+ */
+public class CardinalityFeedback {
+
+    /**
+     * Weight of a new observation when it is averaged (geometrically) into
+     * the correction already stored for a predicate.
+     */
+    public static final double OBSERVATION_WEIGHT = 0.5;
+
+    /**
+     * Corrections are kept between 1/MAX_CORRECTION and MAX_CORRECTION.
+     */
+    public static final double MAX_CORRECTION = 1000.0;
+
+    // the current correction of each predicate, and the correction it had
+    // when the version was last incremented
+    private static final ConcurrentHashMap<String, double[]> corrections = new ConcurrentHashMap<String, double[]>();
+
+    private static volatile int version;
+
+    private CardinalityFeedback() {
+    }
+
+    /**
+     * @return the factor estimates of <tt>field op constant</tt> over a table
+     * are multiplied by, 1.0 if nothing has been learned about it
+     */
+    public static double getSelectivityCorrection(int tableid, int field, Predicate.Op op) {
+        return correction(filterKey(tableid, field, op));
+    }
+
+    /**
+     * @return the factor the estimated cardinality of a join of two table
+     * fields is multiplied by, 1.0 if nothing has been learned about it
+     */
+    public static double getJoinCorrection(int tableid1, int field1, Predicate.Op op, int tableid2, int field2) {
+        return correction(joinKey(tableid1, field1, op, tableid2, field2));
+    }
+
+    /**
+     * Returns a counter that changes whenever a correction changes by more
+     * than a factor of two since the counter last changed, so that plans
+     * optimized with the old estimates can be invalidated.
+     */
+    public static int getVersion() {
+        return version;
+    }
+
+    /**
+     * Forgets all corrections.
+     */
+    public static void clear() {
+        corrections.clear();
+        version++;
+    }
+
+    /**
+     * Learns from a plan that has been run to completion. Operators that did
+     * not produce all their tuples are skipped, as are index nested loops
+     * joins, whose inner side is probed rather than scanned, and filters and
+     * joins whose input was thinned by the Bloom filter of a {@link
+     * HashEquiJoin}, which keeps the tuples that match the join rather than
+     * a sample of the table.
+     *
+     * @param plan           the root of the plan
+     * @param tableAliasToId the mapping from the aliases in the plan to the
+     *                       tables they scan
+     */
+    public static void record(DbIterator plan, Map<String, Integer> tableAliasToId) {
+        if (!(plan instanceof Operator))
+            return;
+        Operator o = (Operator) plan;
+        for (DbIterator child : o.getChildren())
+            record(child, tableAliasToId);
+        try {
+            if (o instanceof Filter)
+                recordFilter((Filter) o, tableAliasToId);
+            else if (o instanceof Join && !(o instanceof IndexNestedLoopJoin))
+                recordJoin(o, ((Join) o).getJoinPredicate(), tableAliasToId);
+            else if (o instanceof HashEquiJoin)
+                recordJoin(o, ((HashEquiJoin) o).getJoinPredicate(), tableAliasToId);
+        } catch (NoSuchElementException e) {
+            // a table or field that is not in the catalog, e.g. a subquery
+        }
+    }
+
+    private static void recordFilter(Filter f, Map<String, Integer> tableAliasToId) {
+        int in = f.getInputCardinality(), out = f.getActualCardinality();
+        if (in <= 0 || bloomFiltered(f))
+            return;
+        Predicate p = f.getPredicate();
+        String[] name = f.getTupleDesc().getFieldName(p.getField()).split("[.]");
+        Integer tableid = tableAliasToId.get(name[0]);
+        if (tableid == null || name.length != 2)
+            return;
+        TableStats s = TableStats.getTableStats(Database.getCatalog().getTableName(tableid));
+        if (s == null)
+            return;
+        int field = Database.getCatalog().getTupleDesc(tableid).fieldNameToIndex(name[1]);
+        double estimated = s.estimateRawSelectivity(field, p.getOp(), p.getOperand()) * in;
+        observe(filterKey(tableid, field, p.getOp()), out, estimated);
+    }
+
+    private static void recordJoin(Operator j, JoinPredicate p, Map<String, Integer> tableAliasToId) {
+        DbIterator[] children = j.getChildren();
+        int out = j.getActualCardinality();
+        int in1 = inputCardinality(children[0]);
+        int in2 = inputCardinality(children[1]);
+        if (out < 0 || in1 <= 0 || in2 <= 0)
+            return;
+        String[] name1 = children[0].getTupleDesc().getFieldName(p.getField1()).split("[.]");
+        String[] name2 = children[1].getTupleDesc().getFieldName(p.getField2()).split("[.]");
+        Integer id1 = tableAliasToId.get(name1[0]), id2 = tableAliasToId.get(name2[0]);
+        if (id1 == null || id2 == null || name1.length != 2 || name2.length != 2)
+            return;
+        Catalog catalog = Database.getCatalog();
+        boolean pk1 = name1[1].equals(catalog.getPrimaryKey(id1));
+        boolean pk2 = name2[1].equals(catalog.getPrimaryKey(id2));
+        double estimated = JoinOptimizer.estimateRawJoinCardinality(p.getOperator(), name1[0], name2[0],
+                name1[1], name2[1], in1, in2, pk1, pk2, TableStats.getStatsMap(), tableAliasToId);
+        observe(joinKey(id1, catalog.getTupleDesc(id1).fieldNameToIndex(name1[1]), p.getOperator(),
+                id2, catalog.getTupleDesc(id2).fieldNameToIndex(name2[1])), out, estimated);
+    }
+
+    // the number of tuples a join's input has without its Bloom filter, or
+    // -1 if it is not known: a scan is counted by its table's statistics,
+    // but the tuples an operator produced depend on the Bloom filter
+    private static int inputCardinality(DbIterator child) {
+        if (child instanceof Operator)
+            return bloomFiltered(child) ? -1 : ((Operator) child).getActualCardinality();
+        if (child instanceof SeqScan) {
+            TableStats s = TableStats.getTableStats(((SeqScan) child).getTableName());
+            return s == null ? -1 : s.totalTuples();
+        }
+        return -1;
+    }
+
+    // true if a Bloom filter dropped tuples in a chain of filters or in the
+    // scan beneath it
+    private static boolean bloomFiltered(DbIterator it) {
+        while (it instanceof Filter) {
+            if (((Filter) it).getBloomEliminated() > 0)
+                return true;
+            it = ((Filter) it).getChildren()[0];
+        }
+        return it instanceof SeqScan && ((SeqScan) it).getBloomEliminated() > 0;
+    }
+
+    private static void observe(String key, int actual, double estimated) {
+        // add one to both so that empty results give finite ratios
+        double ratio = bound((actual + 1) / (estimated + 1));
+        double[] c = corrections.get(key);
+        if (c == null) {
+            // the first observation is taken as is
+            c = new double[] { ratio, 1.0 };
+            double[] old = corrections.putIfAbsent(key, c);
+            if (old != null)
+                c = old;
+            else
+                ratio = c[0];
+        }
+        synchronized (c) {
+            c[0] = bound(Math.exp((1 - OBSERVATION_WEIGHT) * Math.log(c[0]) + OBSERVATION_WEIGHT * Math.log(ratio)));
+            if (c[0] > 2 * c[1] || c[1] > 2 * c[0]) {
+                c[1] = c[0];
+                version++;
+            }
+        }
+    }
+
+    private static double correction(String key) {
+        double[] c = corrections.get(key);
+        if (c == null)
+            return 1.0;
+        synchronized (c) {
+            return c[0];
+        }
+    }
+
+    private static double bound(double ratio) {
+        return Math.max(1 / MAX_CORRECTION, Math.min(MAX_CORRECTION, ratio));
+    }
+
+    private static String filterKey(int tableid, int field, Predicate.Op op) {
+        return tableid + "." + field + " " + op;
+    }
+
+    // a join and its mirror image share a key
+    private static String joinKey(int tableid1, int field1, Predicate.Op op, int tableid2, int field2) {
+        if (tableid1 > tableid2 || (tableid1 == tableid2 && field1 > field2))
+            return tableid2 + "." + field2 + " " + mirror(op) + " " + tableid1 + "." + field1;
+        return tableid1 + "." + field1 + " " + op + " " + tableid2 + "." + field2;
+    }
+
+    // the operator op' such that (a op b) == (b op' a)
+    private static Predicate.Op mirror(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+}
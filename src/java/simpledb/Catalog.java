@@ -32,6 +32,7 @@ public class Catalog {
 
     private HashMap<Integer, CatalogItem> id2Item;
     private HashMap<String, Integer> name2Id;
+    private volatile int version;
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -54,6 +55,7 @@ public class Catalog {
         CatalogItem item = new CatalogItem(file, name, pkeyField);
         name2Id.put(name, file.getId());
         id2Item.put(file.getId(), item);
+        version++;
     }
 
     public void addTable(DbFile file, String name) {
@@ -117,6 +119,23 @@ public class Catalog {
         return id2Item.get(tableid).pkeyField;
     }
 
+    /**
+     * Returns true if the specified table is stored in a B+ tree keyed on the
+     * specified field, so that lookups on that field can use
+     * {@link BTreeFile#indexIterator}.
+     * @param tableid The id of the table
+     * @param fieldName The pure (unqualified) name of the field
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public boolean hasIndex(int tableid, String fieldName) throws NoSuchElementException {
+        DbFile f = getDatabaseFile(tableid);
+        if (!(f instanceof BTreeFile)) {
+            return false;
+        }
+        String keyName = f.getTupleDesc().getFieldName(((BTreeFile) f).keyField());
+        return keyName != null && keyName.equals(fieldName);
+    }
+
     public Iterator<Integer> tableIdIterator() {
         return id2Item.keySet().iterator();
     }
@@ -132,6 +151,15 @@ public class Catalog {
     public void clear() {
         id2Item.clear();
         name2Id.clear();
+        version++;
+    }
+
+    /**
+     * Returns a counter that changes whenever tables are added to or removed
+     * from the catalog, so that cached plans over it can be invalidated.
+     */
+    public int getVersion() {
+        return version;
     }
     
     /**
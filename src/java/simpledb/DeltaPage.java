@@ -0,0 +1,47 @@
+package simpledb;
+
+/**
+ * A page whose changes can be logged and replayed slot by slot instead of as
+ * whole page images.
+ * <p>
+ * The page records which of its slots each modification touches, together
+ * with the contents the slot had before it was first touched, and hands them
+ * out as a {@link PageDelta} when {@link #takeDelta} is called. Recovery
+ * applies a delta by installing the slot contents it holds with {@link
+ * #setSlotData}, which is idempotent, so a delta can be redone or undone on a
+ * page regardless of whether it was already applied.
+ *
+ * @see LogFile#logChanges
+ */
+public interface DeltaPage extends Page {
+
+    /**
+     * The slot that stands for the fields of a page that are not part of any
+     * slot, such as the parent and sibling pointers of B+ tree pages.
+     */
+    int META_SLOT = -1;
+
+    /**
+     * @param slot a slot of this page, or {@link #META_SLOT}
+     * @return the contents of the slot, in a form {@link #setSlotData}
+     * accepts
+     */
+    byte[] getSlotData(int slot);
+
+    /**
+     * Replaces the contents of a slot, without recording the change.
+     *
+     * @param slot a slot of this page, or {@link #META_SLOT}
+     * @param data contents returned by {@link #getSlotData} for the same
+     *             slot of a page of this file
+     */
+    void setSlotData(int slot, byte[] data);
+
+    /**
+     * Returns the changes made to this page since the last call, and starts
+     * recording anew.
+     *
+     * @return the changes, or null if the page was not changed
+     */
+    PageDelta takeDelta();
+}
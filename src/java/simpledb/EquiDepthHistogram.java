@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An equi-depth histogram over integer values: the bucket boundaries are
+ * chosen so that every bucket holds the same number of values, so dense
+ * ranges of a skewed column get narrow buckets and sparse ranges wide ones.
+ * Within a bucket values are assumed to be spread uniformly.
+ * <p>
+ * Unlike {@link IntHistogram} it is built from all values at once, which
+ * {@link TableStats} has at hand as a sample of the table.
+ */
+public class EquiDepthHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // bounds[i] and bounds[i + 1] are the smallest and largest value of
+    // bucket i; a value that fills several buckets is repeated
+    private final int[] bounds;
+
+    /**
+     * Create a histogram of the given values.
+     *
+     * @param buckets the number of buckets; fewer are used if there are
+     *                fewer values
+     * @param values  the values, in any order; the array is not modified
+     */
+    public EquiDepthHistogram(int buckets, int[] values) {
+        if (buckets <= 0)
+            throw new IllegalArgumentException("number of buckets must be positive");
+        if (values.length == 0) {
+            bounds = new int[0];
+            return;
+        }
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = Math.min(buckets, sorted.length);
+        bounds = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            bounds[i] = sorted[(int) ((long) i * sorted.length / n)];
+        bounds[n] = sorted[sorted.length - 1];
+    }
+
+    /**
+     * @return the fraction of values less than v
+     */
+    private double lessThan(long v) {
+        int n = bounds.length - 1;
+        if (n < 0 || v <= bounds[0])
+            return 0.0;
+        if (v > bounds[n])
+            return 1.0;
+        double cnt = 0;
+        for (int i = 0; i < n; i++) {
+            long lo = bounds[i], hi = bounds[i + 1];
+            if (hi < v)
+                cnt += 1;
+            else if (lo < v)
+                cnt += (double) (v - lo) / (hi - lo + 1);
+            else
+                break;
+        }
+        return cnt / n;
+    }
+
+    /**
+     * Estimate the selectivity of a particular predicate and operand on the
+     * values of this histogram.
+     *
+     * @param op Operator
+     * @param v  Value
+     * @return Predicted selectivity of this particular operator and value
+     */
+    public double estimateSelectivity(Predicate.Op op, int v) {
+        switch (op) {
+        case LESS_THAN:
+            return lessThan(v);
+        case LESS_THAN_OR_EQ:
+            return lessThan(v + 1L);
+        case GREATER_THAN:
+            return 1 - lessThan(v + 1L);
+        case GREATER_THAN_OR_EQ:
+            return 1 - lessThan(v);
+        case EQUALS:
+            return lessThan(v + 1L) - lessThan(v);
+        case NOT_EQUALS:
+            return 1 - (lessThan(v + 1L) - lessThan(v));
+        default:
+            return 1.0;
+        }
+    }
+
+    /**
+     * Estimate the selectivity of <tt>a op b</tt> for a value a drawn from
+     * this histogram and a value b drawn from another, independently.
+     *
+     * @param op    a range operator
+     * @param other the histogram of the right-hand operand
+     */
+    public double estimateJoinSelectivity(Predicate.Op op, EquiDepthHistogram other) {
+        int n = bounds.length - 1;
+        if (n < 0 || other.bounds.length == 0)
+            return 0.0;
+        Predicate.Op m = mirror(op);
+        double sel = 0;
+        for (int i = 0; i < n; i++) {
+            // the midpoint of each bucket stands for its values
+            int mid = (int) (((long) bounds[i] + bounds[i + 1]) / 2);
+            sel += other.estimateSelectivity(m, mid);
+        }
+        return sel / n;
+    }
+
+    // the operator op' such that (a op b) == (b op' a)
+    private static Predicate.Op mirror(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+
+    /**
+     * @return the number of buckets
+     */
+    public int numBuckets() {
+        return Math.max(0, bounds.length - 1);
+    }
+
+    /**
+     * @return A string describing this histogram, for debugging purposes
+     */
+    public String toString() {
+        return "EquiDepthHistogram(buckets=" + numBuckets() + ", bounds=" + Arrays.toString(bounds) + ")";
+    }
+}
@@ -12,6 +12,13 @@ public class Filter extends Operator {
     private DbIterator child;
     private final Predicate p;
 
+    // runtime filter pushed down by a join (see setBloomFilter)
+    private transient BloomFilter bloom;
+    private transient int bloomField;
+    private long bloomEliminated;
+
+    private int inputCardinality;
+
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -28,6 +35,37 @@ public class Filter extends Operator {
         return p;
     }
 
+    /**
+     * Installs a runtime filter in addition to the predicate: tuples whose
+     * value in the given field is not in the Bloom filter are dropped. Used by
+     * {@link HashEquiJoin} when its probe side has no {@link SeqScan} to push
+     * the filter into.
+     *
+     * @param field the index of the field to test
+     * @param bloom the filter to test against, or null to remove the filter
+     */
+    public void setBloomFilter(int field, BloomFilter bloom) {
+        this.bloomField = field;
+        this.bloom = bloom;
+    }
+
+    /**
+     * @return the number of tuples dropped by the Bloom filter since this
+     * operator was created
+     */
+    public long getBloomEliminated() {
+        return bloomEliminated;
+    }
+
+    /**
+     * @return the number of tuples read from the child while producing the
+     * tuples counted by {@link #getActualCardinality()}, or -1 if this
+     * operator has not produced all its tuples yet
+     */
+    public int getInputCardinality() {
+        return getActualCardinality() < 0 ? -1 : inputCardinality;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -43,6 +81,7 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
         super.open();
         child.open();
+        inputCardinality = 0;
     }
 
     /**
@@ -76,6 +115,12 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException, TransactionAbortedException, DbException {
         while (child.hasNext()) {
             Tuple t = child.next();
+            if (getActualCardinality() < 0)
+                inputCardinality++;
+            if (bloom != null && !bloom.mightContain(t.getField(bloomField))) {
+                bloomEliminated++;
+                continue;
+            }
             if (p.filter(t)) return t;
         }
         return null;
@@ -1,24 +1,68 @@
 package simpledb;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * The outer (build) relation is loaded into a hash table keyed on its join
+ * field and the inner (probe) relation is streamed past it. When more than
+ * one thread is allowed and the build side has at least
+ * {@link #getParallelThreshold()} tuples, the build side is partitioned by
+ * key hash and the per-partition hash tables are built concurrently; the
+ * probe side is then read in morsels of {@link #MORSEL_SIZE} tuples that are
+ * probed concurrently. Output order is unspecified in that mode.
+ * <p>
+ * Once the build side is loaded, a {@link BloomFilter} over its keys is
+ * pushed down into the probe side: into the {@link SeqScan} beneath any
+ * chain of {@link Filter}s, or else into the lowest such {@link Filter}.
+ * Probe tuples that cannot match are then dropped before they reach the
+ * filters and the hash table; {@link #getBloomEliminated()} counts them.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Number of probe tuples handed to a worker at a time in parallel mode.
+     */
+    public static final int MORSEL_SIZE = 4096;
+
+    /**
+     * Default minimum number of build tuples for which the join runs in
+     * parallel.
+     */
+    public static final int PARALLEL_THRESHOLD = 16384;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private static int defaultParallelism = Runtime.getRuntime().availableProcessors();
+    private static int parallelThreshold = PARALLEL_THRESHOLD;
+
     private final JoinPredicate p;
+    private final int parallelism;
     private DbIterator child1;
     private DbIterator child2;
 
     private final transient Map<Field, List<Tuple>> map;
     private transient Tuple tuple1;
     private transient Tuple tuple2;
+    private transient TupleDesc td;
 
     transient Iterator<Tuple> listIt = null;
 
+    // parallel mode only: one hash table per key-hash partition, and the
+    // joined tuples of the current batch of morsels
+    private transient List<Map<Field, List<Tuple>>> partitions;
+    private transient ArrayDeque<Tuple> output;
+
+    // the probe-side operator holding this join's Bloom filter, if any
+    private transient DbIterator bloomTarget;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
@@ -28,12 +72,70 @@ public class HashEquiJoin extends Operator {
      * @param child2 Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        this(p, child1, child2, defaultParallelism);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p           The predicate to use to join the children
+     * @param child1      Iterator for the left(outer) relation to join
+     * @param child2      Iterator for the right(inner) relation to join
+     * @param parallelism The maximum number of threads to build and probe
+     *                    with; 1 disables parallel mode
+     */
+    public HashEquiJoin(JoinPredicate p, DbIterator child1, DbIterator child2, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
         this.p = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.parallelism = parallelism;
         this.map = new HashMap<>();
     }
 
+    /**
+     * @return the number of threads a join uses when none is given
+     */
+    public static int getDefaultParallelism() {
+        return defaultParallelism;
+    }
+
+    /**
+     * Sets the number of threads a join uses when none is given; defaults to
+     * the number of available processors.
+     */
+    public static void setDefaultParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        defaultParallelism = parallelism;
+    }
+
+    /**
+     * @return the minimum number of build tuples for which the join runs in
+     * parallel
+     */
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetParallelThreshold() {
+        parallelThreshold = PARALLEL_THRESHOLD;
+    }
+
+    /**
+     * @return the maximum number of threads this join builds and probes with
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
     public JoinPredicate getJoinPredicate() {
         return p;
     }
@@ -61,11 +163,13 @@ public class HashEquiJoin extends Operator {
     public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
         super.open();
         child1.open();
-        child2.open();
+        td = getTupleDesc();
+        initMap();
+        pushBloomFilter();
 
+        child2.open();
         tuple2 = child2.hasNext() ? child2.next() : null;
         listIt = null;
-        initMap();
     }
 
     /**
@@ -76,11 +180,14 @@ public class HashEquiJoin extends Operator {
         super.close();
         child1.close();
         child2.close();
+        setBloomFilter(bloomTarget, null);
 
         listIt = null;
         tuple1 = null;
         tuple2 = null;
         map.clear();
+        partitions = null;
+        output = null;
     }
 
     /**
@@ -112,6 +219,8 @@ public class HashEquiJoin extends Operator {
      */
     @Override
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (partitions != null)
+            return fetchNextParallel();
         while (!map.isEmpty()) {
             while (tuple2 != null) {
                 if (listIt == null) {
@@ -127,15 +236,7 @@ public class HashEquiJoin extends Operator {
                 if (listIt.hasNext()) {
                     tuple1 = listIt.next();
                     if (p.filter(tuple1, tuple2)) {
-                        Tuple tupleJoin = new Tuple(getTupleDesc());
-                        int j = 0;
-                        for (int i = 0; i < child1.getTupleDesc().numFields(); ++i) {
-                            tupleJoin.setField(j++, tuple1.getField(i));
-                        }
-                        for (int i = 0; i < child2.getTupleDesc().numFields(); ++i) {
-                            tupleJoin.setField(j++, tuple2.getField(i));
-                        }
-                        return tupleJoin;
+                        return mergeTuples(tuple1, tuple2);
                     }
                 } else {
                     tuple2 = child2.hasNext() ? child2.next() : null;
@@ -143,6 +244,10 @@ public class HashEquiJoin extends Operator {
                 }
             }
             initMap();
+            // the probe side is not read again once the build side is done,
+            // so that its operators end with a complete pass
+            if (map.isEmpty())
+                break;
             child2.rewind();
             tuple2 = child2.hasNext() ? child2.next() : null;
             listIt = null;
@@ -161,15 +266,197 @@ public class HashEquiJoin extends Operator {
         child2 = children[1];
     }
 
+    /**
+     * @return the number of probe tuples dropped by this join's Bloom filter
+     * before reaching the join, or 0 if the filter could not be pushed down
+     */
+    public long getBloomEliminated() {
+        if (bloomTarget instanceof SeqScan)
+            return ((SeqScan) bloomTarget).getBloomEliminated();
+        if (bloomTarget instanceof Filter)
+            return ((Filter) bloomTarget).getBloomEliminated();
+        return 0;
+    }
+
+    /**
+     * Builds a Bloom filter over the build keys and installs it in the
+     * probe-side scan, or in the lowest filter if the probe side is not a
+     * scan. Filters do not change the schema, so the probe join field keeps
+     * its index all the way down.
+     */
+    private void pushBloomFilter() {
+        DbIterator target = null;
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            target = it;
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (it instanceof SeqScan)
+            target = it;
+        if (target == null)
+            return;
+
+        Collection<Map<Field, List<Tuple>>> maps = partitions != null ? partitions : Collections.singleton(map);
+        int keys = 0;
+        for (Map<Field, List<Tuple>> m : maps) {
+            keys += m.size();
+        }
+        BloomFilter bloom = new BloomFilter(keys);
+        for (Map<Field, List<Tuple>> m : maps) {
+            for (Field f : m.keySet()) {
+                bloom.add(f);
+            }
+        }
+        bloomTarget = target;
+        setBloomFilter(target, bloom);
+    }
+
+    private void setBloomFilter(DbIterator target, BloomFilter bloom) {
+        if (target instanceof SeqScan)
+            ((SeqScan) target).setBloomFilter(p.getField2(), bloom);
+        else if (target instanceof Filter)
+            ((Filter) target).setBloomFilter(p.getField2(), bloom);
+    }
+
+    private Tuple mergeTuples(Tuple t1, Tuple t2) {
+        Tuple tupleJoin = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        for (int i = 0; i < n1; ++i) {
+            tupleJoin.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < t2.getTupleDesc().numFields(); ++i) {
+            tupleJoin.setField(n1 + i, t2.getField(i));
+        }
+        return tupleJoin;
+    }
+
     private void initMap() throws DbException, TransactionAbortedException {
         map.clear();
+        if (parallelism > 1) {
+            ArrayList<Tuple> build = new ArrayList<>();
+            while (child1.hasNext()) {
+                build.add(child1.next());
+            }
+            if (build.size() >= parallelThreshold) {
+                buildPartitions(build);
+                return;
+            }
+            for (Tuple t : build) {
+                addTo(map, t);
+            }
+            return;
+        }
         while (child1.hasNext()) {
-            tuple1 = child1.next();
-            Field field = tuple1.getField(p.getField1());
-            if (!map.containsKey(field)) {
-                map.put(field, new ArrayList<>());
+            addTo(map, child1.next());
+        }
+    }
+
+    private void addTo(Map<Field, List<Tuple>> m, Tuple t) {
+        Field field = t.getField(p.getField1());
+        List<Tuple> l = m.get(field);
+        if (l == null) {
+            l = new ArrayList<>();
+            m.put(field, l);
+        }
+        l.add(t);
+    }
+
+    private int partitionOf(Field f) {
+        int h = f.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % parallelism;
+    }
+
+    /**
+     * Splits the build tuples by key hash and builds one hash table per
+     * partition, each on its own worker.
+     */
+    private void buildPartitions(List<Tuple> build) throws DbException {
+        final List<List<Tuple>> buckets = new ArrayList<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            buckets.add(new ArrayList<Tuple>());
+        }
+        for (Tuple t : build) {
+            buckets.get(partitionOf(t.getField(p.getField1()))).add(t);
+        }
+        List<Callable<Map<Field, List<Tuple>>>> tasks = new ArrayList<>(parallelism);
+        for (final List<Tuple> bucket : buckets) {
+            tasks.add(new Callable<Map<Field, List<Tuple>>>() {
+                public Map<Field, List<Tuple>> call() {
+                    Map<Field, List<Tuple>> m = new HashMap<>();
+                    for (Tuple t : bucket) {
+                        addTo(m, t);
+                    }
+                    return m;
+                }
+            });
+        }
+        partitions = runAll(tasks);
+        output = new ArrayDeque<>();
+    }
+
+    /**
+     * Reads up to one morsel per thread from the probe side, probes them
+     * concurrently and returns the buffered results one at a time.
+     */
+    private Tuple fetchNextParallel() throws TransactionAbortedException, DbException {
+        while (output.isEmpty()) {
+            List<Callable<List<Tuple>>> tasks = new ArrayList<>(parallelism);
+            for (int i = 0; i < parallelism && (tuple2 != null || child2.hasNext()); i++) {
+                final ArrayList<Tuple> morsel = new ArrayList<>(MORSEL_SIZE);
+                if (tuple2 != null) {
+                    // open() has already pulled the first probe tuple
+                    morsel.add(tuple2);
+                    tuple2 = null;
+                }
+                while (morsel.size() < MORSEL_SIZE && child2.hasNext()) {
+                    morsel.add(child2.next());
+                }
+                tasks.add(new Callable<List<Tuple>>() {
+                    public List<Tuple> call() {
+                        return probe(morsel);
+                    }
+                });
+            }
+            if (tasks.isEmpty())
+                return null;
+            for (List<Tuple> l : runAll(tasks)) {
+                output.addAll(l);
+            }
+        }
+        return output.poll();
+    }
+
+    private List<Tuple> probe(List<Tuple> morsel) {
+        List<Tuple> out = new ArrayList<>();
+        for (Tuple t2 : morsel) {
+            Field field = t2.getField(p.getField2());
+            List<Tuple> matches = partitions.get(partitionOf(field)).get(field);
+            if (matches == null)
+                continue;
+            for (Tuple t1 : matches) {
+                if (p.filter(t1, t2)) {
+                    out.add(mergeTuples(t1, t2));
+                }
+            }
+        }
+        return out;
+    }
+
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws DbException {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> f : POOL.invokeAll(tasks)) {
+                results.add(f.get());
             }
-            map.get(field).add(tuple1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted during parallel hash join");
+        } catch (ExecutionException e) {
+            DbException dbe = new DbException("parallel hash join failed: " + e.getCause());
+            dbe.initCause(e.getCause());
+            throw dbe;
         }
+        return results;
     }
 }
@@ -13,7 +13,7 @@ import java.util.stream.IntStream;
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements DeltaPage {
 
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
@@ -27,6 +27,7 @@ public class HeapPage implements Page {
     byte[] oldData;
     @SuppressWarnings({"UnnecessaryBoxing", "CachedNumberConstructorCall"})
     private final Byte oldDataLock = new Byte((byte) 0);
+    private final PageDelta.Recorder changes = new PageDelta.Recorder();
 
 
     /**
@@ -254,6 +255,7 @@ public class HeapPage implements Page {
         if (rid.getPageId().pageNumber() != pid.pageNumber()) throw new DbException("not in this page");
         int tupleNo = rid.tupleno();
         if (!isSlotUsed(tupleNo)) throw new DbException("slot is already empty");
+        changes.touch(this, tupleNo);
         markSlotUsed(tupleNo, false);
     }
 
@@ -270,6 +272,7 @@ public class HeapPage implements Page {
         for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
                 isFull = false;
+                changes.touch(this, i);
                 markSlotUsed(i, true);
                 t.setRecordId(new RecordId(pid, i));
                 tuples[i] = t;
@@ -279,6 +282,30 @@ public class HeapPage implements Page {
         if (isFull) throw new DbException("page is full");
     }
 
+    /**
+     * The contents of a slot are whether it is used and the fields of its
+     * tuple. Heap pages have nothing in {@link #META_SLOT}.
+     */
+    @Override
+    public byte[] getSlotData(int slot) {
+        if (slot == META_SLOT)
+            return new byte[0];
+        return PageDelta.tupleSlotData(isSlotUsed(slot), tuples[slot]);
+    }
+
+    @Override
+    public void setSlotData(int slot, byte[] data) {
+        if (slot == META_SLOT)
+            return;
+        tuples[slot] = PageDelta.parseTupleSlot(data, td, new RecordId(pid, slot));
+        markSlotUsed(slot, tuples[slot] != null);
+    }
+
+    @Override
+    public PageDelta takeDelta() {
+        return changes.take(this);
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
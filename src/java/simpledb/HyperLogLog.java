@@ -0,0 +1,80 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct {@link Field}
+ * values added to it in constant space. Each value is hashed; the first
+ * {@link #PRECISION} bits of the hash choose a register, which keeps the
+ * longest run of leading zeros seen in the remaining bits.
+ * <p>
+ * Sketches of disjoint parts of a table can be merged, so {@link TableStats}
+ * keeps one per column of every partition it samples and merges them.
+ */
+public class HyperLogLog implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of hash bits that choose a register. With 2^12 registers the
+     * standard error of the estimate is about 1.6%.
+     */
+    public static final int PRECISION = 12;
+
+    private static final int NUM_REGISTERS = 1 << PRECISION;
+
+    private final byte[] registers = new byte[NUM_REGISTERS];
+
+    /**
+     * Add a value to the sketch.
+     */
+    public void add(Field f) {
+        long h = mix(f.hashCode());
+        int r = (int) (h >>> (64 - PRECISION));
+        // the sentinel bit bounds the run of zeros when the rest is zero
+        int rank = Long.numberOfLeadingZeros((h << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (rank > registers[r])
+            registers[r] = (byte) rank;
+    }
+
+    /**
+     * Merges another sketch into this one, so that it estimates the number
+     * of distinct values added to either.
+     */
+    public void merge(HyperLogLog o) {
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            if (o.registers[i] > registers[i])
+                registers[i] = o.registers[i];
+        }
+    }
+
+    /**
+     * @return the estimated number of distinct values added to the sketch
+     */
+    public long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte b : registers) {
+            sum += 1.0 / (1L << b);
+            if (b == 0)
+                zeros++;
+        }
+        double m = NUM_REGISTERS;
+        double e = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+        // linear counting is more accurate while many registers are empty
+        if (e <= 2.5 * m && zeros > 0)
+            e = m * Math.log(m / zeros);
+        return Math.round(e);
+    }
+
+    // finalizer of MurmurHash3 (64 bit), so that consecutive integer keys
+    // spread over all bits of the hash
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
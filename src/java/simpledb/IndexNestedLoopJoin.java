@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins an outer input with a table stored in a
+ * {@link BTreeFile} by probing the B+ tree once per outer tuple, rather than
+ * scanning the inner table as {@link Join} does.
+ * <p>
+ * The inner child must be a {@link SeqScan} or {@link BTreeScan} of a B+ tree
+ * whose key field is the inner join field, optionally under a chain of
+ * {@link Filter}s (see {@link #canProbe}). The child itself is never iterated:
+ * it only identifies the table, and any filter predicates (including the index
+ * predicate of a {@link BTreeScan}) are applied to the tuples each probe
+ * returns. A single {@link BTreeSearchIterator} is re-targeted for every
+ * probe instead of being created anew.
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int tableid;
+    private final TransactionId tid;
+    private final ArrayList<Predicate> filters = new ArrayList<Predicate>();
+
+    private transient BTreeSearchIterator probe;
+    private transient boolean probing;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on.
+     *
+     * @param p      The predicate to use to join the children
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Scan of the right(inner) relation, to be answered by
+     *               probing its B+ tree
+     * @throws IllegalArgumentException if the inner child cannot be probed
+     *                                  with this predicate
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        super(p, child1, child2);
+        if (!canProbe(child2, p.getField2(), p.getOperator()))
+            throw new IllegalArgumentException("inner child is not an index scan on field " + p.getField2());
+        DbIterator it = child2;
+        while (it instanceof Filter) {
+            filters.add(((Filter) it).getPredicate());
+            it = ((Filter) it).getChildren()[0];
+        }
+        if (it instanceof BTreeScan) {
+            BTreeScan scan = (BTreeScan) it;
+            tableid = scan.getTableId();
+            tid = scan.getTransactionId();
+            IndexPredicate ipred = scan.getIndexPredicate();
+            if (ipred != null)
+                filters.add(new Predicate(scan.getKeyField(), ipred.getOp(), ipred.getField()));
+        } else {
+            SeqScan scan = (SeqScan) it;
+            tableid = scan.getTableId();
+            tid = scan.getTransactionId();
+        }
+    }
+
+    /**
+     * Returns true if joins on the given field of the given inner input can be
+     * answered by probing an index: the input is a scan, possibly under
+     * filters, of a {@link BTreeFile} keyed on that field, and the operator
+     * is one a B+ tree search supports.
+     *
+     * @param inner the inner input of the join
+     * @param field the index of the inner join field in inner's TupleDesc
+     * @param op    the join operator
+     */
+    public static boolean canProbe(DbIterator inner, int field, Predicate.Op op) {
+        if (op == Predicate.Op.LIKE || op == Predicate.Op.NOT_EQUALS)
+            return false;
+        while (inner instanceof Filter)
+            inner = ((Filter) inner).getChildren()[0];
+        int tableid;
+        if (inner instanceof SeqScan)
+            tableid = ((SeqScan) inner).getTableId();
+        else if (inner instanceof BTreeScan)
+            tableid = ((BTreeScan) inner).getTableId();
+        else
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        super.open();
+        probing = false;
+    }
+
+    /**
+     * The inner child only describes the table; it is never opened.
+     */
+    @Override
+    protected void openInner() {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        super.close();
+        if (probe != null)
+            probe.close();
+        probe = null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. Each outer tuple is turned into an {@link IndexPredicate}
+     * on the inner key, and the tuples the B+ tree returns for it are
+     * checked against the inner filters.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    @Override
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (tuple1 != null) {
+            if (!probing) {
+                IndexPredicate ipred = new IndexPredicate(innerOp(p.getOperator()), tuple1.getField(p.getField1()));
+                if (probe == null) {
+                    BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+                    probe = new BTreeSearchIterator(f, tid, ipred);
+                    probe.open();
+                } else {
+                    probe.reset(ipred);
+                }
+                probing = true;
+            }
+            while (probe.hasNext()) {
+                Tuple t2 = probe.next();
+                if (passesFilters(t2))
+                    return mergeTuples(tuple1, t2);
+            }
+            tuple1 = child1.hasNext() ? child1.next() : null;
+            probing = false;
+        }
+        return null;
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate f : filters) {
+            if (!f.filter(t))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The join predicate compares outer to inner; an index predicate compares
+     * the inner key to a constant, so range operators are mirrored.
+     */
+    private static Predicate.Op innerOp(Predicate.Op op) {
+        switch (op) {
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return op;
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package simpledb;
 
+import java.io.Serializable;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
-public class IntHistogram {
+public class IntHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final int[] buckets;
     private final int min, max;
@@ -44,7 +48,7 @@ public class IntHistogram {
     }
     public void addValue(int v) {
         // some code goes here
-        if(v >= min && v < max){
+        if(v >= min && v <= max){
             buckets[getIndex(v)]++;
             ntups++;
         }
@@ -65,7 +69,7 @@ public class IntHistogram {
         // some code goes here
         if(op.equals(Predicate.Op.LESS_THAN)){
             if(v <= min) return 0.0;
-            if(v >= max) return 1.0;
+            if(v > max) return 1.0;
             final int index = getIndex(v);
             double cnt = 0;
             for(int i=0;i<index;++i){
@@ -96,7 +100,9 @@ public class IntHistogram {
 
     /**
      * @return
-     *     the average selectivity of this histogram.
+     *     the average selectivity of this histogram: the chance that two
+     *     values drawn from it are equal, assuming values are spread evenly
+     *     within each bucket.
      *
      *     This is not an indispensable method to implement the basic
      *     join optimization. It may be needed if you want to
@@ -105,10 +111,15 @@ public class IntHistogram {
     public double avgSelectivity()
     {
         // some code goes here
-        int cnt = 0;
-        for(int bucket:buckets) cnt += bucket;
-        if(cnt ==0) return 0.0;
-        return cnt/ntups;
+        if(ntups == 0) return 0.0;
+        // a bucket holds at least one distinct value
+        double values = Math.max(1.0, width);
+        double sel = 0;
+        for(int bucket:buckets){
+            double frac = (double) bucket/ntups;
+            sel += frac*frac/values;
+        }
+        return sel;
     }
 
     /**
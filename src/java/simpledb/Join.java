@@ -9,11 +9,12 @@ public class Join extends Operator {
 
     private static final long serialVersionUID = 1L;
 
-    private final JoinPredicate p;
-    private DbIterator child1;
-    private DbIterator child2;
-    private transient Tuple tuple1;
+    protected final JoinPredicate p;
+    protected DbIterator child1;
+    protected DbIterator child2;
+    protected transient Tuple tuple1;
     private transient Tuple tuple2;
+    private transient TupleDesc td;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -65,10 +66,19 @@ public class Join extends Operator {
     public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
         super.open();
         child1.open();
-        child2.open();
+        openInner();
+        td = getTupleDesc();
         tuple1 = child1.hasNext() ? child1.next() : null;
     }
 
+    /**
+     * Opens the inner child when the join is opened. Joins that answer the
+     * inner side without reading the inner child override this.
+     */
+    protected void openInner() throws DbException, TransactionAbortedException {
+        child2.open();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -112,15 +122,7 @@ public class Join extends Operator {
             while (child2.hasNext()) {
                 tuple2 = child2.next();
                 if (p.filter(tuple1, tuple2)) {
-                    Tuple tupleJoin = new Tuple(getTupleDesc());
-                    int j = 0;
-                    for (int i = 0; i < child1.getTupleDesc().numFields(); i++) {
-                        tupleJoin.setField(j++, tuple1.getField(i));
-                    }
-                    for (int i = 0; i < child2.getTupleDesc().numFields(); i++) {
-                        tupleJoin.setField(j++, tuple2.getField(i));
-                    }
-                    return tupleJoin;
+                    return mergeTuples(tuple1, tuple2);
                 }
             }
             if (child1.hasNext()) {
@@ -133,6 +135,27 @@ public class Join extends Operator {
         return null;
     }
 
+    /**
+     * Concatenates a tuple from the outer relation and a tuple from the inner
+     * relation into a single tuple of this join's output schema.
+     *
+     * @param t1 tuple from child1
+     * @param t2 tuple from child2
+     * @return the joined tuple
+     */
+    protected Tuple mergeTuples(Tuple t1, Tuple t2) {
+        Tuple tupleJoin = new Tuple(td);
+        int n1 = t1.getTupleDesc().numFields();
+        int n2 = t2.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            tupleJoin.setField(i, t1.getField(i));
+        }
+        for (int i = 0; i < n2; i++) {
+            tupleJoin.setField(n1 + i, t2.getField(i));
+        }
+        return tupleJoin;
+    }
+
     @Override
     public DbIterator[] getChildren() {
         return new DbIterator[]{child1, child2};
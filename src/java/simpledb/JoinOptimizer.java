@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -17,9 +19,25 @@ import javax.swing.tree.DefaultTreeCellRenderer;
  * logical plan.
  */
 public class JoinOptimizer {
+    /**
+     * Fraction of the cross product assumed to satisfy a non-equality join
+     * predicate.
+     */
+    static final double RANGE_JOIN_SELECTIVITY = 0.3;
+
+    /**
+     * Schema assumed for the outer input of a block nested loop join when it
+     * has no base table, such as a subquery.
+     */
+    static final TupleDesc DEFAULT_OUTER_DESC = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
 
+    // cost of reading a table through its chosen access path, by alias, for
+    // tables not read by a full scan
+    private final HashMap<String, Double> accessCosts = new HashMap<String, Double>();
+
     /**
      * Constructor
      *
@@ -31,6 +49,17 @@ public class JoinOptimizer {
         this.joins = joins;
     }
 
+    /**
+     * Sets the cost of reading a table, for a table that is not read by a
+     * full scan; by default the cost is {@link TableStats#estimateScanCost()}.
+     *
+     * @param alias the alias of the table
+     * @param cost  the cost of its access path, e.g. an index scan
+     */
+    public void setAccessCost(String alias, double cost) {
+        accessCosts.put(alias, cost);
+    }
+
     /**
      * Return best iterator for computing a given logical join, given the
      * specified statistics, and the provided left and right subplans. Note that
@@ -67,7 +96,20 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        j = new Join(p, plan1, plan2);
+        if (lj.useIndex && IndexNestedLoopJoin.canProbe(plan2, t2id, lj.p)) {
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
+            // inputs that already arrive in join-key order can be merged
+            // without building a hash table
+            if (SortMergeJoin.isSortedOn(plan1, t1id) && SortMergeJoin.isSortedOn(plan2, t2id))
+                j = new SortMergeJoin(p, plan1, plan2);
+            else
+                j = new HashEquiJoin(p, plan1, plan2);
+        } else if (SortMergeJoin.supports(lj.p)) {
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else {
+            j = new BlockNestedLoopJoin(p, plan1, plan2);
+        }
 
         return j;
 
@@ -99,15 +141,71 @@ public class JoinOptimizer {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
+        } else if (j.p == Predicate.Op.EQUALS) {
+            // HashEquiJoin: one pass over each input, hashing every outer
+            // tuple and probing with every inner tuple
+            return cost1 + cost2 + card1 + card2;
+        } else if (SortMergeJoin.supports(j.p)) {
+            // SortMergeJoin: sort both inputs, then walk each of them once;
+            // every output pair costs one predicate application
+            return cost1 + cost2 + sortCost(card1) + sortCost(card2) + card1 + card2
+                    + RANGE_JOIN_SELECTIVITY * card1 * card2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return cost1 + card1 * cost2 + card1 * card2;
+            // BlockNestedLoopJoin: the inner input is scanned once per block
+            // of outer tuples, and every pair of tuples is compared; even an
+            // outer input that fits in one block needs one inner scan
+            double blocks = Math.max(1, Math.ceil((double) card1 / outerTuplesPerBlock(j)));
+            return cost1 + blocks * cost2 + (double) card1 * card2;
         }
     }
 
+    /**
+     * Estimate the cost of evaluating a join as an {@link IndexNestedLoopJoin}:
+     * the outer input is read once and the inner table's B+ tree is probed
+     * once per outer tuple.
+     *
+     * @param j       the join, whose t2 must be a base table
+     * @param card1   estimated cardinality of the outer input
+     * @param cost1   estimated cost of the outer input
+     * @param joinCard estimated cardinality of the join
+     * @param stats   the table stats, referenced by table names, not alias
+     * @return the estimated cost, or {@link Double#MAX_VALUE} if t2 has no
+     * B+ tree index on the join field
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, double cost1, int joinCard,
+                                         Map<String, TableStats> stats) {
+        if (j instanceof LogicalSubplanJoinNode || j.t2Alias == null
+                || j.p == Predicate.Op.LIKE || j.p == Predicate.Op.NOT_EQUALS)
+            return Double.MAX_VALUE;
+        int tableId = p.getTableId(j.t2Alias);
+        if (!Database.getCatalog().hasIndex(tableId, j.f2PureName))
+            return Double.MAX_VALUE;
+        TableStats s = stats.get(Database.getCatalog().getTableName(tableId));
+        if (s == null)
+            return Double.MAX_VALUE;
+        double matchesPerProbe = card1 == 0 ? 0 : (double) joinCard / card1;
+        return cost1 + card1 * s.estimateIndexProbeCost(matchesPerProbe) + joinCard;
+    }
+
+    /**
+     * Estimate the CPU cost of sorting card tuples in memory.
+     */
+    private static double sortCost(int card) {
+        return card <= 1 ? 0 : card * (Math.log(card) / Math.log(2));
+    }
+
+    /**
+     * Estimate how many outer tuples a {@link BlockNestedLoopJoin} buffers per
+     * scan of its inner input. The schema of the outer base table is used as
+     * an approximation when the outer side is itself a join, and a tuple of
+     * two integers when there is no base table to go by.
+     */
+    private int outerTuplesPerBlock(LogicalJoinNode j) {
+        Integer tableId = j.t1Alias == null ? null : p.getTableId(j.t1Alias);
+        TupleDesc td = tableId == null ? DEFAULT_OUTER_DESC : Database.getCatalog().getTupleDesc(tableId);
+        return BlockNestedLoopJoin.tuplesPerBlock(td, BlockNestedLoopJoin.DEFAULT_BLOCK_PAGES);
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -134,64 +232,196 @@ public class JoinOptimizer {
     }
 
     /**
-     * Estimate the join cardinality of two tables.
+     * Estimate the join cardinality of two tables. A join on the primary key
+     * of one side yields one tuple per tuple of the other side. Otherwise an
+     * equality join matches each value of the side with fewer distinct values
+     * against the tuples sharing it on the other side, so its cardinality is
+     * card1 * card2 / max(ndv1, ndv2); range joins are estimated from the
+     * histograms of both fields. Without statistics for both fields the
+     * estimate falls back to max(card1, card2), or {@link
+     * #RANGE_JOIN_SELECTIVITY} of the cross product. The estimate is
+     * corrected by what {@link CardinalityFeedback} learned from earlier
+     * executions of the same join.
      */
     public static int estimateTableJoinCardinality(Predicate.Op joinOp, String table1Alias, String table2Alias,
                                                    String field1PureName, String field2PureName, int card1, int card2, boolean t1pkey, boolean t2pkey,
                                                    Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
+        int card = estimateRawJoinCardinality(joinOp, table1Alias, table2Alias, field1PureName, field2PureName,
+                card1, card2, t1pkey, t2pkey, stats, tableAliasToId);
+        Integer id1 = tableAliasToId == null ? null : tableAliasToId.get(table1Alias);
+        Integer id2 = tableAliasToId == null ? null : tableAliasToId.get(table2Alias);
+        if (id1 == null || id2 == null)
+            return card;
+        int f1 = fieldIndex(table1Alias, field1PureName, tableAliasToId);
+        int f2 = fieldIndex(table2Alias, field2PureName, tableAliasToId);
+        if (f1 < 0 || f2 < 0)
+            return card;
+        double corrected = card * CardinalityFeedback.getJoinCorrection(id1, f1, joinOp, id2, f2);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, corrected));
+    }
+
+    /**
+     * Estimate the join cardinality of two tables from the statistics alone,
+     * without feedback.
+     */
+    static int estimateRawJoinCardinality(Predicate.Op joinOp, String table1Alias, String table2Alias,
+                                          String field1PureName, String field2PureName, int card1, int card2, boolean t1pkey, boolean t2pkey,
+                                          Map<String, TableStats> stats, Map<String, Integer> tableAliasToId) {
         int card = 1;
         // some code goes here
+        TableStats s1 = columnStats(table1Alias, stats, tableAliasToId);
+        TableStats s2 = columnStats(table2Alias, stats, tableAliasToId);
+        int f1 = s1 == null ? -1 : fieldIndex(table1Alias, field1PureName, tableAliasToId);
+        int f2 = s2 == null ? -1 : fieldIndex(table2Alias, field2PureName, tableAliasToId);
+        boolean haveStats = f1 >= 0 && f2 >= 0;
         if(joinOp == Predicate.Op.EQUALS){
             if(t1pkey){
                 card = card2;
             }else if(t2pkey){
                 card = card1;
+            }else if(haveStats && s1.getNumDistinct(f1) > 0 && s2.getNumDistinct(f2) > 0){
+                // a filtered side cannot have more distinct values than tuples
+                double ndv1 = Math.min(s1.getNumDistinct(f1), Math.max(card1, 1));
+                double ndv2 = Math.min(s2.getNumDistinct(f2), Math.max(card2, 1));
+                card = (int) Math.min(Integer.MAX_VALUE, (double) card1 * card2 / Math.max(ndv1, ndv2));
             }else{
                 card = card1>card2 ?card1:card2;
             }
         }else{
-            double temp = 0.3 * card1 *card2;
-            card = (int)temp;
+            double sel = RANGE_JOIN_SELECTIVITY;
+            if (haveStats && joinOp != Predicate.Op.LIKE && joinOp != Predicate.Op.NOT_EQUALS
+                    && Database.getCatalog().getTupleDesc(tableAliasToId.get(table1Alias)).getFieldType(f1) == Type.INT_TYPE
+                    && Database.getCatalog().getTupleDesc(tableAliasToId.get(table2Alias)).getFieldType(f2) == Type.INT_TYPE)
+                sel = s1.estimateJoinSelectivity(f1, joinOp, s2, f2);
+            double temp = sel * card1 *card2;
+            card = (int) Math.min(Integer.MAX_VALUE, temp);
         }
         return card <= 0 ? 1 : card;
     }
 
+    /**
+     * @return the statistics of the base table an alias refers to, or null
+     * if the alias is not a base table or the table has no statistics
+     */
+    private static TableStats columnStats(String alias, Map<String, TableStats> stats,
+                                          Map<String, Integer> tableAliasToId) {
+        Integer id = tableAliasToId == null || alias == null ? null : tableAliasToId.get(alias);
+        if (id == null || stats == null)
+            return null;
+        try {
+            return stats.get(Database.getCatalog().getTableName(id));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private static int fieldIndex(String alias, String pureName, Map<String, Integer> tableAliasToId) {
+        try {
+            return Database.getCatalog().getTupleDesc(tableAliasToId.get(alias)).fieldNameToIndex(pureName);
+        } catch (NoSuchElementException e) {
+            return -1;
+        }
+    }
+
 
 
     /**
-     * Helper method to enumerate all of the subsets of a given size of a
-     * specified vector.
-     *
-     * @param v    The vector whose subsets are desired
-     * @param size The size of the subsets of interest
-     * @return a set of all subsets of the specified size
+     * Maximum number of relations {@link #orderJoins} enumerates join orders
+     * for exhaustively; the plan table then has one entry per subset of
+     * relations.
      */
-    @SuppressWarnings("unchecked")
-    public <T> Set<Set<T>> enumerateSubsets(Vector<T> v, int size) {
-        Set<Set<T>> els = new HashSet<Set<T>>();
-        els.add(new HashSet<T>());
-        // Iterator<Set> it;
-        // long start = System.currentTimeMillis();
-
-        for (int i = 0; i < size; i++) {
-            Set<Set<T>> newels = new HashSet<Set<T>>();
-            for (Set<T> s : els) {
-                for (T t : v) {
-                    Set<T> news = (Set<T>) (((HashSet<T>) s).clone());
-                    if (news.add(t))
-                        newels.add(news);
-                }
-            }
-            els = newels;
-        }
+    static final int MAX_DP_RELATIONS = 20;
 
-        return els;
+    /**
+     * Maximum number of relations {@link #orderJoins} can order at all, since
+     * sets of relations are represented as bitmasks in a long.
+     */
+    static final int MAX_RELATIONS = 64;
+
+    /**
+     * Default value of {@link #getDpThreshold()}.
+     */
+    public static final int DEFAULT_DP_THRESHOLD = 15;
 
+    /**
+     * Default value of {@link #getTimeBudget()}, in milliseconds.
+     */
+    public static final long DEFAULT_TIME_BUDGET = 1000;
+
+    /**
+     * The search strategies {@link #orderJoins} can use.
+     */
+    public enum Strategy {
+        /** exhaustive dynamic programming over connected subgraphs */
+        DPCCP,
+        /** greedy operator ordering */
+        GREEDY
     }
 
+    private static int dpThreshold = DEFAULT_DP_THRESHOLD;
+    private static long timeBudget = DEFAULT_TIME_BUDGET;
+
+    private Strategy strategy;
+    private long optimizeMillis;
+
     /**
-     * Compute a logical, reasonably efficient join on the specified tables. See
-     * PS4 for hints on how this should be implemented.
+     * @return the largest number of tables for which join orders are
+     * enumerated exhaustively; larger queries are ordered greedily
+     */
+    public static int getDpThreshold() {
+        return dpThreshold;
+    }
+
+    /**
+     * Sets the largest number of tables for which join orders are enumerated
+     * exhaustively. Values above {@link #MAX_DP_RELATIONS} have the same
+     * effect as {@link #MAX_DP_RELATIONS}.
+     */
+    public static void setDpThreshold(int threshold) {
+        dpThreshold = threshold;
+    }
+
+    /**
+     * @return the time, in milliseconds, exhaustive enumeration may take
+     * before the optimizer gives up on it and orders the joins greedily
+     */
+    public static long getTimeBudget() {
+        return timeBudget;
+    }
+
+    /**
+     * Sets the time, in milliseconds, exhaustive enumeration may take before
+     * the optimizer orders the joins greedily instead.
+     */
+    public static void setTimeBudget(long millis) {
+        timeBudget = millis;
+    }
+
+    /**
+     * @return the strategy the last call of {@link #orderJoins} used, or null
+     * if it has not been called
+     */
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Compute a logical, reasonably efficient join on the specified tables.
+     * <p>
+     * Plans are enumerated with DPccp: relations are numbered breadth-first
+     * and sets of relations are represented as bitmasks, and only pairs of
+     * connected, disjoint sets that are joined by at least one predicate
+     * (csg-cmp pairs) are considered, so cross products are never costed. The
+     * best plan for every connected set is kept in a plan table indexed by
+     * its bitmask. Plans may be bushy: both sides of a join can be composite,
+     * so independent groups of tables can be reduced before they are joined.
+     * The returned joins are in post-order: the joins of the outer and the
+     * inner subplan come before the join that combines them.
+     * <p>
+     * Queries over more than {@link #getDpThreshold()} tables, and queries
+     * whose enumeration exceeds {@link #getTimeBudget()}, are instead ordered
+     * by greedy operator ordering, which is polynomial in the number of
+     * tables. {@link #getStrategy()} reports which was used.
      *
      * @param stats               Statistics for each table involved in the join, referenced by
      *                            base table names, not alias
@@ -200,44 +430,48 @@ public class JoinOptimizer {
      *                            name)
      * @param explain             Indicates whether your code should explain its query plan or
      *                            simply execute it
-     * @return A Vector<LogicalJoinNode> that stores joins in the left-deep
-     * order in which they should be executed.
+     * @return A Vector<LogicalJoinNode> that stores joins in the order in
+     * which they should be executed.
      * @throws ParsingException when stats or filter selectivities is missing a table in the
      *                          join, or or when another internal error occurs
      */
     public Vector<LogicalJoinNode> orderJoins(HashMap<String, TableStats> stats,
                                               HashMap<String, Double> filterSelectivities, boolean explain) throws ParsingException {
-        //Not necessary for labs 1--3
-
-        // some code goes here
-        //Replace the following
         PlanCache planCache = new PlanCache();
-        Set<Set<LogicalJoinNode>> nodeSets  = null;
-        for(int i=0;i<joins.size()+1;++i){
-            nodeSets = enumerateSubsets(joins,i);
-            for(Set<LogicalJoinNode> nodeSet:nodeSets){
-                double costSoFar = Double.MAX_VALUE;
-                for(LogicalJoinNode node:nodeSet){
-                    // computeCostAndCardOfSubplan(HashMap<String, TableStats> stats,
-                    //                                                HashMap<String, Double> filterSelectivities,
-                    //                                                LogicalJoinNode joinToRemove,
-                    //                                                Set<LogicalJoinNode> joinSet,
-                    //                                                double bestCostSoFar,
-                    //                                                PlanCache pc)
-                    CostCard costCard = computeCostAndCardOfSubplan(stats,filterSelectivities,
-                            node,nodeSet,costSoFar,planCache);
-                    if(costCard == null) continue;
-                    if(costCard.cost < costSoFar){
-                        costSoFar = costCard.cost;
-                        //void addPlan(Set<LogicalJoinNode> s, double cost, int card, Vector<LogicalJoinNode> order)
-                        planCache.addPlan(nodeSet,costSoFar,costCard.card,costCard.plan);
-                    }
-                }
-            }
+        Vector<LogicalJoinNode> res = new Vector<LogicalJoinNode>();
+        Vector<LogicalJoinNode> filterJoins = new Vector<LogicalJoinNode>();
+        Vector<LogicalJoinNode> tableJoins = new Vector<LogicalJoinNode>();
+        for (LogicalJoinNode j : joins) {
+            if (j instanceof LogicalSubplanJoinNode || j.t1Alias.equals(j.t2Alias))
+                filterJoins.add(j);
+            else
+                tableJoins.add(j);
+        }
+
+        long start = System.currentTimeMillis();
+        PlanTable table = new PlanTable(tableJoins, stats, filterSelectivities);
+        strategy = Strategy.GREEDY;
+        if (table.rels.size() <= Math.min(dpThreshold, MAX_DP_RELATIONS)) {
+            if (table.enumerate(start + timeBudget))
+                strategy = Strategy.DPCCP;
+            else
+                table = new PlanTable(tableJoins, stats, filterSelectivities);
+        }
+        if (strategy == Strategy.GREEDY)
+            table.greedy();
+        optimizeMillis = System.currentTimeMillis() - start;
+        for (long component : table.components)
+            table.extract(component, res, planCache);
+
+        // joins with subqueries, and predicates within a single table, only
+        // filter their outer input; apply them once all tables are joined
+        for (LogicalJoinNode j : filterJoins) {
+            double cost = res.isEmpty() ? 0 : planCache.getCost(new HashSet<LogicalJoinNode>(res));
+            int card = res.isEmpty() ? 0 : planCache.getCard(new HashSet<LogicalJoinNode>(res));
+            res.add(j);
+            planCache.addPlan(new HashSet<LogicalJoinNode>(res), estimateJoinCost(j, card, 0, cost, 0),
+                    estimateJoinCardinality(j, card, 0, false, false, stats), new Vector<LogicalJoinNode>(res));
         }
-        Vector<LogicalJoinNode> res = null;
-        for (Set<LogicalJoinNode> nodeSet : nodeSets)
-            res = planCache.getOrder(nodeSet);
 
         if (explain)
             printJoins(res, planCache, stats, filterSelectivities);
@@ -248,145 +482,351 @@ public class JoinOptimizer {
     // ===================== Private Methods =================================
 
     /**
-     * This is a helper method that computes the cost and cardinality of joining
-     * joinToRemove to joinSet (joinSet should contain joinToRemove), given that
-     * all of the subsets of size joinSet.size() - 1 have already been computed
-     * and stored in PlanCache pc.
-     *
-     * @param stats               table stats for all of the tables, referenced by table names
-     *                            rather than alias (see {@link #orderJoins})
-     * @param filterSelectivities the selectivities of the filters over each of the tables
-     *                            (where tables are indentified by their alias or name if no
-     *                            alias is given)
-     * @param joinToRemove        the join to remove from joinSet
-     * @param joinSet             the set of joins being considered
-     * @param bestCostSoFar       the best way to join joinSet so far (minimum of previous
-     *                            invocations of computeCostAndCardOfSubplan for this joinSet,
-     *                            from returned CostCard)
-     * @param pc                  the PlanCache for this join; should have subplans for all
-     *                            plans of size joinSet.size()-1
-     * @return A {@link CostCard} objects desribing the cost, cardinality,
-     * optimal subplan
-     * @throws ParsingException when stats, filterSelectivities, or pc object is missing
-     *                          tables involved in join
+     * The plan table for one call of {@link #orderJoins}. Relation i is bit i
+     * of a set; for the connected set s stored in slot k, cost[k], card[k],
+     * outer[k] and join[k] describe the best plan found so far, where
+     * outer[k] is the set of relations on the outer side of its topmost join.
+     * For exhaustive enumeration the slot of s is s itself; greedy ordering
+     * only visits a few sets, so it assigns slots on demand.
      */
-    @SuppressWarnings("unchecked")
-    private CostCard computeCostAndCardOfSubplan(HashMap<String, TableStats> stats,
-                                                 HashMap<String, Double> filterSelectivities, LogicalJoinNode joinToRemove, Set<LogicalJoinNode> joinSet,
-                                                 double bestCostSoFar, PlanCache pc) throws ParsingException {
-
-        LogicalJoinNode j = joinToRemove;
-
-        Vector<LogicalJoinNode> prevBest;
-
-        if (this.p.getTableId(j.t1Alias) == null)
-            throw new ParsingException("Unknown table " + j.t1Alias);
-        if (this.p.getTableId(j.t2Alias) == null)
-            throw new ParsingException("Unknown table " + j.t2Alias);
-
-        String table1Name = Database.getCatalog().getTableName(this.p.getTableId(j.t1Alias));
-        String table2Name = Database.getCatalog().getTableName(this.p.getTableId(j.t2Alias));
-        String table1Alias = j.t1Alias;
-        String table2Alias = j.t2Alias;
-
-        Set<LogicalJoinNode> news = (Set<LogicalJoinNode>) ((HashSet<LogicalJoinNode>) joinSet).clone();
-        news.remove(j);
-
-        double t1cost, t2cost;
-        int t1card, t2card;
-        boolean leftPkey, rightPkey;
-
-        if (news.isEmpty()) { // base case -- both are base relations
-            prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
-            t1card = stats.get(table1Name).estimateTableCardinality(filterSelectivities.get(j.t1Alias));
-            leftPkey = isPkey(j.t1Alias, j.f1PureName);
-
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name).estimateScanCost();
-            t2card = table2Alias == null ?
-                    0 :
-                    stats.get(table2Name).estimateTableCardinality(filterSelectivities.get(j.t2Alias));
-            rightPkey = table2Alias == null ? false : isPkey(table2Alias, j.f2PureName);
-        } else {
-            // news is not empty -- figure best way to join j to news
-            prevBest = pc.getOrder(news);
+    private class PlanTable {
+        final Vector<LogicalJoinNode> edges;
+        final HashMap<String, TableStats> stats;
+        final HashMap<String, Double> filterSelectivities;
+
+        final HashMap<String, Integer> relIndex = new HashMap<String, Integer>();
+        final Vector<String> rels = new Vector<String>();
+        final Vector<Long> components = new Vector<Long>();
+        long[] neighbours;
+        int[] edgeRel1, edgeRel2;
+
+        double[] cost;
+        int[] card;
+        boolean[] pkey;
+        long[] outer;
+        LogicalJoinNode[] join;
+        int[] joinEdge;
+
+        // slots assigned to sets when the table is not indexed by bitmask
+        HashMap<Long, Integer> slots;
+
+        long deadline;
+        boolean aborted;
+        int pairs;
+
+        PlanTable(Vector<LogicalJoinNode> edges, HashMap<String, TableStats> stats,
+                  HashMap<String, Double> filterSelectivities) throws ParsingException {
+            this.edges = edges;
+            this.stats = stats;
+            this.filterSelectivities = filterSelectivities;
+            numberRelations();
+        }
 
-            // possible that we have not cached an answer, if subset
-            // includes a cross product
-            if (prevBest == null) {
-                return null;
+        /**
+         * Numbers the relations breadth-first, one connected component of
+         * the join graph after another, as DPccp requires.
+         */
+        private void numberRelations() throws ParsingException {
+            HashMap<String, Vector<String>> adj = new HashMap<String, Vector<String>>();
+            Vector<String> order = new Vector<String>();
+            for (LogicalJoinNode j : edges) {
+                for (String a : new String[]{j.t1Alias, j.t2Alias}) {
+                    if (p.getTableId(a) == null)
+                        throw new ParsingException("Unknown table " + a);
+                    if (!adj.containsKey(a)) {
+                        adj.put(a, new Vector<String>());
+                        order.add(a);
+                    }
+                }
+                adj.get(j.t1Alias).add(j.t2Alias);
+                adj.get(j.t2Alias).add(j.t1Alias);
+            }
+            if (order.size() > MAX_RELATIONS)
+                throw new ParsingException("Cannot order joins over more than " + MAX_RELATIONS + " tables");
+
+            for (String start : order) {
+                if (relIndex.containsKey(start))
+                    continue;
+                long component = 0;
+                LinkedList<String> queue = new LinkedList<String>();
+                queue.add(start);
+                relIndex.put(start, rels.size());
+                rels.add(start);
+                while (!queue.isEmpty()) {
+                    String a = queue.removeFirst();
+                    component |= 1L << relIndex.get(a);
+                    for (String b : adj.get(a)) {
+                        if (!relIndex.containsKey(b)) {
+                            relIndex.put(b, rels.size());
+                            rels.add(b);
+                            queue.add(b);
+                        }
+                    }
+                }
+                components.add(component);
             }
 
-            double prevBestCost = pc.getCost(news);
-            int bestCard = pc.getCard(news);
-
-            // estimate cost of right subtree
-            if (doesJoin(prevBest, table1Alias)) { // j.t1 is in prevBest
-                t1cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t1card = bestCard;
-                leftPkey = hasPkey(prevBest);
-
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name).estimateScanCost();
-                t2card = j.t2Alias == null ?
-                        0 :
-                        stats.get(table2Name).estimateTableCardinality(filterSelectivities.get(j.t2Alias));
-                rightPkey = j.t2Alias == null ? false : isPkey(j.t2Alias, j.f2PureName);
-            } else if (doesJoin(prevBest, j.t2Alias)) { // j.t2 is in prevbest
-                // (both
-                // shouldn't be)
-                t2cost = prevBestCost; // left side just has cost of whatever
-                // left
-                // subtree is
-                t2card = bestCard;
-                rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
-                t1card = stats.get(table1Name).estimateTableCardinality(filterSelectivities.get(j.t1Alias));
-                leftPkey = isPkey(j.t1Alias, j.f1PureName);
+            int n = rels.size();
+            neighbours = new long[n];
+            edgeRel1 = new int[edges.size()];
+            edgeRel2 = new int[edges.size()];
+            for (int e = 0; e < edges.size(); e++) {
+                int a = relIndex.get(edges.get(e).t1Alias);
+                int b = relIndex.get(edges.get(e).t2Alias);
+                edgeRel1[e] = a;
+                edgeRel2[e] = b;
+                neighbours[a] |= 1L << b;
+                neighbours[b] |= 1L << a;
+            }
+        }
 
-            } else {
-                // don't consider this plan if one of j.t1 or j.t2
-                // isn't a table joined in prevBest (cross product)
-                return null;
+        private void allocate(int size) {
+            cost = new double[size];
+            card = new int[size];
+            pkey = new boolean[size];
+            outer = new long[size];
+            join = new LogicalJoinNode[size];
+            joinEdge = new int[size];
+            Arrays.fill(cost, Double.MAX_VALUE);
+        }
+
+        /**
+         * @return the slot holding the plan for s, assigning a new one if
+         * the table is not indexed by bitmask and s has none yet
+         */
+        private int slot(long s) {
+            if (slots == null)
+                return (int) s;
+            Integer k = slots.get(s);
+            if (k == null) {
+                k = slots.size();
+                slots.put(s, k);
+                if (k == cost.length) {
+                    int size = 2 * cost.length;
+                    cost = Arrays.copyOf(cost, size);
+                    Arrays.fill(cost, k, size, Double.MAX_VALUE);
+                    card = Arrays.copyOf(card, size);
+                    pkey = Arrays.copyOf(pkey, size);
+                    outer = Arrays.copyOf(outer, size);
+                    join = Arrays.copyOf(join, size);
+                    joinEdge = Arrays.copyOf(joinEdge, size);
+                }
             }
+            return k;
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
-
-        LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
-        if (cost2 < cost1) {
-            boolean tmp;
-            j = j2;
-            cost1 = cost2;
-            tmp = rightPkey;
-            rightPkey = leftPkey;
-            leftPkey = tmp;
+        private void planBaseRelations() throws ParsingException {
+            for (int i = 0; i < rels.size(); i++) {
+                String alias = rels.get(i);
+                String name = Database.getCatalog().getTableName(p.getTableId(alias));
+                TableStats s = stats.get(name);
+                if (s == null)
+                    throw new ParsingException("No statistics for table " + name);
+                int k = slot(1L << i);
+                Double access = accessCosts.get(alias);
+                cost[k] = access != null ? access : s.estimateScanCost();
+                card[k] = s.estimateTableCardinality(filterSelectivities.get(alias));
+            }
+        }
+
+        /**
+         * Fills the plan table with DPccp: base relations first, then every
+         * csg-cmp pair in an order where both halves are already planned.
+         *
+         * @param deadline the time, as given by
+         *                 {@link System#currentTimeMillis()}, after which to
+         *                 give up
+         * @return false if the deadline passed before enumeration finished
+         */
+        boolean enumerate(long deadline) throws ParsingException {
+            int n = rels.size();
+            this.deadline = deadline;
+            allocate(1 << n);
+            planBaseRelations();
+
+            for (int i = n - 1; i >= 0 && !aborted; i--) {
+                long v = 1L << i;
+                emitCsg(v);
+                enumerateCsgRec(v, (v << 1) - 1, true, 0);
+            }
+            return !aborted;
         }
-        if (cost1 >= bestCostSoFar)
-            return null;
 
-        CostCard cc = new CostCard();
+        /**
+         * Fills the plan table with greedy operator ordering: starting from
+         * the base relations, repeatedly performs the cheapest join between
+         * two current plans that share a predicate, until no such pair is
+         * left.
+         */
+        void greedy() throws ParsingException {
+            slots = new HashMap<Long, Integer>();
+            allocate(4 * rels.size() + 4);
+            deadline = Long.MAX_VALUE;
+            planBaseRelations();
+
+            Vector<Long> plans = new Vector<Long>();
+            for (int i = 0; i < rels.size(); i++)
+                plans.add(1L << i);
+            while (true) {
+                int bx = -1, by = -1;
+                double best = Double.MAX_VALUE;
+                for (int x = 0; x < plans.size(); x++) {
+                    for (int y = x + 1; y < plans.size(); y++) {
+                        long sx = plans.get(x), sy = plans.get(y);
+                        if ((neighbourhood(sx) & sy) == 0)
+                            continue;
+                        considerPair(sx, sy);
+                        Integer k = slots.get(sx | sy);
+                        if (k != null && cost[k] < best) {
+                            best = cost[k];
+                            bx = x;
+                            by = y;
+                        }
+                    }
+                }
+                if (bx < 0)
+                    break;
+                plans.set(bx, plans.get(bx) | plans.get(by));
+                plans.remove(by);
+            }
+        }
 
-        cc.card = estimateJoinCardinality(j, t1card, t2card, leftPkey, rightPkey, stats);
-        cc.cost = cost1;
-        cc.plan = (Vector<LogicalJoinNode>) prevBest.clone();
-        cc.plan.addElement(j); // prevbest is left -- add new join to end
-        return cc;
-    }
+        private long neighbourhood(long s) {
+            long nb = 0;
+            for (long r = s; r != 0; r &= r - 1)
+                nb |= neighbours[Long.numberOfTrailingZeros(r)];
+            return nb & ~s;
+        }
 
-    /**
-     * Return true if the specified table is in the list of joins, false
-     * otherwise
-     */
-    private boolean doesJoin(Vector<LogicalJoinNode> joinlist, String table) {
-        for (LogicalJoinNode j : joinlist) {
-            if (j.t1Alias.equals(table) || (j.t2Alias != null && j.t2Alias.equals(table)))
-                return true;
+        /**
+         * Extends the connected set s by non-empty subsets of its
+         * neighbourhood outside x. Each extension is reported as a new csg
+         * (if csg is true) or as a complement of the csg s1 (if csg is
+         * false), subsets before their supersets, before recursing.
+         */
+        private void enumerateCsgRec(long s, long x, boolean csg, long s1) throws ParsingException {
+            long nb = neighbourhood(s) & ~x;
+            if (nb == 0 || aborted)
+                return;
+            for (long sub = nb & -nb; sub != 0; sub = (sub - nb) & nb) {
+                if (csg)
+                    emitCsg(s | sub);
+                else
+                    considerPair(s1, s | sub);
+            }
+            for (long sub = nb & -nb; sub != 0; sub = (sub - nb) & nb)
+                enumerateCsgRec(s | sub, x | nb, csg, s1);
+        }
+
+        /**
+         * Enumerates the connected complements of the csg s1: connected sets
+         * adjacent to s1 whose relations all come after the first relation
+         * of s1.
+         */
+        private void emitCsg(long s1) throws ParsingException {
+            long min = Long.lowestOneBit(s1);
+            long x = (min - 1) | min | s1;
+            long nb = neighbourhood(s1) & ~x;
+            for (int i = 63 - Long.numberOfLeadingZeros(nb); i >= 0; i--) {
+                long v = 1L << i;
+                if ((nb & v) == 0)
+                    continue;
+                considerPair(s1, v);
+                enumerateCsgRec(v, x | (((v << 1) - 1) & nb), false, s1);
+            }
+        }
+
+        /**
+         * Costs every way of joining the plans for s1 and s2, using any
+         * predicate between them and either side as the outer.
+         */
+        private void considerPair(long s1, long s2) throws ParsingException {
+            if (aborted)
+                return;
+            if ((pairs++ & 0xff) == 0 && System.currentTimeMillis() >= deadline) {
+                aborted = true;
+                return;
+            }
+            for (int e = 0; e < edges.size(); e++) {
+                long a = 1L << edgeRel1[e], b = 1L << edgeRel2[e];
+                LogicalJoinNode j = edges.get(e);
+                if ((s1 & a) != 0 && (s2 & b) != 0) {
+                    tryJoin(s1, s2, j, e);
+                    tryJoin(s2, s1, j.swapInnerOuter(), e);
+                } else if ((s2 & a) != 0 && (s1 & b) != 0) {
+                    tryJoin(s2, s1, j, e);
+                    tryJoin(s1, s2, j.swapInnerOuter(), e);
+                }
+            }
+        }
+
+        /**
+         * Costs joining the plan for o (outer, containing j.t1) with the plan
+         * for i (inner, containing j.t2) on j, and records it if it is the
+         * best plan for their union so far.
+         */
+        private void tryJoin(long o, long i, LogicalJoinNode j, int e) throws ParsingException {
+            boolean baseOuter = Long.bitCount(o) == 1, baseInner = Long.bitCount(i) == 1;
+            int ko = slot(o), ki = slot(i);
+            boolean opk = baseOuter ? isPkey(j.t1Alias, j.f1PureName) : pkey[ko];
+            boolean ipk = baseInner ? isPkey(j.t2Alias, j.f2PureName) : pkey[ki];
+            int c1 = card[ko], c2 = card[ki];
+            double joinCost = estimateJoinCost(j, c1, c2, cost[ko], cost[ki]);
+            int joinCard = estimateJoinCardinality(j, c1, c2, opk, ipk, stats);
+            boolean useIndex = false;
+            if (baseInner) {
+                double indexCost = estimateIndexJoinCost(j, c1, cost[ko], joinCard, stats);
+                if (indexCost < joinCost) {
+                    joinCost = indexCost;
+                    useIndex = true;
+                }
+            }
+            int s = slot(o | i);
+            // of two plans of equal cost, keep the one with fewer tuples
+            if (joinCost > cost[s] || (joinCost == cost[s] && joinCard >= card[s]))
+                return;
+            if (useIndex) {
+                j = new LogicalJoinNode(j.t1Alias, j.t2Alias, j.f1PureName, j.f2PureName, j.p);
+                j.useIndex = true;
+            }
+            cost[s] = joinCost;
+            card[s] = joinCard;
+            pkey[s] = pkey[ko] || pkey[ki] || isPkey(j.t1Alias, j.f1PureName)
+                    || isPkey(j.t2Alias, j.f2PureName);
+            outer[s] = o;
+            join[s] = j;
+            joinEdge[s] = e;
+        }
+
+        /**
+         * Appends the joins of the best plan for s to order in post-order,
+         * and records for every prefix in pc the cost and cardinality of the
+         * subplan the prefix ends with.
+         * Predicates other than the one chosen to join two sets are appended
+         * right after that join.
+         */
+        void extract(long s, Vector<LogicalJoinNode> order, PlanCache pc) throws ParsingException {
+            if (Long.bitCount(s) == 1)
+                return;
+            int k = slot(s);
+            if (join[k] == null)
+                throw new ParsingException("No join order found for tables " + s);
+            long o = outer[k], i = s & ~o;
+            extract(o, order, pc);
+            extract(i, order, pc);
+            order.add(join[k]);
+            pc.addPlan(new HashSet<LogicalJoinNode>(order), cost[k], card[k],
+                    new Vector<LogicalJoinNode>(order));
+            for (int e = 0; e < edges.size(); e++) {
+                long a = 1L << edgeRel1[e], b = 1L << edgeRel2[e];
+                boolean crosses = ((o & a) != 0 && (i & b) != 0) || ((i & a) != 0 && (o & b) != 0);
+                if (crosses && e != joinEdge[k]) {
+                    order.add(edges.get(e));
+                    pc.addPlan(new HashSet<LogicalJoinNode>(order), cost[k], card[k],
+                            new Vector<LogicalJoinNode>(order));
+                }
+            }
         }
-        return false;
     }
 
     /**
@@ -403,19 +843,6 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
-    /**
-     * Return true if a primary key field is joined by one of the joins in
-     * joinlist
-     */
-    private boolean hasPkey(Vector<LogicalJoinNode> joinlist) {
-        for (LogicalJoinNode j : joinlist) {
-            if (isPkey(j.t1Alias, j.f1PureName) || (j.t2Alias != null && isPkey(j.t2Alias, j.f2PureName)))
-                return true;
-        }
-        return false;
-
-    }
-
     /**
      * Helper function to display a Swing window with a tree representation of
      * the specified list of joins. See {@link #orderJoins}, which may want to
@@ -431,7 +858,7 @@ public class JoinOptimizer {
     private void printJoins(Vector<LogicalJoinNode> js, PlanCache pc, HashMap<String, TableStats> stats,
                             HashMap<String, Double> selectivities) {
 
-        JFrame f = new JFrame("Join Plan for " + p.getQuery());
+        JFrame f = new JFrame("Join Plan for " + p.getQuery() + " (" + strategy + ")");
 
         // Set the default close operation for the window,
         // or else the program won't exit when clicking close button
@@ -450,6 +877,7 @@ public class JoinOptimizer {
         HashSet<LogicalJoinNode> pathSoFar = new HashSet<LogicalJoinNode>();
         boolean neither;
 
+        System.out.println("Join order chosen by " + strategy + " in " + optimizeMillis + " ms");
         System.out.println(js);
         for (LogicalJoinNode j : js) {
             pathSoFar.add(j);
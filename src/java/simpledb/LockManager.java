@@ -0,0 +1,378 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Page-level shared/exclusive locks for {@link BufferPool}.
+ * <p>
+ * The lock table is striped: a page's lock lives in one of a fixed number
+ * of stripes chosen by the hash of its {@link PageId}, and each stripe has its
+ * own monitor, so transactions locking different pages rarely contend on the
+ * table itself. A transaction may hold a shared lock, which other readers
+ * may share, or an exclusive lock, which it holds alone. A shared lock is
+ * upgraded to an exclusive one as soon as its holder is the only reader left.
+ * While a transaction waits for an exclusive lock, new readers of the page
+ * wait too, so that writers are not starved.
+ * <p>
+ * Every transaction's locked pages are also kept in a per-transaction set,
+ * so releasing all its locks takes time proportional to the locks it holds.
+ * <p>
+ * Deadlocks are detected with a wait-for graph, which has an edge from every
+ * waiting transaction to each transaction it waits for. A transaction adds
+ * its edges whenever it starts or goes on waiting and, since only those edges
+ * can close a new cycle, then looks for a cycle through itself. The youngest
+ * transaction of a cycle is the victim: its thread is woken up at once and
+ * its request fails with a {@link DeadlockException}, after which aborting
+ * it frees the locks the others wait for. Transactions are never aborted
+ * just for waiting long.
+ *
+ * @Threadsafe
+ */
+public class LockManager {
+
+    /**
+     * Default number of stripes of the lock table.
+     */
+    public static final int DEFAULT_STRIPES = 64;
+
+    // the lock of one page
+    private static class Lock {
+        TransactionId exclusive; // the holder of the exclusive lock, if any
+        final HashSet<TransactionId> shared = new HashSet<TransactionId>();
+        final HashSet<TransactionId> waiters = new HashSet<TransactionId>();
+        // those of the waiters that wait to write
+        final HashSet<TransactionId> exclusiveWaiters = new HashSet<TransactionId>();
+
+        // a lock is dropped from the table only when nobody holds it or
+        // waits for it, so waiters never wake up on a stale lock
+        boolean isFree() {
+            return exclusive == null && shared.isEmpty() && waiters.isEmpty();
+        }
+    }
+
+    // the locks of the pages whose ids hash to one stripe; waiters wait on
+    // the stripe's monitor
+    private static class Stripe {
+        final HashMap<PageId, Lock> locks = new HashMap<PageId, Lock>();
+    }
+
+    // a transaction waiting for a lock, as a node of the wait-for graph
+    private static class Waiter {
+        final Thread thread;
+        Set<TransactionId> blockers; // the transactions it waits for
+        boolean victim = false; // chosen to break a deadlock
+
+        Waiter(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    private final Stripe[] stripes;
+    // the pages each transaction holds a lock on
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> held = new ConcurrentHashMap<TransactionId, Set<PageId>>();
+    // the wait-for graph; a thread may lock it while it holds a stripe's
+    // monitor, never the other way round
+    private final HashMap<TransactionId, Waiter> waitsFor = new HashMap<TransactionId, Waiter>();
+    private final AtomicLong deadlocks = new AtomicLong();
+
+    /**
+     * Creates a lock manager whose lock table has the given number of
+     * stripes.
+     */
+    public LockManager(int numStripes) {
+        if (numStripes <= 0)
+            throw new IllegalArgumentException("number of stripes must be positive");
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * @return the number of deadlocks broken so far
+     */
+    public long getDeadlockCount() {
+        return deadlocks.get();
+    }
+
+    private Stripe stripe(PageId pid) {
+        return stripes[Math.floorMod(pid.hashCode(), stripes.length)];
+    }
+
+    /**
+     * Acquires a lock on a page, blocking until it is granted. A transaction
+     * that holds an exclusive lock also holds the shared one, and one that
+     * holds a shared lock upgrades it when it asks for an exclusive lock.
+     *
+     * @param tid  the transaction asking for the lock
+     * @param pid  the page to lock
+     * @param perm READ_ONLY for a shared lock, READ_WRITE for an exclusive one
+     * @throws DeadlockException          if the transaction was chosen as
+     *                                     the victim of a deadlock
+     * @throws TransactionAbortedException if the thread was interrupted while
+     *                                     waiting
+     */
+    public void acquire(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
+        boolean exclusive = perm == Permissions.READ_WRITE;
+        Stripe s = stripe(pid);
+        synchronized (s) {
+            Lock lock = s.locks.get(pid);
+            if (lock == null) {
+                lock = new Lock();
+                s.locks.put(pid, lock);
+            }
+            if (tid.equals(lock.exclusive) || (!exclusive && lock.shared.contains(tid)))
+                return;
+
+            boolean granted = false;
+            boolean waited = false;
+            try {
+                while (!grantable(lock, tid, exclusive)) {
+                    if (!waited) {
+                        lock.waiters.add(tid);
+                        if (exclusive)
+                            lock.exclusiveWaiters.add(tid);
+                        waited = true;
+                    }
+                    waitFor(tid, blockers(lock, tid, exclusive));
+                    try {
+                        s.wait();
+                    } catch (InterruptedException e) {
+                        // a victim is woken up by an interrupt
+                        stopWaiting(tid);
+                        throw new TransactionAbortedException();
+                    }
+                }
+                if (waited)
+                    stopWaiting(tid);
+                if (exclusive) {
+                    lock.shared.remove(tid);
+                    lock.exclusive = tid;
+                } else {
+                    lock.shared.add(tid);
+                }
+                granted = true;
+            } finally {
+                if (waited) {
+                    lock.waiters.remove(tid);
+                    lock.exclusiveWaiters.remove(tid);
+                }
+                if (!granted) {
+                    unblock(lock, tid);
+                    if (lock.isFree())
+                        s.locks.remove(pid);
+                    // readers held back for this writer may go on
+                    s.notifyAll();
+                }
+            }
+        }
+        Set<PageId> pages = held.get(tid);
+        if (pages == null) {
+            pages = Collections.newSetFromMap(new ConcurrentHashMap<PageId, Boolean>());
+            Set<PageId> old = held.putIfAbsent(tid, pages);
+            if (old != null)
+                pages = old;
+        }
+        pages.add(pid);
+    }
+
+    private static boolean grantable(Lock lock, TransactionId tid, boolean exclusive) {
+        if (lock.exclusive != null)
+            return false;
+        if (exclusive)
+            return lock.shared.isEmpty() || (lock.shared.size() == 1 && lock.shared.contains(tid));
+        return lock.exclusiveWaiters.isEmpty();
+    }
+
+    // the transactions a request that is not grantable waits for: the
+    // holders of the lock and, for a reader, the writers waiting before it
+    private static Set<TransactionId> blockers(Lock lock, TransactionId tid, boolean exclusive) {
+        HashSet<TransactionId> blockers = new HashSet<TransactionId>();
+        if (lock.exclusive != null)
+            blockers.add(lock.exclusive);
+        if (exclusive)
+            blockers.addAll(lock.shared);
+        else
+            blockers.addAll(lock.exclusiveWaiters);
+        blockers.remove(tid);
+        return blockers;
+    }
+
+    /**
+     * Records that a transaction waits for others, and breaks the deadlock
+     * this closes, if any, by choosing the youngest transaction of the cycle
+     * as victim.
+     *
+     * @throws DeadlockException if the transaction is the victim
+     */
+    private void waitFor(TransactionId tid, Set<TransactionId> blockers) throws DeadlockException {
+        synchronized (waitsFor) {
+            Waiter w = waitsFor.get(tid);
+            if (w == null) {
+                w = new Waiter(Thread.currentThread());
+                waitsFor.put(tid, w);
+            }
+            if (w.victim) {
+                waitsFor.remove(tid);
+                Thread.interrupted();
+                throw new DeadlockException();
+            }
+            w.blockers = blockers;
+
+            ArrayList<TransactionId> cycle = new ArrayList<TransactionId>();
+            if (!findCycle(tid, tid, cycle, new HashSet<TransactionId>()))
+                return;
+            TransactionId youngest = tid;
+            for (TransactionId t : cycle) {
+                if (t.getId() > youngest.getId())
+                    youngest = t;
+            }
+            deadlocks.incrementAndGet();
+            if (youngest.equals(tid)) {
+                waitsFor.remove(tid);
+                throw new DeadlockException();
+            }
+            Waiter victim = waitsFor.get(youngest);
+            victim.victim = true;
+            victim.thread.interrupt();
+        }
+    }
+
+    // depth-first search for a path of waiting transactions from t back to
+    // start; victims already chosen are on their way out and end no path
+    private boolean findCycle(TransactionId start, TransactionId t, ArrayList<TransactionId> path,
+            HashSet<TransactionId> visited) {
+        Waiter w = waitsFor.get(t);
+        if (w == null || w.victim || !visited.add(t))
+            return false;
+        path.add(t);
+        for (TransactionId b : w.blockers) {
+            if (b.equals(start) || findCycle(start, b, path, visited))
+                return true;
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    // a transaction no longer holds or waits for a lock, so its waiters no
+    // longer wait for it; they are woken up to find out what they wait for
+    // now, but until then stale edges could close a cycle that is not there
+    private void unblock(Lock lock, TransactionId tid) {
+        if (lock.waiters.isEmpty())
+            return;
+        synchronized (waitsFor) {
+            for (TransactionId t : lock.waiters) {
+                Waiter w = waitsFor.get(t);
+                if (w != null && w.blockers != null)
+                    w.blockers.remove(tid);
+            }
+        }
+    }
+
+    /**
+     * Removes a transaction that no longer waits from the wait-for graph.
+     *
+     * @throws DeadlockException if the transaction was chosen as a victim
+     *                           meanwhile
+     */
+    private void stopWaiting(TransactionId tid) throws DeadlockException {
+        synchronized (waitsFor) {
+            Waiter w = waitsFor.remove(tid);
+            if (w != null && w.victim) {
+                Thread.interrupted();
+                throw new DeadlockException();
+            }
+        }
+    }
+
+    /**
+     * Releases the lock a transaction holds on a page, if any.
+     */
+    public void release(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages != null)
+            pages.remove(pid);
+        unlock(tid, pid);
+    }
+
+    private void unlock(TransactionId tid, PageId pid) {
+        Stripe s = stripe(pid);
+        synchronized (s) {
+            Lock lock = s.locks.get(pid);
+            if (lock == null)
+                return;
+            if (tid.equals(lock.exclusive))
+                lock.exclusive = null;
+            else if (!lock.shared.remove(tid))
+                return;
+            unblock(lock, tid);
+            if (lock.isFree())
+                s.locks.remove(pid);
+            s.notifyAll();
+        }
+    }
+
+    /**
+     * Releases all locks a transaction holds.
+     */
+    public void releaseAll(TransactionId tid) {
+        Set<PageId> pages = held.remove(tid);
+        if (pages == null)
+            return;
+        for (PageId pid : pages)
+            unlock(tid, pid);
+    }
+
+    /**
+     * @return true if the transaction holds a lock on the page
+     */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        Set<PageId> pages = held.get(tid);
+        return pages != null && pages.contains(pid);
+    }
+
+    /**
+     * @return true if the transaction holds an exclusive lock on the page
+     */
+    public boolean holdsExclusiveLock(TransactionId tid, PageId pid) {
+        Stripe s = stripe(pid);
+        synchronized (s) {
+            Lock lock = s.locks.get(pid);
+            return lock != null && tid.equals(lock.exclusive);
+        }
+    }
+
+    /**
+     * @return true if some transaction holds an exclusive lock on the page
+     */
+    public boolean isLockedExclusively(PageId pid) {
+        return getExclusiveHolder(pid) != null;
+    }
+
+    /**
+     * @return the transaction holding an exclusive lock on the page, or null
+     * if none does
+     */
+    public TransactionId getExclusiveHolder(PageId pid) {
+        Stripe s = stripe(pid);
+        synchronized (s) {
+            Lock lock = s.locks.get(pid);
+            return lock == null ? null : lock.exclusive;
+        }
+    }
+
+    /**
+     * @return the pages the transaction holds a lock on
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        Set<PageId> pages = held.get(tid);
+        if (pages == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(pages);
+    }
+}
@@ -3,7 +3,12 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -32,6 +37,96 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Log buffer: </u>
+<p>
+
+Records are not written to the file by the threads that log them.
+Each record is serialized outside the LogFile monitor, then copied
+into an in-memory log buffer under it and assigned a log sequence
+number (LSN), the position of the record in the stream of everything
+ever logged.  LSNs do not change when the log is truncated.
+A background writer thread drains the buffer with large positional
+writes through FileChannels, and forces the log when someone waits
+for durability: {@link #flushTo} blocks until every record below an
+LSN is on disk.  The buffer is double buffered, so appends continue
+while the writer writes.  Methods that read the log file back (such as
+logTruncate) first drain the buffer.
+
+<p>
+
+<u> Group commit: </u>
+<p>
+
+A transaction's COMMIT record is appended like any other record, and
+the committer then waits outside the LogFile monitor for the writer to
+force it.  Before forcing for committers, the writer waits up to
+{@link #getGroupCommitDelay()} microseconds while other transactions
+are still running (or until {@link #getGroupCommitSize()} committers
+are waiting), so that concurrent commits share one fsync.
+
+<p>
+
+<u> Recovery: </u>
+<p>
+
+The buffer pool steals and does not force: it may write pages of
+running transactions to disk, and commits only wait for their COMMIT
+record to be on disk, never for pages.  Write-ahead logging makes this
+safe.  BufferPool remembers the LSN of the last record that changed
+each cached page (its page LSN), and it flushes the log up to that
+record before it writes the page.  It also keeps a dirty page table:
+for each page not yet written since it was changed, the LSN of the
+first record that changed it (its recovery LSN).
+
+<p>
+
+Checkpoints are fuzzy: {@link #logCheckpoint} writes no pages and
+does not stop transactions.  It notes the LSN at which it begins and
+the running transactions, copies the dirty page table of the buffer
+pool, and logs all three in a CHECKPOINT record.  A page cleaner
+thread in BufferPool writes the pages that were changed first a few
+at a time, which moves the point where redo starts, and with it the
+start of the log that must be kept, forward.
+
+<p>
+
+{@link #recover} works in three passes, as in ARIES:
+<ul>
+<li> analysis starts with the tables of the last checkpoint and
+reads the log from the LSN at which the checkpoint began, rebuilding
+the table of running transactions and the dirty page table;
+<li> redo repeats history: it replays every change from the smallest
+recovery LSN onwards on the pages that may not have been written since,
+including the changes of transactions that will be rolled back.  The
+records are dispatched to {@link #getRecoveryThreads()} workers by
+page, so the changes of a page are replayed in log order while
+different pages are replayed in parallel;
+<li> undo rolls back the transactions that did not finish, latest
+change first, and writes a compensation log record (CLR) for every
+change it undoes.
+</ul>
+Rollback of an aborting transaction also writes CLRs.  A CLR is only
+ever redone; it names the next change of its transaction that remains
+to be undone, so a rollback interrupted by a crash continues where it
+stopped instead of undoing changes twice.  Changes are logged as slot
+images (see {@link DeltaPage}) or page images, which can be installed
+any number of times, so pages do not need to store their LSN on disk.
+Changes of transactions that never logged a BEGIN record are redone
+but never undone.
+
+<p>
+
+<u> Segments: </u>
+<p>
+
+The records are stored in segment files of a fixed size, created at
+their full size so that appending never grows a file.  Truncating the
+log does not copy it: the segments that only hold records before the
+new start of the log are renamed to become segments past its end, up
+to a few spare segments, and deleted otherwise.  Old records left in a
+recycled segment are never mistaken for new ones, since each record
+ends with its own LSN.
 */
 
 /**
@@ -39,33 +134,62 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The log file itself only holds a header: the integer MAGIC, the
+integer FORMAT_VERSION of the format described here, a long integer
+representing the LSN of the last written checkpoint, or -1 if there
+are no checkpoints, the long integer LSN of the first record of the
+log, and the integer size of its segments.
+
+<li> The records are stored in segment files, named after the log
+file followed by a dot and the number of the segment.  The byte with
+LSN l is stored in segment l / (segment size), at offset
+l % (segment size).  Records may span segments.
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> Log records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer length of the whole
+record, a byte type and a long integer transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with an integer CRC-32 checksum of the type,
+transaction id, data and LSN of the record, and the long integer LSN
+of the record.  A record whose length, checksum or LSN does not match
+is the torn end of the log, and it and everything after it is ignored.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, DELTA and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
 <li>UPDATE RECORDS consist of two entries, a before image and an
 after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
-
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+methods.  A page is stored as a byte page kind, a byte count of the
+integers of its serialized PageId followed by those integers, and an
+integer length followed by the page data.  The page kind selects the
+PageFactory (see registerPageKind()) that recreates the page.  See
+LogFile.print() for an example.
+
+<li>DELTA records hold the changes made to the slots of a DeltaPage:
+the page kind and PageId integers of the page, as for an UPDATE
+record, followed by a PageDelta (see PageDelta.write()) with the
+contents of every changed slot before and after the change.  They are
+written instead of UPDATE records for pages that implement DeltaPage,
+and are much smaller, since a slot holds a single tuple or B+ tree
+entry.
+
+<li>CLR records hold a long integer LSN, the next change of their
+transaction to undo (or -1 if none is left), followed by the byte type
+of a change record and the data of a change record of that type which
+undoes the change.
+
+<li> CHECKPOINT records hold the LSN at which the checkpoint began,
+the transactions active at that point with the LSN of their first log
+record, and the dirty page table of the buffer pool.  The format of
+the record is the long integer LSN, an integer count of the active
+transactions followed by a long integer transaction id and a long
+integer first record LSN for each, and an integer count of the dirty
+pages followed by the page kind and PageId integers (as for an UPDATE
+record) and the long integer recovery LSN of each page.
 
 </ul>
 
@@ -82,17 +206,184 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int DELTA_RECORD = 6;
+    static final int CLR_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    static final String[] RECORD_NAMES = { null, "ABORT", "COMMIT", "UPDATE", "BEGIN", "CHECKPOINT", "DELTA", "CLR" };
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
-    long currentOffset = -1;//protected by this
+    static final int MAGIC = 0x53444c47; // "SDLG"
+    static final int FORMAT_VERSION = 4;
+    static final int CHECKPOINT_POINTER = 2 * INT_SIZE; // offsets in the header
+    static final int START_POINTER = CHECKPOINT_POINTER + LONG_SIZE;
+    static final int SEGMENT_SIZE_POINTER = START_POINTER + LONG_SIZE;
+    static final int HEADER_SIZE = SEGMENT_SIZE_POINTER + INT_SIZE;
+    // the length, type and tid at the start and checksum and offset at
+    // the end of every record
+    static final int RECORD_OVERHEAD = INT_SIZE + 1 + LONG_SIZE + INT_SIZE + LONG_SIZE;
+
+    /**
+     * Recreates pages of one kind, and their ids, when update records are
+     * read back from the log.
+     *
+     * @see #registerPageKind
+     */
+    public interface PageFactory {
+        /**
+         * @param data the integers returned by {@link PageId#serialize}
+         * @return the page id they represent
+         */
+        PageId createId(int[] data);
+
+        /**
+         * @param id   an id returned by {@link #createId}
+         * @param data the data returned by {@link Page#getPageData}
+         * @return the page with that id and data
+         */
+        Page createPage(PageId id, byte[] data) throws IOException;
+    }
+
+    private static final ConcurrentHashMap<Integer, PageFactory> pageFactories = new ConcurrentHashMap<Integer, PageFactory>();
+    private static final ConcurrentHashMap<Class<?>, Integer> pageKinds = new ConcurrentHashMap<Class<?>, Integer>();
+    // a kind whose factory recreates ids of each PageId class, for logging
+    // page ids without their pages
+    private static final ConcurrentHashMap<Class<?>, Integer> idKinds = new ConcurrentHashMap<Class<?>, Integer>();
+
+    static {
+        registerPageKind(1, HeapPage.class, new PageFactory() {
+            public PageId createId(int[] data) {
+                return new HeapPageId(data[0], data[1]);
+            }
+
+            public Page createPage(PageId id, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) id, data);
+            }
+        });
+        registerPageKind(2, BTreeRootPtrPage.class, new BTreePageFactory() {
+            public Page createPage(PageId id, byte[] data) throws IOException {
+                return new BTreeRootPtrPage((BTreePageId) id, data);
+            }
+        });
+        registerPageKind(3, BTreeInternalPage.class, new BTreePageFactory() {
+            public Page createPage(PageId id, byte[] data) throws IOException {
+                return new BTreeInternalPage((BTreePageId) id, data, keyField(id));
+            }
+        });
+        registerPageKind(4, BTreeLeafPage.class, new BTreePageFactory() {
+            public Page createPage(PageId id, byte[] data) throws IOException {
+                return new BTreeLeafPage((BTreePageId) id, data, keyField(id));
+            }
+        });
+        registerPageKind(5, BTreeHeaderPage.class, new BTreePageFactory() {
+            public Page createPage(PageId id, byte[] data) throws IOException {
+                return new BTreeHeaderPage((BTreePageId) id, data);
+            }
+        });
+    }
+
+    private static abstract class BTreePageFactory implements PageFactory {
+        public PageId createId(int[] data) {
+            return new BTreePageId(data[0], data[1], data[2]);
+        }
+
+        // the key field of the B+ tree file the page belongs to
+        static int keyField(PageId id) {
+            return ((BTreeFile) Database.getCatalog().getDatabaseFile(id.getTableId())).keyField();
+        }
+    }
+
+    /**
+     * Registers the factory that recreates pages of a class when update
+     * records are read back from the log. Pages are logged with the kind
+     * instead of their class name, so a kind must not be reused for another
+     * class while logs that contain it may still be read.
+     *
+     * @param kind      the tag of the page class in the log, from 1 to 255
+     * @param pageClass the class of the pages
+     * @param factory   creates pages of that class
+     */
+    public static void registerPageKind(int kind, Class<? extends Page> pageClass, PageFactory factory) {
+        if (kind < 1 || kind > 255)
+            throw new IllegalArgumentException("page kind must be between 1 and 255");
+        synchronized (pageFactories) {
+            Integer old = pageKinds.get(pageClass);
+            if ((old != null && old != kind) || (old == null && pageFactories.containsKey(kind)))
+                throw new IllegalArgumentException("page kind " + kind + " or " + pageClass.getName() + " already registered");
+            pageFactories.put(kind, factory);
+            pageKinds.put(pageClass, kind);
+        }
+    }
+
+    long currentLsn = -1;//protected by this
+    private long startLsn = 0; // of the first record of the log
+    private long segmentBytes; // the size of the segments of this log
+    // the segment files open for writing, by number
+    private final TreeMap<Long, RandomAccessFile> segments = new TreeMap<Long, RandomAccessFile>();
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
+    /**
+     * Default value of {@link #getGroupCommitDelay()}, in microseconds.
+     */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 1000;
+
+    /**
+     * Default value of {@link #getGroupCommitSize()}.
+     */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+    /**
+     * Default value of {@link #getBufferSize()}, in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Default value of {@link #getSegmentSize()}, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+
+    /**
+     * Default value of {@link #getRecoveryThreads()}: the number of
+     * processors.
+     */
+    public static final int DEFAULT_RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // the most segments kept for reuse past the end of the log
+    private static final int MAX_SPARE_SEGMENTS = 4;
+
+    // how long the writer thread waits for work before it exits; it is
+    // started again by the next request
+    private static final long WRITER_IDLE_MILLIS = 1000;
+
+    private static volatile long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+    private static volatile int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private static volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+    private static volatile int segmentSize = DEFAULT_SEGMENT_SIZE;
+    private static volatile int recoveryThreads = DEFAULT_RECOVERY_THREADS;
+
+    // tells a redo worker that no records follow
+    private static final LogRecord END_OF_REDO = new LogRecord(new byte[1 + LONG_SIZE], 0);
+    private long redoCount = 0; // of the last recovery
+    private long redoNanos = 0;
+
+    // the log buffer and writer state below is protected by this
+    private ByteBuffer fill; // records not yet handed to the writer
+    private ByteBuffer spare; // null while the writer writes it
+    private Thread writer; // null when no writer is running
+    private boolean writing = false; // the writer is writing a buffer
+    private boolean full = false; // an append waits for buffer space
+    private long writtenLsn = -1; // records below this are in the file
+    private long flushedLsn = -1; // records below this are on disk
+    private long forceRequest = -1; // someone waits for records below this
+    private boolean urgent = false; // a waiter that is not committing
+    private int committers = 0; // transactions waiting in logCommit
+    private IOException writeError;
+    private long numForces = 0;
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -108,6 +399,8 @@ public class LogFile {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
         recoveryUndecided = true;
+        fill = ByteBuffer.allocate(bufferSize);
+        spare = ByteBuffer.allocate(bufferSize);
 
         // install shutdown hook to force cleanup on close
         // Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -127,17 +420,232 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
+            closeSegments();
+            for (long n : segmentNumbers())
+                segmentFile(n).delete();
             raf.seek(0);
             raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(FORMAT_VERSION);
             raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            raf.writeLong(0);
+            raf.writeInt(segmentSize);
+            raf.getFD().sync();
+            segmentBytes = segmentSize;
+            startLsn = currentLsn = 0;
+            writtenLsn = flushedLsn = currentLsn;
+        }
+    }
+
+    /**
+     * @return the file that holds the segment of the log with the given
+     * number
+     */
+    File segmentFile(long number) {
+        return new File(logFile.getPath() + "." + number);
+    }
+
+    // the numbers of the segment files of the log, in increasing order
+    private long[] segmentNumbers() {
+        String prefix = logFile.getName() + ".";
+        String[] names = logFile.getAbsoluteFile().getParentFile().list();
+        ArrayList<Long> numbers = new ArrayList<Long>();
+        for (int i = 0; names != null && i < names.length; i++) {
+            if (!names[i].startsWith(prefix) || names[i].length() == prefix.length())
+                continue;
+            String suffix = names[i].substring(prefix.length());
+            boolean digits = true;
+            for (int j = 0; j < suffix.length(); j++)
+                digits &= Character.isDigit(suffix.charAt(j));
+            if (digits)
+                numbers.add(Long.parseLong(suffix));
+        }
+        Collections.sort(numbers);
+        long[] result = new long[numbers.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = numbers.get(i);
+        return result;
+    }
+
+    // the channel of a segment, opened for writing; a segment that does not
+    // exist yet is created at its full size.  Caller must hold the LogFile
+    // monitor.
+    private FileChannel segment(long number) throws IOException {
+        RandomAccessFile f = segments.get(number);
+        if (f == null) {
+            f = new RandomAccessFile(segmentFile(number), "rw");
+            if (f.length() < segmentBytes)
+                f.setLength(segmentBytes);
+            segments.put(number, f);
         }
+        return f.getChannel();
+    }
+
+    // close the segments open for writing below number
+    private void closeSegments(long number) throws IOException {
+        Map<Long, RandomAccessFile> below = segments.headMap(number);
+        for (RandomAccessFile f : below.values())
+            f.close();
+        below.clear();
+    }
+
+    private void closeSegments() throws IOException {
+        closeSegments(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return the LSN at the end of the last segment file; no record of the
+     * log extends past it
+     */
+    synchronized long getFileEnd() {
+        long[] numbers = segmentNumbers();
+        if (numbers.length == 0)
+            return startLsn;
+        return (numbers[numbers.length - 1] + 1) * segmentBytes;
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * @return the longest time, in microseconds, the log writer waits for
+     * running transactions to commit before forcing the log for the
+     * transactions that are already committing
+     */
+    public static long getGroupCommitDelay() {
+        return groupCommitDelay;
+    }
+
+    /**
+     * Sets the longest time, in microseconds, the log writer waits for
+     * running transactions to join a group commit. 0 forces the log as soon
+     * as a transaction commits; commits that arrive during a force are still
+     * grouped into the next one.
+     */
+    public static void setGroupCommitDelay(long micros) {
+        if (micros < 0)
+            throw new IllegalArgumentException("group commit delay must not be negative");
+        groupCommitDelay = micros;
+    }
+
+    /**
+     * @return the number of waiting committers at which the log writer stops
+     * waiting for more and forces the log
+     */
+    public static int getGroupCommitSize() {
+        return groupCommitSize;
+    }
+
+    /**
+     * Sets the number of waiting committers at which the log writer forces
+     * the log without waiting any longer.
+     */
+    public static void setGroupCommitSize(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("group commit size must be positive");
+        groupCommitSize = size;
+    }
+
+    /**
+     * @return the size, in bytes, of each half of the log buffer of log
+     * files created from now on
+     */
+    public static int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Sets the size, in bytes, of each half of the log buffer of log files
+     * created from now on. Records larger than the buffer are still logged.
+     */
+    public static void setBufferSize(int bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("log buffer size must be positive");
+        bufferSize = bytes;
+    }
+
+    /**
+     * @return the size, in bytes, of the segment files of logs created
+     * from now on
+     */
+    public static int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets the size, in bytes, of the segment files of logs created from
+     * now on. Existing logs keep the size they were created with.
+     */
+    public static void setSegmentSize(int bytes) {
+        if (bytes < 1024)
+            throw new IllegalArgumentException("log segment size must be at least 1024 bytes");
+        segmentSize = bytes;
+    }
+
+    /**
+     * @return the number of threads that redo changes during recovery
+     */
+    public static int getRecoveryThreads() {
+        return recoveryThreads;
+    }
+
+    /**
+     * Sets the number of threads that redo changes during recovery. Each
+     * page is redone by one of them.
+     */
+    public static void setRecoveryThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("recovery threads must be positive");
+        recoveryThreads = threads;
+    }
+
+    /**
+     * @return the number of log records the last call of {@link #recover}
+     * redid
+     */
+    public synchronized long getRedoCount() {
+        return redoCount;
+    }
+
+    /**
+     * @return the time, in nanoseconds, the redo pass of the last call of
+     * {@link #recover} took; with {@link #getRedoCount()} it gives the
+     * recovery throughput
+     */
+    public synchronized long getRedoNanos() {
+        return redoNanos;
+    }
+
+    /**
+     * @return the number of times the log has been forced to disk
+     */
+    public synchronized long getForceCount() {
+        return numForces;
+    }
+
+    /**
+     * @return the LSN the next log record will get, that is the end of the
+     * log including records that are still buffered
+     */
+    public synchronized long getCurrentLsn() {
+        return currentLsn;
+    }
+
+    /**
+     * @return the LSN of the first record in the log file; the records
+     * before it were truncated
+     */
+    synchronized long getStartLsn() {
+        return startLsn;
+    }
+
+    /**
+     * @return the LSN below which every log record is on disk
+     */
+    public synchronized long getFlushedLsn() {
+        return flushedLsn;
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -158,10 +666,7 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                append(record(ABORT_RECORD, tid.getId()));
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,7 +674,8 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        transactions that commit at about the same time.
 
         @param tid The committing transaction.
     */
@@ -178,12 +684,9 @@ public class LogFile {
         Debug.log("COMMIT " + tid.getId());
         //should we verify that this is a live transaction?
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
+        append(record(COMMIT_RECORD, tid.getId()));
         tidToFirstLogRecord.remove(tid.getId());
+        awaitFlush(currentLsn, true);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -194,11 +697,13 @@ public class LogFile {
 
         @see Page#getBeforeImage
     */
-    public  synchronized void logWrite(TransactionId tid, Page before,
+    public void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        logUpdate(tid, before, after);
+    }
+
+    private long logUpdate(TransactionId tid, Page before, Page after) throws IOException {
         /* update record conists of
 
            record type
@@ -207,92 +712,141 @@ public class LogFile {
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = record(UPDATE_RECORD, tid.getId(), bytes);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writePageData(out,before);
+        writePageData(out,after);
 
-        Debug.log("WRITE OFFSET = " + currentOffset);
+        synchronized (this) {
+            preAppend();
+            long lsn = append(bytes.toByteArray());
+            Debug.log("WRITE, offset = " + lsn);
+            return lsn;
+        }
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /** Write the changes tid made to a page since they were last
+        logged.  The changes of a DeltaPage are written as a DELTA
+        record holding the changed slots; other pages are written as an
+        UPDATE record with their before image, which is then reset to
+        the current contents of the page.
+        @param tid The transaction that changed the page
+        @param p The page
+        @return The LSN of the record, the new page LSN of the page, or
+        -1 if the page has not changed
+    */
+    public long logChanges(TransactionId tid, Page p) throws IOException {
+        if (!(p instanceof DeltaPage)) {
+            Page before = p.getBeforeImage();
+            if (Arrays.equals(before.getPageData(), p.getPageData()))
+                return -1;
+            long lsn = logUpdate(tid, before, p);
+            p.setBeforeImage();
+            return lsn;
+        }
+        PageDelta delta = ((DeltaPage) p).takeDelta();
+        if (delta == null)
+            return -1;
+        return logDelta(tid, p, delta);
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    private long logDelta(TransactionId tid, Page p, PageDelta delta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = record(DELTA_RECORD, tid.getId(), bytes);
+        writePageId(out, p);
+        delta.write(out);
+
+        synchronized (this) {
+            preAppend();
+            long lsn = append(bytes.toByteArray());
+            Debug.log("DELTA, offset = " + lsn);
+            return lsn;
+        }
+    }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+    void writePageData(DataOutput out, Page p) throws IOException{
+        //page data is:
+        // page kind
+        // id ints
+        // id data
+        // page bytes
+        // page data
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
+        writePageId(out, p);
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        out.writeInt(pageData.length);
+        out.write(pageData);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /**
+     * @return a copy of a page, recreated from its data by the factory of
+     * its kind
+     */
+    static Page copyPage(Page p) throws IOException {
+        Integer kind = pageKinds.get(p.getClass());
+        if (kind == null)
+            throw new IOException("no page kind registered for " + p.getClass().getName());
+        return pageFactory(kind).createPage(p.getId(), p.getPageData());
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    Page readPageData(DataInput in) throws IOException {
+        PageFactory factory = pageFactory(in.readUnsignedByte());
+        PageId pid = readPageId(in, factory);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return factory.createPage(pid, pageData);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    // the kind of a page and the integers of its id
+    private static void writePageId(DataOutput out, Page p) throws IOException {
+        Integer kind = pageKinds.get(p.getClass());
+        if (kind == null)
+            throw new IOException("no page kind registered for " + p.getClass().getName());
+        writePageId(out, kind, p.getId());
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    // a page id without its page, with any kind that recreates the id
+    private static void writePageId(DataOutput out, PageId pid) throws IOException {
+        Integer kind = idKinds.get(pid.getClass());
+        for (Iterator<Map.Entry<Integer, PageFactory>> it = pageFactories.entrySet().iterator(); kind == null
+                && it.hasNext();) {
+            Map.Entry<Integer, PageFactory> e = it.next();
+            try {
+                if (pid.equals(e.getValue().createId(pid.serialize())))
+                    kind = e.getKey();
+            } catch (RuntimeException ex) {
+                // the id does not fit this kind
+            }
+        }
+        if (kind == null)
+            throw new IOException("no page kind registered for " + pid.getClass().getName());
+        idKinds.put(pid.getClass(), kind);
+        writePageId(out, kind, pid);
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    private static void writePageId(DataOutput out, int kind, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        out.writeByte(kind);
+        out.writeByte(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    private static PageFactory pageFactory(int kind) throws IOException {
+        PageFactory factory = pageFactories.get(kind);
+        if (factory == null)
+            throw new IOException("unknown page kind " + kind + " in log");
+        return factory;
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    private static PageId readPageId(DataInput in, PageFactory factory) throws IOException {
+        int idInfo[] = new int[in.readUnsignedByte()];
+        for (int i = 0; i < idInfo.length; i++) {
+            idInfo[i] = in.readInt();
         }
-        return newPage;
-
+        return factory.createId(idInfo);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,52 +861,277 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        tidToFirstLogRecord.put(tid.getId(), append(record(BEGIN_RECORD, tid.getId())));
 
-        Debug.log("BEGIN OFFSET = " + currentOffset);
+        Debug.log("BEGIN OFFSET = " + currentLsn);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+    // a record without data beyond its type and transaction id
+    private static byte[] record(int type, long tid) {
+        return ByteBuffer.allocate(1 + LONG_SIZE).put((byte) type).putLong(tid).array();
+    }
+
+    // a stream to serialize a record with data into; it starts with the
+    // type and transaction id
+    private static DataOutputStream record(int type, long tid, ByteArrayOutputStream bytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(tid);
+        return out;
+    }
+
+    // the record type, transaction id and data framed by the length
+    // before and the checksum and offset after them
+    private static byte[] frame(byte[] rec, long lsn) {
+        return ByteBuffer.allocate(rec.length + RECORD_OVERHEAD - 1 - LONG_SIZE)
+            .putInt(rec.length + RECORD_OVERHEAD - 1 - LONG_SIZE)
+            .put(rec).putInt(checksum(rec, 0, rec.length, lsn)).putLong(lsn).array();
+    }
+
+    private static int checksum(byte[] rec, int off, int len, long lsn) {
+        CRC32 crc = new CRC32();
+        crc.update(rec, off, len);
+        for (int i = 56; i >= 0; i -= 8)
+            crc.update((int) (lsn >>> i));
+        return (int) crc.getValue();
+    }
+
+    /** Append a serialized record (type, transaction id and data) to
+        the log buffer, framed by its length, checksum and offset, and
+        return that offset (its LSN).  Waits for the writer if the
+        buffer is full.  Caller must hold the LogFile monitor and have
+        called preAppend().
+    */
+    private long append(byte[] rec) throws IOException {
+        int len = rec.length + RECORD_OVERHEAD - 1 - LONG_SIZE;
+        while (fill.remaining() < len) {
+            if (fill.position() == 0) {
+                // larger than the whole buffer
+                fill = ByteBuffer.allocate(len);
+                break;
+            }
+            checkWriter();
+            if (!full || writer == null) {
+                full = true;
+                wakeWriter();
+            }
+            waitLog(0);
+        }
+        long lsn = currentLsn;
+        fill.put(frame(rec, lsn));
+        currentLsn += len;
+        if (fill.position() >= fill.capacity() / 2)
+            wakeWriter();
+        return lsn;
+    }
+
+    /** Block until every log record below lsn is on disk.
+        @param lsn An LSN returned by getCurrentLsn(), or the LSN of
+        the record following the last one that must be durable
+    */
+    public synchronized void flushTo(long lsn) throws IOException {
+        awaitFlush(Math.min(lsn, currentLsn), false);
+    }
+
+    // wait for the writer to force the log up to lsn; committers let the
+    // writer gather a group, other callers make it force right away
+    private void awaitFlush(long lsn, boolean commit) throws IOException {
+        if (commit)
+            committers++;
+        try {
+            while (flushedLsn < lsn) {
+                checkWriter();
+                // only notify when the request changes, so that waiters
+                // woken by each other do not keep the writer from running
+                if (forceRequest < lsn || (!commit && !urgent) || writer == null) {
+                    forceRequest = Math.max(forceRequest, lsn);
+                    if (!commit)
+                        urgent = true;
+                    wakeWriter();
+                }
+                waitLog(0);
+            }
+        } finally {
+            if (commit)
+                committers--;
+        }
+    }
+
+    // write and force everything appended so far, and wait until the
+    // writer is idle, so that the log file can be read or rewritten
+    private void drain() throws IOException {
+        awaitFlush(currentLsn, false);
+        while (writing)
+            waitLog(0);
+    }
+
+    private void checkWriter() throws IOException {
+        if (writeError != null)
+            throw new IOException("log writer failed", writeError);
+    }
+
+    private void wakeWriter() {
+        if (writer == null) {
+            writer = new Thread("log writer " + logFile.getName()) {
+                public void run() {
+                    try {
+                        while (writeBuffer())
+                            ;
+                    } catch (IOException e) {
+                        synchronized (LogFile.this) {
+                            writeError = e;
+                            writer = null;
+                            LogFile.this.notifyAll();
+                        }
+                    }
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    // wait on the LogFile monitor, which the caller holds, for at most
+    // millis milliseconds, or until notified if millis is 0
+    private void waitLog(long millis) throws InterruptedIOException {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for the log writer");
+        }
+    }
+
+    /** One round of the writer thread: wait for a full buffer or a
+        request to force, write the buffer, and force if requested.
+        @return false if the writer was idle for long enough to exit
+    */
+    private boolean writeBuffer() throws IOException {
+        ByteBuffer b;
+        long start, end; // the LSNs the buffer starts and ends at
+        long size, first; // the segment size, the first segment to write or force
+        boolean force;
+        ArrayList<FileChannel> chs = new ArrayList<FileChannel>();
+        synchronized (this) {
+            long idleSince = System.currentTimeMillis();
+            while (!full && fill.position() < fill.capacity() / 2 && forceRequest <= flushedLsn) {
+                long left = idleSince + WRITER_IDLE_MILLIS - System.currentTimeMillis();
+                if (left <= 0) {
+                    writer = null;
+                    return false;
+                }
+                waitLog(left);
+            }
+            if (forceRequest > flushedLsn)
+                gatherGroup();
+            b = fill;
+            fill = spare;
+            spare = null;
+            full = false;
+            start = writtenLsn;
+            end = currentLsn;
+            force = forceRequest > flushedLsn;
+            writing = true;
+            size = segmentBytes;
+            first = Math.min(start, flushedLsn) / size;
+            closeSegments(first);
+            for (long n = first; n * size < end; n++)
+                chs.add(segment(n));
+        }
+        boolean done = false;
+        try {
+            b.flip();
+            long pos = start;
+            while (b.hasRemaining()) {
+                FileChannel ch = chs.get((int) (pos / size - first));
+                int limit = b.limit();
+                b.limit(b.position() + (int) Math.min(b.remaining(), size - pos % size));
+                while (b.hasRemaining())
+                    pos += ch.write(b, pos % size);
+                b.limit(limit);
+            }
+            // the segments do not grow, so only their data needs forcing
+            if (force)
+                for (FileChannel ch : chs)
+                    ch.force(false);
+            done = true;
+        } finally {
             synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
+                b.clear();
+                spare = b;
+                writing = false;
+                if (done) {
+                    writtenLsn = end;
+                    if (force) {
+                        flushedLsn = end;
+                        numForces++;
+                        urgent = false;
+                    }
                 }
+                notifyAll();
+            }
+        }
+        return true;
+    }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+    // while only committers wait, give the transactions that are still
+    // running a chance to commit before forcing the log; the caller holds
+    // the LogFile monitor, which committers take to append their records
+    private void gatherGroup() throws IOException {
+        long deadline = System.nanoTime() + groupCommitDelay * 1000;
+        while (!urgent && committers < groupCommitSize && !tidToFirstLogRecord.isEmpty()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                break;
+            try {
+                wait(left / 1000000, (int) (left % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while gathering a group commit");
             }
         }
+    }
+
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it writes no pages, and transactions keep
+        running while it is taken.
+    */
+    public void logCheckpoint() throws IOException {
+        long begin;
+        HashMap<Long, Long> running;
+        synchronized (this) {
+            preAppend();
+            begin = currentLsn;
+            running = new HashMap<Long, Long>(tidToFirstLogRecord);
+        }
+        // a page changed by a record before begin is either in the table
+        // or written; pages changed later are found by analysis
+        Map<PageId, Long> dirty = Database.getBufferPool().getDirtyPageTable();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = record(CHECKPOINT_RECORD, -1, bytes); //no tid , but leave space for convenience
+        out.writeLong(begin);
+        out.writeInt(running.size());
+        for (Map.Entry<Long, Long> e : running.entrySet()) {
+            Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+            out.writeLong(e.getKey());
+            out.writeLong(e.getValue());
+        }
+        out.writeInt(dirty.size());
+        for (Map.Entry<PageId, Long> e : dirty.entrySet()) {
+            writePageId(out, e.getKey());
+            out.writeLong(e.getValue());
+        }
+
+        synchronized (this) {
+            long cp = append(bytes.toByteArray());
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            awaitFlush(currentLsn, false);
+            raf.seek(CHECKPOINT_POINTER);
+            raf.writeLong(cp);
+            raf.getFD().sync();
+        }
 
         logTruncate();
     }
@@ -361,103 +1140,180 @@ public class LogFile {
         consumption */
     public synchronized void logTruncate() throws IOException {
         preAppend();
-        raf.seek(0);
+        drain();
+        raf.seek(CHECKPOINT_POINTER);
         long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
+        long minLogRecord = readCheckpoint(cpLoc, currentLsn).start();
+
+        // we can truncate everything before minLogRecord: the segments that
+        // hold nothing else are recycled as segments past the end of the log
+        raf.seek(START_POINTER);
+        raf.writeLong(minLogRecord);
+        raf.getFD().sync();
+        startLsn = minLogRecord;
+        closeSegments();
+        long[] numbers = segmentNumbers();
+        long last = currentLsn / segmentBytes, next = last + 1;
+        int spares = 0, recycled = 0, deleted = 0;
+        for (long n : numbers) {
+            if (n > last)
+                spares++;
+            next = Math.max(next, n + 1);
+        }
+        for (long n : numbers) {
+            if (n >= minLogRecord / segmentBytes)
+                break;
+            if (spares < MAX_SPARE_SEGMENTS && segmentFile(n).renameTo(segmentFile(next))) {
+                next++;
+                spares++;
+                recycled++;
+            } else if (segmentFile(n).delete()) {
+                deleted++;
             }
+        }
 
-            int numOutstanding = raf.readInt();
+        Debug.log("TRUNCATING LOG; NEW START : " + minLogRecord + " RECYCLED " + recycled + " SEGMENTS, DELETED " + deleted);
+        //print();
+    }
 
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+    /** The contents of a CHECKPOINT record. */
+    static class Checkpoint {
+        final long begin; // the LSN at which the checkpoint began
+        // the first LSN of each transaction running at begin
+        final HashMap<Long, Long> running = new HashMap<Long, Long>();
+        // the dirty page table at begin
+        final HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+
+        Checkpoint(LogRecord r) throws IOException {
+            DataInputStream data = r.data();
+            begin = data.readLong();
+            for (int n = data.readInt(); n > 0; n--)
+                running.put(data.readLong(), data.readLong());
+            for (int n = data.readInt(); n > 0; n--)
+                dirty.put(readPageId(data, pageFactory(data.readUnsignedByte())), data.readLong());
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+        // the first LSN recovery may need: where analysis starts, the first
+        // record of a running transaction or the first change of a page
+        // not yet written
+        long start() {
+            long start = begin;
+            for (long lsn : running.values())
+                start = Math.min(start, lsn);
+            for (long lsn : dirty.values())
+                start = Math.min(start, lsn);
+            return start;
+        }
+    }
 
-        raf.seek(minLogRecord);
+    private Checkpoint readCheckpoint(long cp, long end) throws IOException {
+        DataInputStream in = openLog(cp);
+        LogRecord r;
+        try {
+            r = readRecord(in, cp, end);
+        } finally {
+            in.close();
+        }
+        if (r == null || r.type != CHECKPOINT_RECORD)
+            throw new IOException("Checkpoint pointer does not point to checkpoint record");
+        return new Checkpoint(r);
+    }
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
+    /** A log record read back from the log file. */
+    static class LogRecord {
+        final int type;
+        final long tid;
+        final int length; // of the whole record in the file
+        final byte[] bytes; // the type, tid and data, as passed to append()
+
+        LogRecord(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+            ByteBuffer b = ByteBuffer.wrap(bytes);
+            this.type = b.get();
+            this.tid = b.getLong();
+        }
 
-                Debug.log("NEW START = " + newStart);
+        // the data of the record, after its type and tid
+        DataInputStream data() {
+            return new DataInputStream(new ByteArrayInputStream(bytes, 1 + LONG_SIZE, bytes.length - 1 - LONG_SIZE));
+        }
+    }
 
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+    /** Open a buffered stream over the segments of the log,
+        positioned at the record with the given LSN.  The stream ends
+        with the last segment file.  The log buffer must have been
+        drained.
+    */
+    DataInputStream openLog(final long lsn) throws IOException {
+        final long size;
+        DataInputStream header = new DataInputStream(new FileInputStream(logFile));
+        try {
+            if (header.readInt() != MAGIC)
+                throw new IOException(logFile + " is not a SimpleDB log file");
+            int version = header.readInt();
+            if (version != FORMAT_VERSION)
+                throw new IOException("unsupported log format version " + version);
+            header.readLong(); // the checkpoint
+            header.readLong(); // the first LSN
+            size = header.readInt();
+        } finally {
+            header.close();
+        }
+        Enumeration<InputStream> segs = new Enumeration<InputStream>() {
+            long next = lsn / size;
 
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
+            public boolean hasMoreElements() {
+                return segmentFile(next).exists();
+            }
 
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
+            public InputStream nextElement() {
+                try {
+                    FileInputStream in = new FileInputStream(segmentFile(next));
+                    if (next++ == lsn / size)
+                        in.getChannel().position(lsn % size);
+                    return in;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
             }
-        }
-
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+        };
+        return new DataInputStream(new BufferedInputStream(new SequenceInputStream(segs), 1 << 16));
+    }
 
-        currentOffset = raf.getFilePointer();
-        //print();
+    /** Read the record with LSN pos from in, which must be positioned
+        there.  Returns null at end, the LSN of the end of the log, or at
+        a record that is torn or corrupt, which ends the log.
+    */
+    static LogRecord readRecord(DataInputStream in, long pos, long end) throws IOException {
+        if (end - pos < RECORD_OVERHEAD)
+            return null;
+        try {
+            int length = in.readInt();
+            if (length < RECORD_OVERHEAD || length > end - pos)
+                return null;
+            byte[] rec = new byte[length - RECORD_OVERHEAD + 1 + LONG_SIZE];
+            in.readFully(rec);
+            int crc = in.readInt();
+            long start = in.readLong();
+            if (start != pos || crc != checksum(rec, 0, rec.length, start))
+                return null;
+            return new LogRecord(rec, length);
+        } catch (EOFException e) {
+            return null; // a segment file is missing or short
+        }
     }
 
     /** Rollback the specified transaction, setting the state of any
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.)  Every change undone is logged
+        as a CLR, and the undone pages are left dirty in the buffer
+        pool.
 
         @param tid The transaction to rollback
     */
@@ -466,45 +1322,402 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
+                Long first = tidToFirstLogRecord.get(tid.getId());
+                if (first == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " has no BEGIN record");
+                // changes left unlogged by an operation that failed part
+                // way are undone like the others
+                Database.getBufferPool().logPendingChanges(tid);
+                drain();
+
+                ArrayList<LogRecord> records = new ArrayList<LogRecord>();
+                ArrayList<Long> lsns = new ArrayList<Long>();
+                readLog(first, currentLsn, records, lsns);
+                HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+                HashMap<PageId, Long> firstClr = new HashMap<PageId, Long>(), lastClr = new HashMap<PageId, Long>();
+                undo(records, lsns, Collections.singleton(tid.getId()), pages, firstClr, lastClr);
+
+                // the undone pages are written lazily, like any other change
+                BufferPool pool = Database.getBufferPool();
+                for (Page p : pages.values())
+                    pool.installPage(tid, p, firstClr.get(p.getId()), lastClr.get(p.getId()));
+            }
+        }
+    }
+
+    // read the records from LSN from up to LSN end into records, and their
+    // LSNs into lsns; returns the LSN after the last record
+    private long readLog(long from, long end, List<LogRecord> records, List<Long> lsns) throws IOException {
+        long pos = from;
+        DataInputStream in = openLog(from);
+        try {
+            LogRecord r;
+            for (; (r = readRecord(in, pos, end)) != null; pos += r.length) {
+                records.add(r);
+                lsns.add(pos);
+            }
+        } finally {
+            in.close();
+        }
+        return pos;
+    }
+
+    private static boolean isChange(int type) {
+        return type == UPDATE_RECORD || type == DELTA_RECORD;
+    }
+
+    // the page changed by a change record or CLR; both kinds of change
+    // start with the kind and id of the page
+    private static PageId changedPage(LogRecord r) throws IOException {
+        DataInputStream data = r.data();
+        if (r.type == CLR_RECORD) {
+            data.readLong();
+            data.readUnsignedByte();
+        }
+        return readPageId(data, pageFactory(data.readUnsignedByte()));
+    }
+
+    // redo repeats history on the pages that may not have been written
+    // since they were changed, as the dirty page table tells.  The records
+    // are read in order and dispatched to the workers by page, so that the
+    // changes of each page are replayed in order by one worker while
+    // different pages are replayed concurrently.  Returns the pages changed.
+    private HashMap<PageId, Page> redo(List<LogRecord> records, List<Long> lsns, Map<PageId, Long> dirty)
+            throws IOException {
+        long started = System.nanoTime();
+        int n = recoveryThreads;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        ArrayList<LinkedBlockingQueue<LogRecord>> queues = new ArrayList<LinkedBlockingQueue<LogRecord>>();
+        ArrayList<HashMap<PageId, Page>> changed = new ArrayList<HashMap<PageId, Page>>();
+        Thread[] workers = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            final LinkedBlockingQueue<LogRecord> queue = new LinkedBlockingQueue<LogRecord>();
+            final HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+            queues.add(queue);
+            changed.add(pages);
+            workers[i] = new Thread("redo worker " + i) {
+                public void run() {
+                    try {
+                        for (LogRecord r; (r = queue.take()) != END_OF_REDO;)
+                            redo(r, pages);
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        long count = 0;
+        try {
+            for (int i = 0; i < records.size() && error.get() == null; i++) {
+                LogRecord r = records.get(i);
+                if (!isChange(r.type) && r.type != CLR_RECORD)
+                    continue;
+                PageId pid = changedPage(r);
+                Long recLsn = dirty.get(pid);
+                if (recLsn != null && lsns.get(i) >= recLsn) {
+                    queues.get(Math.floorMod(pid.hashCode(), n)).add(r);
+                    count++;
+                }
+            }
+        } finally {
+            for (LinkedBlockingQueue<LogRecord> queue : queues)
+                queue.add(END_OF_REDO);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for redo");
             }
         }
+        Throwable t = error.get();
+        if (t instanceof IOException)
+            throw (IOException) t;
+        if (t != null)
+            throw new IOException("redo failed", t);
+
+        HashMap<PageId, Page> pages = new HashMap<PageId, Page>();
+        for (HashMap<PageId, Page> p : changed)
+            pages.putAll(p);
+        redoCount = count;
+        redoNanos = System.nanoTime() - started;
+        Debug.log("REDO: %d records on %d pages in %d ms with %d threads, %.0f records/s", count,
+            pages.size(), redoNanos / 1000000, n, count * 1e9 / Math.max(redoNanos, 1));
+        return pages;
+    }
+
+    // redo the change recorded by a change record or CLR
+    private void redo(LogRecord r, Map<PageId, Page> pages) throws IOException {
+        DataInputStream data = r.data();
+        int type = r.type;
+        if (type == CLR_RECORD) {
+            data.readLong();
+            type = data.readUnsignedByte();
+        }
+        apply(type, data, pages, null);
+    }
+
+    // redo a change of the given type, read from data, on the page it
+    // changed, which is added to pages if it is not there yet; if undo is
+    // not null, undo the change instead and write the data of a change
+    // that undoes it to undo.  Returns the id of the page.
+    private PageId apply(int type, DataInputStream data, Map<PageId, Page> pages, DataOutputStream undo)
+            throws IOException {
+        if (type == UPDATE_RECORD) {
+            Page before = readPageData(data), after = readPageData(data);
+            pages.put(after.getId(), undo == null ? after : before);
+            if (undo != null) {
+                writePageData(undo, after);
+                writePageData(undo, before);
+            }
+            return after.getId();
+        }
+        PageId pid = readPageId(data, pageFactory(data.readUnsignedByte()));
+        Page p = pages.get(pid);
+        if (p == null) {
+            p = Database.getBufferPool().peekPage(pid);
+            pages.put(pid, p);
+        }
+        PageDelta delta = PageDelta.read(data);
+        delta.apply((DeltaPage) p, undo != null);
+        if (undo != null) {
+            writePageId(undo, p);
+            delta.inverse().write(undo);
+        }
+        return pid;
+    }
+
+    // undo the changes of the transactions tids, latest first, except those
+    // that CLRs show to be undone already, and log a CLR for each.  records
+    // are consecutive records of the log and lsns their LSNs.  The pages
+    // are read into pages as needed, and the LSNs of the first and last CLR
+    // of each page are put into firstClr and lastClr.
+    private void undo(List<LogRecord> records, List<Long> lsns, Set<Long> tids, Map<PageId, Page> pages,
+            Map<PageId, Long> firstClr, Map<PageId, Long> lastClr) throws IOException {
+        // the previous change of the same transaction, which is undone next
+        long[] prev = new long[records.size()];
+        HashMap<Long, Long> last = new HashMap<Long, Long>();
+        for (int i = 0; i < records.size(); i++) {
+            LogRecord r = records.get(i);
+            if (isChange(r.type) && tids.contains(r.tid)) {
+                Long l = last.put(r.tid, lsns.get(i));
+                prev[i] = l == null ? -1 : l;
+            }
+        }
+
+        // the latest change of each transaction that remains to be undone,
+        // if a CLR tells
+        HashMap<Long, Long> undoNext = new HashMap<Long, Long>();
+        for (int i = records.size() - 1; i >= 0; i--) {
+            LogRecord r = records.get(i);
+            if (!tids.contains(r.tid))
+                continue;
+            if (r.type == CLR_RECORD) {
+                if (!undoNext.containsKey(r.tid))
+                    undoNext.put(r.tid, r.data().readLong());
+                continue;
+            }
+            Long next = undoNext.get(r.tid);
+            if (!isChange(r.type) || (next != null && lsns.get(i) > next))
+                continue;
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream clr = record(CLR_RECORD, r.tid, bytes);
+            clr.writeLong(prev[i]);
+            clr.writeByte(r.type);
+            PageId pid = apply(r.type, r.data(), pages, clr);
+            long lsn = append(bytes.toByteArray());
+            if (!firstClr.containsKey(pid))
+                firstClr.put(pid, lsn);
+            lastClr.put(pid, lsn);
+            undoNext.put(r.tid, prev[i]);
+        }
     }
 
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
-        try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
-        } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
-            e.printStackTrace();
+    public void shutdown() {
+        synchronized (Database.getBufferPool()) {
+            synchronized (this) {
+                try {
+                    // with every page written, the checkpoint leaves
+                    // recovery nothing to redo
+                    Database.getBufferPool().flushAllPages();
+                    logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                    raf.close();
+                    closeSegments();
+                } catch (IOException e) {
+                    System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        Runs the analysis, redo and undo passes described above.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
+                if (raf.length() < HEADER_SIZE)
+                    return; // nothing was logged
+                raf.seek(0);
+                if (raf.readInt() != MAGIC)
+                    throw new IOException(logFile + " is not a SimpleDB log file");
+                int version = raf.readInt();
+                if (version != FORMAT_VERSION)
+                    throw new IOException("unsupported log format version " + version);
                 recoveryUndecided = false;
-                // some code goes here
+                long cp = raf.readLong();
+                startLsn = raf.readLong();
+                segmentBytes = raf.readInt();
+                long fileEnd = getFileEnd();
+
+                // analysis starts with the tables of the checkpoint; the
+                // first records of the running transactions are needed for
+                // undo, and the first changes of the dirty pages for redo
+                HashMap<Long, Long> running = new HashMap<Long, Long>();
+                HashMap<PageId, Long> dirty = new HashMap<PageId, Long>();
+                long analysisStart = startLsn, start = startLsn;
+                if (cp != NO_CHECKPOINT_ID) {
+                    Checkpoint c = readCheckpoint(cp, fileEnd);
+                    running.putAll(c.running);
+                    dirty.putAll(c.dirty);
+                    analysisStart = c.begin;
+                    start = c.start();
+                }
+                ArrayList<LogRecord> records = new ArrayList<LogRecord>();
+                ArrayList<Long> lsns = new ArrayList<Long>();
+                long end = readLog(start, fileEnd, records, lsns);
+
+                for (int i = 0; i < records.size(); i++) {
+                    LogRecord r = records.get(i);
+                    if (lsns.get(i) < analysisStart)
+                        continue;
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        running.put(r.tid, lsns.get(i));
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        running.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case DELTA_RECORD:
+                    case CLR_RECORD:
+                        PageId pid = changedPage(r);
+                        if (!dirty.containsKey(pid))
+                            dirty.put(pid, lsns.get(i));
+                        break;
+                    }
+                }
+
+                HashMap<PageId, Page> pages = redo(records, lsns, dirty);
+
+                discardTail(end);
+                currentLsn = writtenLsn = flushedLsn = forceRequest = end;
+
+                undo(records, lsns, running.keySet(), pages, new HashMap<PageId, Long>(), new HashMap<PageId, Long>());
+                for (Long tid : running.keySet())
+                    append(record(ABORT_RECORD, tid));
+                tidToFirstLogRecord.clear();
+
+                // the CLRs reach the disk before the pages they changed
+                drain();
+                BufferPool pool = Database.getBufferPool();
+                for (Page p : pages.values()) {
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    pool.discardPage(p.getId());
+                }
             }
          }
     }
 
+    // overwrite whatever follows the end of the log, including records that
+    // were written but never forced before a crash, so that they cannot
+    // reappear at the end of the log later
+    private void discardTail(long end) throws IOException {
+        closeSegments();
+        long last = end / segmentBytes;
+        for (long n : segmentNumbers()) {
+            if (n > last)
+                segmentFile(n).delete();
+        }
+        if (segmentFile(last).exists()) {
+            FileChannel ch = segment(last);
+            ByteBuffer zeros = ByteBuffer.allocate((int) (segmentBytes - end % segmentBytes));
+            long pos = end % segmentBytes;
+            while (zeros.hasRemaining())
+                pos += ch.write(zeros, pos);
+            ch.force(false);
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        // some code goes here
+        long start, end;
+        synchronized (this) {
+            if (recoveryUndecided && raf.length() < HEADER_SIZE)
+                return;
+            if (!recoveryUndecided)
+                drain();
+            raf.seek(CHECKPOINT_POINTER);
+            System.out.println("checkpoint at " + raf.readLong());
+            start = raf.readLong();
+            long[] numbers = segmentNumbers();
+            end = numbers.length == 0 ? start : (numbers[numbers.length - 1] + 1) * raf.readInt();
+        }
+        DataInputStream in = openLog(start);
+        try {
+            LogRecord r;
+            for (long pos = start; (r = readRecord(in, pos, end)) != null; pos += r.length) {
+                StringBuilder line = new StringBuilder(pos + ": " + RECORD_NAMES[r.type] + " tid " + r.tid);
+                DataInputStream data = r.data();
+                int type = r.type;
+                if (type == CLR_RECORD) {
+                    line.append(" undo next ").append(data.readLong());
+                    type = data.readUnsignedByte();
+                    line.append(" ").append(RECORD_NAMES[type]);
+                }
+                switch (type) {
+                case UPDATE_RECORD:
+                    Page before = readPageData(data);
+                    line.append(" page ").append(before.getId().getTableId()).append(":")
+                        .append(before.getId().pageNumber());
+                    break;
+                case DELTA_RECORD:
+                    PageId pid = readPageId(data, pageFactory(data.readUnsignedByte()));
+                    line.append(" page ").append(pid.getTableId()).append(":").append(pid.pageNumber())
+                        .append(" slots ").append(PageDelta.read(data).numSlots());
+                    break;
+                case CHECKPOINT_RECORD:
+                    Checkpoint c = new Checkpoint(r);
+                    line.append(" begin ").append(c.begin).append(" active");
+                    for (Map.Entry<Long, Long> e : c.running.entrySet())
+                        line.append(" ").append(e.getKey()).append("@").append(e.getValue());
+                    line.append(" dirty");
+                    for (Map.Entry<PageId, Long> e : c.dirty.entrySet())
+                        line.append(" ").append(e.getKey().getTableId()).append(":")
+                            .append(e.getKey().pageNumber()).append("@").append(e.getValue());
+                    break;
+                }
+                System.out.println(line);
+            }
+        } finally {
+            in.close();
+        }
     }
 
+    /** Force every record appended so far to disk. */
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        drain();
     }
 
 }
@@ -23,6 +23,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** True if the optimizer chose to evaluate this join by probing a B+ tree
+     * index on t2.f2 (see {@link IndexNestedLoopJoin}). */
+    public boolean useIndex;
+
     public LogicalJoinNode() {
     }
 
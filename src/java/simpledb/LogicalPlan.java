@@ -36,6 +36,7 @@ public class LogicalPlan {
     private boolean oByAsc, hasOrderBy = false;
     private String oByField;
     private String query;
+    private Vector<LogicalJoinNode> joinOrder;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -81,6 +82,47 @@ public class LogicalPlan {
         return this.tableMap;
     }
 
+    /** Return the number of filters in this plan; this is the number of
+        constants {@link #bind} expects.
+     */
+    public int numFilters() {
+        return filters.size();
+    }
+
+    /** Return a copy of this plan with the constants of its filters
+        replaced, in the order the filters were added.  The copy reuses the
+        join order chosen when this plan was converted by {@link
+        #physicalPlan}, so it is not optimized again.
+
+        @param query the text of the query the copy represents
+        @param constants the new filter constants
+        @throws ParsingException if the number of constants differs from
+        the number of filters
+     */
+    public LogicalPlan bind(String query, Vector<String> constants) throws ParsingException {
+        if (constants.size() != filters.size())
+            throw new ParsingException("Expected " + filters.size() + " constants, got " + constants.size());
+        LogicalPlan lp = new LogicalPlan();
+        lp.joins.addAll(joins);
+        lp.tables.addAll(tables);
+        lp.tableMap.putAll(tableMap);
+        for (int i = 0; i < filters.size(); i++) {
+            LogicalFilterNode lf = filters.elementAt(i);
+            lp.filters.addElement(new LogicalFilterNode(lf.tableAlias, lf.fieldPureName, lf.p, constants.elementAt(i)));
+        }
+        lp.selectList.addAll(selectList);
+        lp.groupByField = groupByField;
+        lp.hasAgg = hasAgg;
+        lp.aggOp = aggOp;
+        lp.aggField = aggField;
+        lp.oByAsc = oByAsc;
+        lp.hasOrderBy = hasOrderBy;
+        lp.oByField = oByField;
+        lp.query = query;
+        lp.joinOrder = joinOrder;
+        return lp;
+    }
+
     /** Add a new filter to the logical plan
      *   @param field The name of the over which the filter applies;
      *   this can be a fully qualified field (tablename.field or
@@ -273,6 +315,8 @@ public class LogicalPlan {
 
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link DbIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
+     *   A table stored in a B+ tree with a filter on its key is read by a {@link BTreeScan} with an
+     *   {@link IndexPredicate} when the estimated cost of the probe is below that of a full scan.
      *  @param t The transaction that the returned DbIterator will run as a part of
      *  @param baseTableStats a HashMap providing a {@link TableStats}
      *    object for each table used in the LogicalPlan.  This should
@@ -289,6 +333,8 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,Filter> indexFilters = new HashMap<String,Filter>();
+        HashMap<String,Double> indexSelectivities = new HashMap<String,Double>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -334,21 +380,46 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            Filter filter = new Filter(p, subplan);
+            subplanMap.put(lf.tableAlias, filter);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
+            // the most selective filter on the key of a B+ tree can be
+            // answered by its index
+            if (IndexNestedLoopJoin.canProbe(subplan, p.getField(), lf.p)
+                    && (!indexFilters.containsKey(lf.tableAlias) || sel < indexSelectivities.get(lf.tableAlias))) {
+                indexFilters.put(lf.tableAlias, filter);
+                indexSelectivities.put(lf.tableAlias, sel);
+            }
+
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
-        joins = jo.orderJoins(statsMap,filterSelectivities,explain);
+        // read a B+ tree through its index instead of scanning it when the
+        // probe is estimated to be cheaper
+        for (Map.Entry<String, Filter> e : indexFilters.entrySet()) {
+            String alias = e.getKey();
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(alias)));
+            double indexCost = s.estimateIndexProbeCost(s.totalTuples() * indexSelectivities.get(alias));
+            if (explain)
+                System.out.println("Access path for " + alias + ": index scan cost " + indexCost
+                        + ", full scan cost " + s.estimateScanCost());
+            if (indexCost < s.estimateScanCost()) {
+                subplanMap.put(alias, indexScan(t, alias, e.getValue(), subplanMap.get(alias)));
+                jo.setAccessCost(alias, indexCost);
+            }
+        }
+
+        if (joinOrder == null)
+            joinOrder = jo.orderJoins(statsMap,filterSelectivities,explain);
 
-        Iterator<LogicalJoinNode> joinIt = joins.iterator();
+        Iterator<LogicalJoinNode> joinIt = joinOrder.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
             DbIterator plan1;
@@ -481,6 +552,29 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /**
+     * Rebuilds the filters over a table on top of an index scan that answers
+     * one of them.
+     *
+     * @param keyFilter the filter on the key of the table, answered by the
+     *                  index and dropped
+     * @param plan      the filters over a scan of the table
+     */
+    private static DbIterator indexScan(TransactionId t, String alias, Filter keyFilter, DbIterator plan) {
+        ArrayList<Predicate> preds = new ArrayList<Predicate>();
+        while (plan instanceof Filter) {
+            if (plan != keyFilter)
+                preds.add(((Filter) plan).getPredicate());
+            plan = ((Filter) plan).getChildren()[0];
+        }
+        int tableid = ((SeqScan) plan).getTableId();
+        Predicate key = keyFilter.getPredicate();
+        DbIterator scan = new BTreeScan(t, tableid, alias, new IndexPredicate(key.getOp(), key.getOperand()));
+        for (int i = preds.size() - 1; i >= 0; i--)
+            scan = new Filter(preds.get(i), scan);
+        return scan;
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
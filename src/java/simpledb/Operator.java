@@ -16,14 +16,14 @@ public abstract class Operator implements DbIterator {
             throw new IllegalStateException("Operator not yet open");
         
         if (next == null)
-            next = fetchNext();
+            next = fetch();
         return next != null;
     }
 
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
         if (next == null) {
-            next = fetchNext();
+            next = fetch();
             if (next == null)
                 throw new NoSuchElementException();
         }
@@ -33,6 +33,16 @@ public abstract class Operator implements DbIterator {
         return result;
     }
 
+    // counts the tuples of the first complete pass since open()
+    private Tuple fetch() throws DbException, TransactionAbortedException {
+        Tuple t = fetchNext();
+        if (t == null)
+            exhausted = true;
+        else if (!exhausted)
+            actualCardinality++;
+        return t;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -57,9 +67,13 @@ public abstract class Operator implements DbIterator {
     private Tuple next = null;
     private boolean open = false;
     private int estimatedCardinality = 0;
+    private int actualCardinality = 0;
+    private boolean exhausted = false;
 
     public void open() throws DbException, TransactionAbortedException {
         this.open = true;
+        this.actualCardinality = 0;
+        this.exhausted = false;
     }
 
     /**
@@ -104,4 +118,14 @@ public abstract class Operator implements DbIterator {
         this.estimatedCardinality = card;
     }
 
+    /**
+     * @return The number of tuples this operator actually produced, counted
+     *         from the last time it was opened to the end of its first
+     *         complete pass (later passes after a rewind are not counted),
+     *         or -1 if it has not produced all its tuples yet
+     * */
+    public int getActualCardinality() {
+        return exhausted ? actualCardinality : -1;
+    }
+
 }
@@ -41,10 +41,8 @@ public class OperatorCardinality {
                     hasJoinPK = updateOperatorCardinality(
                             (Operator) children[0], tableAliasToId, tableStats);
                     childC = ((Operator) children[0]).getEstimatedCardinality();
-                } else if (children[0] instanceof SeqScan) {
-                    childC = tableStats.get(
-                            ((SeqScan) children[0]).getTableName())
-                            .estimateTableCardinality(1.0);
+                } else if (isScan(children[0])) {
+                    childC = scanCardinality(children[0], tableStats);
                 }
             }
             o.setEstimatedCardinality(childC);
@@ -77,10 +75,8 @@ public class OperatorCardinality {
                 f.setEstimatedCardinality((int) (oChild
                         .getEstimatedCardinality() * selectivity) + 1);
                 return hasJoinPK;
-            } else if (child instanceof SeqScan) {
-                f.setEstimatedCardinality((int) (tableStats.get(
-                        ((SeqScan) child).getTableName())
-                        .estimateTableCardinality(1.0) * selectivity) + 1);
+            } else if (isScan(child)) {
+                f.setEstimatedCardinality((int) (scanCardinality(child, tableStats) * selectivity) + 1);
                 return false;
             }
         }
@@ -120,9 +116,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = (int) (scanCardinality(child1, tableStats));
         }
 
         if (child2 instanceof Operator) {
@@ -132,9 +127,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = (int) (scanCardinality(child2, tableStats));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -177,9 +171,8 @@ public class OperatorCardinality {
             child1HasJoinPK = pk || child1HasJoinPK;
             child1Card = child1O.getEstimatedCardinality();
             child1Card = child1Card > 0 ? child1Card : 1;
-        } else if (child1 instanceof SeqScan) {
-            child1Card = (int) (tableStats.get(((SeqScan) child1)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child1)) {
+            child1Card = (int) (scanCardinality(child1, tableStats));
         }
 
         if (child2 instanceof Operator) {
@@ -189,9 +182,8 @@ public class OperatorCardinality {
             child2HasJoinPK = pk || child2HasJoinPK;
             child2Card = child2O.getEstimatedCardinality();
             child2Card = child2Card > 0 ? child2Card : 1;
-        } else if (child2 instanceof SeqScan) {
-            child2Card = (int) (tableStats.get(((SeqScan) child2)
-                    .getTableName()).estimateTableCardinality(1.0));
+        } else if (isScan(child2)) {
+            child2Card = (int) (scanCardinality(child2, tableStats));
         }
 
         j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
@@ -219,9 +211,8 @@ public class OperatorCardinality {
             return hasJoinPK;
         }
 
-        if (child instanceof SeqScan) {
-            childCard = (int) (tableStats.get(((SeqScan) child).getTableName())
-                    .estimateTableCardinality(1.0));
+        if (isScan(child)) {
+            childCard = (int) (scanCardinality(child, tableStats));
         }
 
         String[] tmp = a.groupFieldName().split("[.]");
@@ -229,19 +220,40 @@ public class OperatorCardinality {
         String pureFieldName = tmp[1];
         Integer tableId = tableAliasToId.get(tableAlias);
 
-        double groupFieldAvgSelectivity = 1.0;
         if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+            // one group per distinct value of the grouping field
+            long groups = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
-                    .avgSelectivity(
+                    .getNumDistinct(
                             Database.getCatalog().getTupleDesc(tableId)
-                                    .fieldNameToIndex(pureFieldName),
-                            Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
+                                    .fieldNameToIndex(pureFieldName));
+            a.setEstimatedCardinality(groups > 0 ? (int) Math.min(childCard, groups) : childCard);
             return hasJoinPK;
         }
         a.setEstimatedCardinality(childCard);
         return hasJoinPK;
     }
+
+    private static boolean isScan(DbIterator it) {
+        return it instanceof SeqScan || it instanceof BTreeScan;
+    }
+
+    /**
+     * @return the estimated number of tuples a scan returns: all tuples of a
+     *         SeqScan, and those matching the index predicate of a BTreeScan
+     */
+    private static int scanCardinality(DbIterator scan,
+            Map<String, TableStats> tableStats) {
+        if (scan instanceof BTreeScan) {
+            BTreeScan s = (BTreeScan) scan;
+            TableStats stats = tableStats.get(s.getTableName());
+            IndexPredicate ipred = s.getIndexPredicate();
+            double selectivity = ipred == null ? 1.0 : stats
+                    .estimateSelectivity(s.getKeyField(), ipred.getOp(),
+                            ipred.getField());
+            return stats.estimateTableCardinality(selectivity);
+        }
+        return tableStats.get(((SeqScan) scan).getTableName())
+                .estimateTableCardinality(1.0);
+    }
 }
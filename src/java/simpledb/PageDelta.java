@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The changes made to the slots of a {@link DeltaPage}: for every slot that
+ * was touched, its contents before and after the changes.
+ * <p>
+ * Applying a delta sets the slots to one of the two versions, so redoing or
+ * undoing it gives the same result however often it is repeated. A one tuple
+ * insert into a heap page is logged as the tuple and a few bytes, instead of
+ * two images of the whole page.
+ */
+public class PageDelta {
+
+    private final int[] slots;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    PageDelta(int[] slots, byte[][] before, byte[][] after) {
+        this.slots = slots;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * @return the number of slots the delta changes
+     */
+    public int numSlots() {
+        return slots.length;
+    }
+
+    /**
+     * @return the i-th slot the delta changes, in increasing order
+     */
+    public int getSlot(int i) {
+        return slots[i];
+    }
+
+    /**
+     * Sets the slots of a page to their contents after the changes (redo) or
+     * before them (undo).
+     */
+    public void apply(DeltaPage p, boolean undo) {
+        for (int i = 0; i < slots.length; i++)
+            p.setSlotData(slots[i], undo ? before[i] : after[i]);
+    }
+
+    /**
+     * @return the delta that undoes this one
+     */
+    public PageDelta inverse() {
+        return new PageDelta(slots, after, before);
+    }
+
+    /**
+     * Writes the delta, in the form {@link #read} reads.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            out.writeInt(slots[i]);
+            writeBytes(out, before[i]);
+            writeBytes(out, after[i]);
+        }
+    }
+
+    /**
+     * Reads a delta written by {@link #write}.
+     */
+    public static PageDelta read(DataInput in) throws IOException {
+        int n = in.readInt();
+        int[] slots = new int[n];
+        byte[][] before = new byte[n][], after = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            slots[i] = in.readInt();
+            before[i] = readBytes(in);
+            after[i] = readBytes(in);
+        }
+        return new PageDelta(slots, before, after);
+    }
+
+    // slot contents are short, so their length fits in an unsigned short
+    private static void writeBytes(DataOutput out, byte[] b) throws IOException {
+        out.writeShort(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] b = new byte[in.readUnsignedShort()];
+        in.readFully(b);
+        return b;
+    }
+
+    /**
+     * @return the contents of a tuple slot: a byte telling whether the slot
+     * is used, followed by the fields of its tuple if it is
+     */
+    static byte[] tupleSlotData(boolean used, Tuple t) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeBoolean(used);
+            if (used) {
+                for (int j = 0; j < t.getTupleDesc().numFields(); j++)
+                    t.getField(j).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the tuple in contents returned by {@link #tupleSlotData}, or
+     * null if the slot is not used
+     */
+    static Tuple parseTupleSlot(byte[] data, TupleDesc td, RecordId rid) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (!in.readBoolean())
+                return null;
+            Tuple t = new Tuple(td);
+            t.setRecordId(rid);
+            for (int j = 0; j < td.numFields(); j++)
+                t.setField(j, td.getFieldType(j).parse(in));
+            return t;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (java.text.ParseException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Keeps track of the slots of one page touched since the last delta was
+     * taken. A page calls {@link #touch} before it changes a slot.
+     */
+    static class Recorder {
+        // the contents of each touched slot when it was first touched
+        private TreeMap<Integer, byte[]> touched = new TreeMap<Integer, byte[]>();
+
+        synchronized void touch(DeltaPage p, int slot) {
+            if (!touched.containsKey(slot))
+                touched.put(slot, p.getSlotData(slot));
+        }
+
+        synchronized PageDelta take(DeltaPage p) {
+            int n = 0;
+            int[] slots = new int[touched.size()];
+            byte[][] before = new byte[slots.length][], after = new byte[slots.length][];
+            for (Map.Entry<Integer, byte[]> e : touched.entrySet()) {
+                byte[] now = p.getSlotData(e.getKey());
+                // a slot may have been changed back to what it was
+                if (Arrays.equals(now, e.getValue()))
+                    continue;
+                slots[n] = e.getKey();
+                before[n] = e.getValue();
+                after[n++] = now;
+            }
+            touched.clear();
+            if (n == 0)
+                return null;
+            return new PageDelta(Arrays.copyOf(slots, n), Arrays.copyOf(before, n),
+                    Arrays.copyOf(after, n));
+        }
+    }
+}
@@ -273,14 +273,34 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    private static final QueryPlanCache planCache = new QueryPlanCache(
+            QueryPlanCache.DEFAULT_CAPACITY);
+
+    /**
+     * @return the cache of optimized plans shared by all parsers
+     */
+    public static QueryPlanCache getPlanCache() {
+        return planCache;
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             ParsingException, ParseException {
         Query query = new Query(tId);
 
-        LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        // queries differing only in their constants share an optimized plan;
+        // explained queries are always optimized so that the plan is shown
+        Vector<String> constants = new Vector<String>();
+        String key = explain ? null : QueryPlanCache.normalize(s, constants);
+        LogicalPlan lp = key == null ? null : planCache.get(key,
+                s.toString(), constants);
+        boolean cached = lp != null;
+        if (!cached)
+            lp = parseQueryLogicalPlan(tId, s);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
+        if (key != null && !cached)
+            planCache.put(key, lp);
         query.setPhysicalPlan(physicalPlan);
         query.setLogicalPlan(lp);
 
@@ -608,7 +628,10 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
+        // statistics persist next to the catalog, so only new tables are
+        // analyzed at startup
+        TableStats.setStatsFile(new File(argv[0] + ".stats"));
+        TableStats.computeMissingStatistics();
 
         String queryFile = null;
 
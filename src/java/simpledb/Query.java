@@ -113,6 +113,9 @@ public class Query implements Serializable {
             cnt++;
         }
         System.out.println("\n " + cnt + " rows.");
+        // teach the optimizer how far its estimates were off
+        if (logicalPlan != null)
+            CardinalityFeedback.record(op, logicalPlan.getTableAliasToIdMapping());
         this.close();
     }
 }
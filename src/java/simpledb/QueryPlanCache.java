@@ -0,0 +1,177 @@
+package simpledb;
+
+import Zql.ZConstant;
+import Zql.ZExp;
+import Zql.ZExpression;
+import Zql.ZQuery;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A bounded cache of optimized query plans, keyed by the text of a query with
+ * the literals of its WHERE clause replaced by parameters.
+ * <p>
+ * Queries of the same shape that differ only in their constants map to the
+ * same entry: {@link #normalize} computes the key and extracts the
+ * constants, and {@link #get} returns a copy of the cached {@link LogicalPlan}
+ * bound to them, which keeps the join order chosen when the plan was first
+ * optimized. Entries are evicted in least recently used order once the cache
+ * is full, and the whole cache is cleared whenever the {@link Catalog}, the
+ * {@link TableStats} or the corrections learned by {@link CardinalityFeedback}
+ * change.
+ */
+public class QueryPlanCache {
+
+    /**
+     * Default number of plans a cache holds.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final int capacity;
+    private final LinkedHashMap<String, LogicalPlan> plans;
+
+    private Catalog catalog;
+    private int catalogVersion;
+    private int statsVersion;
+    private int feedbackVersion;
+    private int hits, misses;
+
+    /**
+     * Create an empty cache.
+     *
+     * @param capacity the maximum number of plans to hold
+     */
+    public QueryPlanCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        this.plans = new LinkedHashMap<String, LogicalPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LogicalPlan> eldest) {
+                return size() > QueryPlanCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Computes the cache key of a query: its text with every literal compared
+     * against a column in the WHERE clause replaced by "?".
+     *
+     * @param q         the query
+     * @param constants receives the replaced literals, in the order {@link
+     *                  Parser#parseQueryLogicalPlan} adds the filters they
+     *                  belong to
+     * @return the key, or null if the query cannot be cached (for example
+     * because it contains a subquery)
+     */
+    public static String normalize(ZQuery q, Vector<String> constants) {
+        StringBuilder where = new StringBuilder();
+        if (q.getWhere() != null && !normalize(q.getWhere(), where, constants))
+            return null;
+        return "SELECT " + q.getSelect() + " FROM " + q.getFrom() + " WHERE " + where
+                + " GROUP BY " + q.getGroupBy() + " ORDER BY " + q.getOrderBy();
+    }
+
+    private static boolean normalize(ZExp e, StringBuilder out, Vector<String> constants) {
+        if (!(e instanceof ZExpression))
+            return false;
+        ZExpression x = (ZExpression) e;
+        if (x.getOperator().equals("AND")) {
+            for (int i = 0; i < x.nbOperands(); i++) {
+                out.append(i == 0 ? "(" : " AND ");
+                if (!normalize(x.getOperand(i), out, constants))
+                    return false;
+            }
+            out.append(")");
+            return true;
+        }
+        if (x.nbOperands() != 2 || !(x.getOperand(0) instanceof ZConstant)
+                || !(x.getOperand(1) instanceof ZConstant))
+            return false;
+        ZConstant c1 = (ZConstant) x.getOperand(0), c2 = (ZConstant) x.getOperand(1);
+        boolean col1 = c1.getType() == ZConstant.COLUMNNAME, col2 = c2.getType() == ZConstant.COLUMNNAME;
+        if (!col1 && !col2)
+            return false;
+        out.append(col1 ? c1.getValue() : "?");
+        out.append(" ").append(x.getOperator()).append(" ");
+        out.append(col2 ? c2.getValue() : "?");
+        if (!col1)
+            constants.add(c1.getValue());
+        else if (!col2)
+            constants.add(c2.getValue());
+        return true;
+    }
+
+    /**
+     * Returns a copy of the plan cached under key, bound to the given
+     * constants, or null if there is none.
+     *
+     * @param key       a key computed by {@link #normalize}
+     * @param query     the text of the query being planned
+     * @param constants the constants {@link #normalize} extracted
+     */
+    public synchronized LogicalPlan get(String key, String query, Vector<String> constants)
+            throws ParsingException {
+        checkVersions();
+        LogicalPlan lp = plans.get(key);
+        if (lp == null || lp.numFilters() != constants.size()) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return lp.bind(query, constants);
+    }
+
+    /**
+     * Caches a plan under key. The plan should already have been converted
+     * by {@link LogicalPlan#physicalPlan}, so that its join order is kept.
+     */
+    public synchronized void put(String key, LogicalPlan lp) {
+        checkVersions();
+        plans.put(key, lp);
+    }
+
+    /**
+     * Removes all plans from the cache.
+     */
+    public synchronized void clear() {
+        plans.clear();
+    }
+
+    /**
+     * @return the number of cached plans
+     */
+    public synchronized int size() {
+        return plans.size();
+    }
+
+    /**
+     * @return the number of calls of {@link #get} that found a plan
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of calls of {@link #get} that found no plan
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private void checkVersions() {
+        Catalog c = Database.getCatalog();
+        if (c != catalog || c.getVersion() != catalogVersion || TableStats.getVersion() != statsVersion
+                || CardinalityFeedback.getVersion() != feedbackVersion) {
+            plans.clear();
+            catalog = c;
+            catalogVersion = c.getVersion();
+            statsVersion = TableStats.getVersion();
+            feedbackVersion = CardinalityFeedback.getVersion();
+        }
+    }
+}
@@ -14,6 +14,12 @@ public class SeqScan implements DbIterator {
     private int table_id;
     private String tableAlias;
     private DbFileIterator tuple_Iterator;
+
+    // runtime filter pushed down by a join (see setBloomFilter)
+    private transient BloomFilter bloom;
+    private transient int bloomField;
+    private transient Tuple pending;
+    private long bloomEliminated;
     /**
      * Creates a sequential scan over the specified table as a part of the
      * specified transaction.
@@ -46,6 +52,20 @@ public class SeqScan implements DbIterator {
         return Database.getCatalog().getTableName(table_id);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     * */
+    public int getTableId() {
+        return table_id;
+    }
+
+    /**
+     * @return the transaction this operator reads on behalf of
+     * */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -105,23 +125,62 @@ public class SeqScan implements DbIterator {
         return new TupleDesc(types, names);
     }
 
+    /**
+     * Installs a runtime filter on this scan: tuples whose value in the given
+     * field is not in the Bloom filter are skipped instead of being returned.
+     * Used by {@link HashEquiJoin} to drop probe tuples that cannot match.
+     *
+     * @param field the index of the field to test
+     * @param bloom the filter to test against, or null to remove the filter
+     */
+    public void setBloomFilter(int field, BloomFilter bloom) {
+        this.bloomField = field;
+        this.bloom = bloom;
+        this.pending = null;
+    }
+
+    /**
+     * @return the number of tuples skipped by the Bloom filter since this
+     *         scan was created
+     */
+    public long getBloomEliminated() {
+        return bloomEliminated;
+    }
+
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return tuple_Iterator.hasNext();
+        if (bloom == null)
+            return tuple_Iterator.hasNext();
+        while (pending == null && tuple_Iterator.hasNext()) {
+            Tuple t = tuple_Iterator.next();
+            if (bloom.mightContain(t.getField(bloomField)))
+                pending = t;
+            else
+                bloomEliminated++;
+        }
+        return pending != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return tuple_Iterator.next();
+        if (bloom == null)
+            return tuple_Iterator.next();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = pending;
+        pending = null;
+        return t;
     }
 
     public void close() {
         tuple_Iterator.close();
+        pending = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         tuple_Iterator.rewind();
+        pending = null;
     }
 }
@@ -0,0 +1,225 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin joins two inputs that are sorted in ascending order on their
+ * join fields. It supports <code>EQUALS</code> as well as the range
+ * predicates <code>LESS_THAN</code>, <code>LESS_THAN_OR_EQ</code>,
+ * <code>GREATER_THAN</code> and <code>GREATER_THAN_OR_EQ</code>.
+ * <p>
+ * An input that is already sorted on its join field (see
+ * {@link #isSortedOn}) is consumed as is; any other input is wrapped in an
+ * {@link OrderBy}. The output of a sort-merge join is itself sorted on the
+ * outer join field, which {@link #getOrderField()} exposes so that joins
+ * further up the plan can avoid sorting again.
+ * <p>
+ * Equality joins stream both inputs, buffering only the inner tuples that
+ * share the current key. Range joins buffer the whole inner input and, since
+ * the outer keys only increase, track the boundary of the matching inner
+ * tuples with a single monotonic index.
+ */
+public class SortMergeJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    private transient ArrayList<Tuple> inner;
+    private transient Tuple nextInner;
+    private transient int pos;
+    private transient int to;
+    private transient int bound;
+    private transient boolean rangeReady;
+
+    /**
+     * Constructor. Accepts to children to join and the predicate to join them
+     * on. Children that are not already sorted on their join field are
+     * sorted with an {@link OrderBy}.
+     *
+     * @param p      The predicate to use to join the children
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Iterator for the right(inner) relation to join
+     * @throws IllegalArgumentException if the predicate is not an equality or
+     *                                  range predicate
+     */
+    public SortMergeJoin(JoinPredicate p, DbIterator child1, DbIterator child2) {
+        super(p, sorted(child1, p.getField1()), sorted(child2, p.getField2()));
+        if (!supports(p.getOperator()))
+            throw new IllegalArgumentException("sort-merge join does not support " + p.getOperator());
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate the given join operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ
+                || op == Predicate.Op.GREATER_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+    }
+
+    /**
+     * Returns true if the tuples produced by the given iterator are known to
+     * be in ascending order of the given field: a {@link BTreeScan} on its
+     * key field, an ascending {@link OrderBy}, a {@link Filter} over a sorted
+     * input, or a sort-merge join on its order field.
+     *
+     * @param it    the iterator to check
+     * @param field the index of the field in it's TupleDesc
+     */
+    public static boolean isSortedOn(DbIterator it, int field) {
+        if (it instanceof BTreeScan) {
+            return ((BTreeScan) it).getKeyField() == field;
+        } else if (it instanceof OrderBy) {
+            OrderBy o = (OrderBy) it;
+            return o.isASC() && o.getOrderByField() == field;
+        } else if (it instanceof Filter) {
+            return isSortedOn(((Filter) it).getChildren()[0], field);
+        } else if (it instanceof SortMergeJoin) {
+            return ((SortMergeJoin) it).getOrderField() == field;
+        }
+        return false;
+    }
+
+    private static DbIterator sorted(DbIterator child, int field) {
+        return isSortedOn(child, field) ? child : new OrderBy(field, true, child);
+    }
+
+    /**
+     * @return the index of the output field on which the tuples produced by
+     *         this join are sorted in ascending order
+     */
+    public int getOrderField() {
+        return p.getField1();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void open() throws DbException, NoSuchElementException, TransactionAbortedException {
+        super.open();
+        inner = new ArrayList<Tuple>();
+        pos = to = bound = 0;
+        rangeReady = false;
+        if (p.getOperator() == Predicate.Op.EQUALS) {
+            nextInner = child2.hasNext() ? child2.next() : null;
+        } else {
+            while (child2.hasNext())
+                inner.add(child2.next());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        super.close();
+        inner = null;
+        nextInner = null;
+    }
+
+    /**
+     * Children are re-wrapped in an {@link OrderBy} if they are not sorted on
+     * their join field.
+     */
+    @Override
+    public void setChildren(DbIterator[] children) {
+        super.setChildren(new DbIterator[]{sorted(children[0], p.getField1()), sorted(children[1], p.getField2())});
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.
+     *
+     * @return The next matching tuple.
+     * @see JoinPredicate#filter
+     */
+    @Override
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        if (p.getOperator() == Predicate.Op.EQUALS)
+            return fetchNextEquals();
+        return fetchNextRange();
+    }
+
+    /**
+     * Merge step for equality joins. inner holds the run of inner tuples that
+     * share one key; it is replayed for every outer tuple with that key.
+     */
+    private Tuple fetchNextEquals() throws TransactionAbortedException, DbException {
+        while (tuple1 != null) {
+            Field key = tuple1.getField(p.getField1());
+            if (!inner.isEmpty()) {
+                int c = compare(key, inner.get(0).getField(p.getField2()));
+                if (c == 0) {
+                    if (pos < inner.size())
+                        return mergeTuples(tuple1, inner.get(pos++));
+                    advanceOuter();
+                    continue;
+                }
+                if (c < 0) {
+                    advanceOuter();
+                    continue;
+                }
+            }
+            // the current run is behind the outer key; read the next run
+            inner.clear();
+            pos = 0;
+            while (nextInner != null && compare(nextInner.getField(p.getField2()), key) < 0)
+                nextInner = child2.hasNext() ? child2.next() : null;
+            if (nextInner == null)
+                return null;
+            Field innerKey = nextInner.getField(p.getField2());
+            while (nextInner != null && compare(nextInner.getField(p.getField2()), innerKey) == 0) {
+                inner.add(nextInner);
+                nextInner = child2.hasNext() ? child2.next() : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merge step for range joins. For each outer tuple the matching inner
+     * tuples are either a prefix (outer &gt; inner) or a suffix (outer &lt;
+     * inner) of the sorted inner input, delimited by bound.
+     */
+    private Tuple fetchNextRange() throws TransactionAbortedException, DbException {
+        while (tuple1 != null) {
+            if (!rangeReady) {
+                Field key = tuple1.getField(p.getField1());
+                Predicate.Op op = p.getOperator();
+                boolean inclusive = op == Predicate.Op.LESS_THAN || op == Predicate.Op.GREATER_THAN_OR_EQ;
+                while (bound < inner.size()) {
+                    int c = compare(inner.get(bound).getField(p.getField2()), key);
+                    if (c < 0 || (inclusive && c == 0))
+                        bound++;
+                    else
+                        break;
+                }
+                if (op == Predicate.Op.LESS_THAN || op == Predicate.Op.LESS_THAN_OR_EQ) {
+                    pos = bound;
+                    to = inner.size();
+                } else {
+                    pos = 0;
+                    to = bound;
+                }
+                rangeReady = true;
+            }
+            if (pos < to)
+                return mergeTuples(tuple1, inner.get(pos++));
+            advanceOuter();
+        }
+        return null;
+    }
+
+    private void advanceOuter() throws TransactionAbortedException, DbException {
+        tuple1 = child1.hasNext() ? child1.next() : null;
+        pos = 0;
+        rangeReady = false;
+    }
+
+    private static int compare(Field a, Field b) {
+        if (a.compare(Predicate.Op.EQUALS, b))
+            return 0;
+        return a.compare(Predicate.Op.LESS_THAN, b) ? -1 : 1;
+    }
+}
@@ -1,10 +1,15 @@
 package simpledb;
 
+import java.io.Serializable;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
  */
-public class StringHistogram {
+public class StringHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
     final IntHistogram hist;
 
     /**
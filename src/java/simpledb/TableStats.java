@@ -1,9 +1,36 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TableStats represents statistics (e.g., histograms) about base tables in a
@@ -11,18 +38,85 @@ import java.util.concurrent.ConcurrentHashMap;
  *
  * This class is not needed in implementing lab1, lab2 and lab3.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 2L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /**
+     * Default value of {@link #getRefreshFraction()}.
+     */
+    public static final double DEFAULT_REFRESH_FRACTION = 0.2;
+
+    /**
+     * Minimum number of modifications of a table before its statistics are
+     * recomputed, so that small tables are not analyzed over and over.
+     */
+    public static final int MIN_REFRESH_MODIFICATIONS = 100;
+
+    /**
+     * Number of heap file pages sampled by one task of the statistics
+     * worker pool.
+     */
+    static final int PARTITION_PAGES = 64;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private static volatile int version;
+
+    private static volatile File statsFile;
+    private static boolean statsFileLoaded;
+    private static volatile double refreshFraction = DEFAULT_REFRESH_FRACTION;
+
+    // modifications since the statistics of each table were computed, and
+    // the count at which they are recomputed
+    private static final ConcurrentHashMap<Integer, AtomicInteger> modifications = new ConcurrentHashMap<Integer, AtomicInteger>();
+    private static final ConcurrentHashMap<Integer, Integer> refreshAt = new ConcurrentHashMap<Integer, Integer>();
+
+    private static final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TableStats refresher");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Returns the statistics of a table, loading them from the statistics
+     * file (see {@link #setStatsFile}) the first time statistics are asked
+     * for that have not been computed in this process.
+     */
     public static TableStats getTableStats(String tablename) {
-        return statsMap.get(tablename);
+        TableStats s = statsMap.get(tablename);
+        if (s == null && loadStatsFile())
+            s = statsMap.get(tablename);
+        return s;
     }
 
     public static void setTableStats(String tablename, TableStats stats) {
         statsMap.put(tablename, stats);
+        version++;
+        watch(stats);
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void clearStatistics() {
+        statsMap.clear();
+        modifications.clear();
+        refreshAt.clear();
+        version++;
+    }
+
+    /**
+     * Returns a counter that changes whenever the statistics of a table are
+     * replaced, so that plans optimized with the old statistics can be
+     * invalidated.
+     */
+    public static int getVersion() {
+        return version;
     }
 
     public static void setStatsMap(HashMap<String,TableStats> s)
@@ -31,6 +125,7 @@ public class TableStats {
             java.lang.reflect.Field statsMapF = TableStats.class.getDeclaredField("statsMap");
             statsMapF.setAccessible(true);
             statsMapF.set(null, s);
+            version++;
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -44,27 +139,243 @@ public class TableStats {
     }
 
     public static Map<String, TableStats> getStatsMap() {
+        loadStatsFile();
         return statsMap;
     }
 
+    /**
+     * Computes the statistics of every table in the catalog, and saves them
+     * to the statistics file if one is set.
+     */
     public static void computeStatistics() {
+        System.out.println("Computing table stats.");
+        ArrayList<Integer> tableids = new ArrayList<Integer>();
         Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        while (tableIt.hasNext())
+            tableids.add(tableIt.next());
+        computeStatistics(tableids);
+        System.out.println("Done.");
+    }
 
-        System.out.println("Computing table stats.");
+    /**
+     * Computes the statistics of the tables in the catalog that have none,
+     * either in memory or in the statistics file, and saves them to the
+     * statistics file if one is set.
+     */
+    public static void computeMissingStatistics() {
+        ArrayList<Integer> tableids = new ArrayList<Integer>();
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
-            setTableStats(Database.getCatalog().getTableName(tableid), s);
+            if (getTableStats(Database.getCatalog().getTableName(tableid)) == null)
+                tableids.add(tableid);
         }
-        System.out.println("Done.");
+        if (!tableids.isEmpty())
+            computeStatistics(tableids);
+        System.out.println("Computed stats for " + tableids.size() + " tables.");
+    }
+
+    /**
+     * Computes the statistics of the given tables concurrently on the
+     * statistics worker pool, which also splits each heap file into page
+     * ranges sampled in parallel, and saves them.
+     */
+    private static void computeStatistics(List<Integer> tableids) {
+        List<Callable<TableStats>> tasks = new ArrayList<Callable<TableStats>>();
+        for (final int tableid : tableids) {
+            tasks.add(new Callable<TableStats>() {
+                public TableStats call() {
+                    return new TableStats(tableid, IOCOSTPERPAGE);
+                }
+            });
+        }
+        try {
+            for (TableStats s : runAll(tasks))
+                setTableStats(Database.getCatalog().getTableName(s.tableid), s);
+        } catch (DbException e) {
+            e.printStackTrace();
+        }
+        saveStatistics();
+    }
+
+    /**
+     * Sets the file statistics are persisted in. Statistics in the file are
+     * loaded lazily, the first time statistics are asked for that are not in
+     * memory; entries for tables that no longer exist, have a different
+     * schema or a different number of pages are ignored.
+     *
+     * @param f the statistics file, or null to not persist statistics
+     */
+    public static synchronized void setStatsFile(File f) {
+        statsFile = f;
+        statsFileLoaded = false;
+    }
+
+    /**
+     * @return the file statistics are persisted in, or null
+     */
+    public static File getStatsFile() {
+        return statsFile;
     }
 
+    /**
+     * Writes the statistics of all tables to the statistics file, if one is
+     * set. The file is replaced atomically, so a crash while saving leaves
+     * the previous statistics in place.
+     */
+    public static synchronized void saveStatistics() {
+        File f = statsFile;
+        if (f == null)
+            return;
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeObject(new HashMap<String, TableStats>(statsMap));
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Loads the statistics file into memory the first time it is called
+     * after {@link #setStatsFile}, keeping statistics already in memory.
+     *
+     * @return true if the file was loaded by this call
+     */
+    private static synchronized boolean loadStatsFile() {
+        File f = statsFile;
+        if (f == null || statsFileLoaded)
+            return false;
+        statsFileLoaded = true;
+        if (!f.exists())
+            return false;
+        HashMap<?, ?> saved;
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                saved = (HashMap<?, ?>) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (ClassNotFoundException e) {
+            e.printStackTrace();
+            return false;
+        }
+        Catalog catalog = Database.getCatalog();
+        for (Map.Entry<?, ?> e : saved.entrySet()) {
+            String name = (String) e.getKey();
+            TableStats s = (TableStats) e.getValue();
+            try {
+                if (catalog.getTableId(name) != s.tableid || !catalog.getTupleDesc(s.tableid).equals(s.td))
+                    continue;
+                DbFile file = catalog.getDatabaseFile(s.tableid);
+                int pages = file instanceof HeapFile ? ((HeapFile) file).numPages()
+                        : file instanceof BTreeFile ? ((BTreeFile) file).numPages() : 0;
+                if (pages != s.basePages)
+                    continue;
+            } catch (NoSuchElementException ex) {
+                continue;
+            }
+            if (statsMap.putIfAbsent(name, s) == null)
+                watch(s);
+        }
+        version++;
+        return true;
+    }
+
+    /**
+     * @return the fraction of a table's tuples that must be inserted or
+     * deleted before its statistics are recomputed
+     */
+    public static double getRefreshFraction() {
+        return refreshFraction;
+    }
+
+    /**
+     * Sets the fraction of a table's tuples that must be inserted or deleted
+     * before its statistics are recomputed in the background.
+     */
+    public static void setRefreshFraction(double fraction) {
+        refreshFraction = fraction;
+    }
+
+    /**
+     * Records that a tuple of a table was inserted or deleted. Once the
+     * number of modifications since its statistics were computed passes
+     * {@link #getRefreshFraction()} of its tuples, the statistics are
+     * recomputed by a background thread and saved to the statistics file.
+     * Called by {@link BufferPool#insertTuple} and
+     * {@link BufferPool#deleteTuple}.
+     *
+     * @param tableid the table that was modified
+     */
+    public static void recordModification(int tableid) {
+        AtomicInteger count = modifications.get(tableid);
+        Integer limit = refreshAt.get(tableid);
+        if (count == null || limit == null || count.incrementAndGet() != limit)
+            return;
+        final int id = tableid;
+        refresher.submit(new Runnable() {
+            public void run() {
+                try {
+                    String name = Database.getCatalog().getTableName(id);
+                    TableStats old = statsMap.get(name);
+                    if (old == null || old.tableid != id)
+                        return;
+                    TableStats fresh = new TableStats(id, old.costPerPageIO);
+                    if (!fresh.isComplete()) {
+                        // keep the old statistics and try again after as
+                        // many modifications
+                        watch(old);
+                        return;
+                    }
+                    setTableStats(name, fresh);
+                    saveStatistics();
+                } catch (NoSuchElementException e) {
+                    // the table was dropped
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of modifications of a table recorded since its
+     * statistics were last computed
+     */
+    public static int getModifications(int tableid) {
+        AtomicInteger count = modifications.get(tableid);
+        return count == null ? 0 : count.get();
+    }
+
+    private static void watch(TableStats s) {
+        refreshAt.put(s.tableid, Math.max(MIN_REFRESH_MODIFICATIONS, (int) (refreshFraction * s.baseTups)));
+        modifications.put(s.tableid, new AtomicInteger());
+    }
+
+    private final int tableid;
     private final int baseTups;
     private final int basePages;
     private final int costPerPageIO;
+    // false if reading the table failed part way, leaving statistics of
+    // only the tuples read before the failure
+    private final boolean complete;
     private final Object[] histograms;
     private final int[] maxs, mins;
     private final TupleDesc td;
+    // per field: the most common values and their frequencies, the sum of
+    // those frequencies, and the estimated number of distinct values
+    private final ArrayList<HashMap<Field, Double>> mcvs;
+    private final double[] mcvTotals;
+    private final long[] numDistinct;
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -72,9 +383,84 @@ public class TableStats {
      */
     static final int NUM_HIST_BINS = 100;
 
+    /**
+     * Maximum number of most common values kept per field.
+     */
+    static final int NUM_MCVS = 10;
+
+    /**
+     * Default value of {@link #getSampleSize()}.
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 20000;
+
+    /**
+     * Default value of {@link #getSamplePages()}.
+     */
+    public static final int DEFAULT_SAMPLE_PAGES = 1024;
+
+    private static int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private static int samplePages = DEFAULT_SAMPLE_PAGES;
+    // seeds sampling in place of the table id when set
+    private static volatile Long sampleSeed = null;
+
+    /**
+     * @return the maximum number of tuples histograms are built from
+     */
+    public static int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Sets the maximum number of tuples histograms are built from. Larger
+     * samples give more accurate histograms and take more memory to build.
+     */
+    public static void setSampleSize(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("sample size must be positive");
+        sampleSize = size;
+    }
+
+    /**
+     * @return the maximum number of pages of a heap file read to compute
+     * its statistics
+     */
+    public static int getSamplePages() {
+        return samplePages;
+    }
+
+    /**
+     * Sets the maximum number of pages of a heap file read to compute its
+     * statistics. Heap files with more pages are sampled a page at a time,
+     * and their tuple count is extrapolated from the sampled pages.
+     */
+    public static void setSamplePages(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("sample pages must be positive");
+        samplePages = pages;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    // sampling is seeded by the table id, which depends on the path of the
+    // table's file; a fixed seed, or null for the table id, makes tests of
+    // temporary tables reproducible
+    static void setSampleSeed(Long seed) {
+        sampleSeed = seed;
+    }
+
     /**
      * Create a new TableStats object, that keeps track of statistics on each
-     * column of a table
+     * column of a table.
+     * <p>
+     * The table is read once. Heap files of at most {@link #getSamplePages()}
+     * pages, and B+ tree files, are scanned in full; larger heap files are
+     * block-sampled by reading that many randomly chosen pages. Heap file
+     * pages are split into ranges of {@link #PARTITION_PAGES} pages that are
+     * sampled in parallel and merged, and are read without being added to
+     * the buffer pool. The tuples read are reservoir-sampled down to
+     * {@link #getSampleSize()} tuples, from which the histograms (equi-depth
+     * for integer fields) and the most common values of every field are
+     * computed. The number of distinct values of every field is estimated
+     * with a {@link HyperLogLog} sketch of all tuples read.
      *
      * @param tableid
      *            The table over which to compute statistics
@@ -83,92 +469,292 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
-        // For this function, you'll have to get the
-        // DbFile for the table in question,
-        // then scan through its tuples and calculate
-        // the values that you need.
-        // You should try to do this reasonably efficiently, but you don't
-        // necessarily have to (for example) do everything
-        // in a single scan of the table.
         DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        this.tableid = tableid;
         td = f.getTupleDesc();
 
-        if (!(f instanceof HeapFile)) {
+        if (!(f instanceof HeapFile || f instanceof BTreeFile)) {
             basePages = 0;
             baseTups = 0;
             this.costPerPageIO=ioCostPerPage;
             histograms=null;
             mins=maxs=null;
+            mcvs=null;
+            mcvTotals=null;
+            numDistinct=null;
+            complete = true;
             return;
         }
 
         costPerPageIO = ioCostPerPage;
-        histograms = new Object[td.numFields()];
-        maxs = new int[td.numFields()];
-        mins = new int[td.numFields()];
-        for (int i = 0; i < td.numFields(); i++) {
-            maxs[i] = Integer.MIN_VALUE;
-            mins[i] = Integer.MAX_VALUE;
-        }
-        // scan the data once to determine the min and max valus
+        basePages = f instanceof HeapFile ? ((HeapFile) f).numPages() : ((BTreeFile) f).numPages();
+
+        // seeded by table so that statistics, and plans, are reproducible
+        Long fixedSeed = sampleSeed;
+        Random rand = new Random(fixedSeed != null ? fixedSeed : tableid);
+        Sample sample = new Sample(td, sampleSize, rand);
+        int pagesRead = basePages;
+        boolean sampled = false;
         try {
-            Transaction t = new Transaction();
-            t.start();
-            SeqScan s = new SeqScan(t.getId(), tableid, "t");
-            s.open();
-            while (s.hasNext()) {
-                Tuple tup = s.next();
-                for (int i = 0; i < td.numFields(); i++) {
-                    if (td.getFieldType(i) == Type.INT_TYPE) {
-                        int v = ((IntField) tup.getField(i)).getValue();
-                        if (v > maxs[i])
-                            maxs[i] = v;
-                        if (v < mins[i])
-                            mins[i] = v;
-                    }
+            if (f instanceof HeapFile) {
+                int[] pages;
+                if (basePages > samplePages) {
+                    pagesRead = samplePages;
+                    pages = choosePages(basePages, samplePages, rand);
+                } else {
+                    pages = new int[basePages];
+                    for (int p = 0; p < basePages; p++)
+                        pages[p] = p;
+                }
+                List<Callable<Sample>> tasks = new ArrayList<Callable<Sample>>();
+                for (int from = 0; from < pages.length; from += PARTITION_PAGES) {
+                    final int[] part = Arrays.copyOfRange(pages, from, Math.min(pages.length, from + PARTITION_PAGES));
+                    final long seed = rand.nextLong();
+                    tasks.add(new Callable<Sample>() {
+                        public Sample call() {
+                            return samplePages(part, new Random(seed));
+                        }
+                    });
+                }
+                for (Sample part : runAll(tasks))
+                    sample.merge(part);
+            } else {
+                Transaction t = new Transaction();
+                t.start();
+                boolean committed = false;
+                try {
+                    SeqScan s = new SeqScan(t.getId(), tableid, "t");
+                    s.open();
+                    while (s.hasNext())
+                        sample.add(s.next());
+                    s.close();
+                    t.commit();
+                    committed = true;
+                } finally {
+                    // release the locks of a scan that failed, e.g. as the
+                    // victim of a deadlock
+                    if (!committed)
+                        t.abort();
                 }
             }
-            t.commit();
+            sampled = true;
         } catch (Exception e) {
             e.printStackTrace();
         }
+        complete = sampled;
+        baseTups = pagesRead == basePages ? sample.count
+                : (int) Math.round((double) sample.count * basePages / pagesRead);
 
+        mins = sample.mins;
+        maxs = sample.maxs;
+        histograms = new Object[td.numFields()];
+        mcvs = new ArrayList<HashMap<Field, Double>>(td.numFields());
+        mcvTotals = new double[td.numFields()];
+        numDistinct = new long[td.numFields()];
         for (int i = 0; i < td.numFields(); i++) {
             if (td.getFieldType(i) == Type.INT_TYPE) {
-                histograms[i] = new IntHistogram(NUM_HIST_BINS, mins[i],
-                        maxs[i]);
+                int[] values = new int[sample.tuples.size()];
+                for (int t = 0; t < values.length; t++)
+                    values[t] = ((IntField) sample.tuples.get(t).getField(i)).getValue();
+                histograms[i] = new EquiDepthHistogram(NUM_HIST_BINS, values);
             } else {
-                histograms[i] = new StringHistogram(NUM_HIST_BINS);
+                StringHistogram hist = new StringHistogram(NUM_HIST_BINS);
+                for (Tuple tup : sample.tuples)
+                    hist.addValue(((StringField) tup.getField(i)).getValue());
+                histograms[i] = hist;
             }
+            mcvs.add(mostCommonValues(sample.tuples, i));
+            for (double freq : mcvs.get(i).values())
+                mcvTotals[i] += freq;
+            numDistinct[i] = estimateNumDistinct(sample.sketches[i].estimate(), sample.count, baseTups);
+        }
+    }
+
+    /**
+     * Finds the values of a field that are markedly more frequent than the
+     * average value in a sample: at most {@link #NUM_MCVS} values that occur
+     * more than once and over 1.25 times as often as the average.
+     *
+     * @return the values found and their frequencies in the sample
+     */
+    private static HashMap<Field, Double> mostCommonValues(List<Tuple> tuples, int field) {
+        HashMap<Field, Integer> counts = new HashMap<Field, Integer>();
+        for (Tuple tup : tuples) {
+            Field v = tup.getField(field);
+            Integer c = counts.get(v);
+            counts.put(v, c == null ? 1 : c + 1);
+        }
+        ArrayList<Map.Entry<Field, Integer>> entries = new ArrayList<Map.Entry<Field, Integer>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<Field, Integer>>() {
+            public int compare(Map.Entry<Field, Integer> a, Map.Entry<Field, Integer> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        HashMap<Field, Double> mcv = new HashMap<Field, Double>();
+        double threshold = 1.25 * tuples.size() / Math.max(1, counts.size());
+        for (Map.Entry<Field, Integer> e : entries) {
+            if (mcv.size() == NUM_MCVS || e.getValue() < 2 || e.getValue() <= threshold)
+                break;
+            mcv.put(e.getKey(), (double) e.getValue() / tuples.size());
+        }
+        return mcv;
+    }
+
+    /**
+     * Extrapolates the number of distinct values of a field from the number
+     * found in the tuples read. When only some pages were read, the values
+     * not seen are assumed to be new in proportion to the fraction of
+     * distinct values among those read, so a key column scales with the
+     * table and a column of few values does not.
+     *
+     * @param distinct the number of distinct values among the tuples read
+     * @param read     the number of tuples read
+     * @param total    the estimated number of tuples in the table
+     */
+    private static long estimateNumDistinct(long distinct, int read, int total) {
+        if (read == 0)
+            return 0;
+        distinct = Math.min(distinct, read);
+        if (total <= read)
+            return distinct;
+        double unique = (double) distinct / read;
+        return Math.min(total, Math.round(distinct + (total - read) * unique));
+    }
+
+    /**
+     * Samples the tuples on the given pages of this table's heap file. Pages
+     * are read with {@link BufferPool#peekPage}, so they are not added to
+     * the buffer pool.
+     */
+    private Sample samplePages(int[] pages, Random rand) {
+        Sample sample = new Sample(td, sampleSize, rand);
+        for (int pgNo : pages) {
+            HeapPage page = (HeapPage) Database.getBufferPool().peekPage(new HeapPageId(tableid, pgNo));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext())
+                sample.add(it.next());
         }
+        return sample;
+    }
 
-        basePages = ((HeapFile) f).numPages();
-        int count = 0;
+    private static <T> List<T> runAll(List<Callable<T>> tasks) throws DbException {
+        List<T> results = new ArrayList<T>(tasks.size());
         try {
-            Transaction t = new Transaction();
-            t.start();
-            SeqScan s = new SeqScan(t.getId(), tableid, "t");
-            s.open();
-            while (s.hasNext()) { // scan again to populate histograms
-                Tuple tup = s.next();
-                count++;
-                for (int i = 0; i < td.numFields(); i++) {
-                    if (td.getFieldType(i) == Type.INT_TYPE) {
-                        int v = ((IntField) tup.getField(i)).getValue();
-                        ((IntHistogram) histograms[i]).addValue(v);
-                    } else {
-                        String v = ((StringField) tup.getField(i)).getValue();
-                        ((StringHistogram) histograms[i]).addValue(v);
-                    }
-                }
+            for (Future<T> f : POOL.invokeAll(tasks)) {
+                results.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while computing statistics");
+        } catch (ExecutionException e) {
+            DbException dbe = new DbException("computing statistics failed: " + e.getCause());
+            dbe.initCause(e.getCause());
+            throw dbe;
+        }
+        return results;
+    }
+
+    /**
+     * Chooses k distinct page numbers out of n uniformly at random (Floyd's
+     * algorithm), in increasing order so that they are read sequentially.
+     */
+    private static int[] choosePages(int n, int k, Random rand) {
+        HashSet<Integer> chosen = new HashSet<Integer>();
+        for (int j = n - k; j < n; j++) {
+            int t = rand.nextInt(j + 1);
+            if (!chosen.add(t))
+                chosen.add(j);
+        }
+        int[] pages = new int[k];
+        int i = 0;
+        for (int pgNo : chosen)
+            pages[i++] = pgNo;
+        Arrays.sort(pages);
+        return pages;
+    }
 
+    /**
+     * The tuples read while computing statistics: their count, the minimum
+     * and maximum of every integer field, a sketch of the distinct values of
+     * every field, and a uniform reservoir sample of
+     * at most a fixed number of them (Vitter's algorithm R). Samples of
+     * partitions of a table are computed independently and merged.
+     */
+    private static class Sample {
+        final TupleDesc td;
+        final int size;
+        final Random rand;
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        final int[] mins, maxs;
+        final HyperLogLog[] sketches;
+        int count;
+
+        Sample(TupleDesc td, int size, Random rand) {
+            this.td = td;
+            this.size = size;
+            this.rand = rand;
+            mins = new int[td.numFields()];
+            maxs = new int[td.numFields()];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+            sketches = new HyperLogLog[td.numFields()];
+            for (int i = 0; i < sketches.length; i++)
+                sketches[i] = new HyperLogLog();
+        }
+
+        /**
+         * Merges the sample of another, disjoint set of tuples into this
+         * one. The merged reservoir is drawn from both reservoirs without
+         * replacement, each draw taken from a side in proportion to the
+         * number of its tuples not drawn yet, so it is again a uniform
+         * sample of the union.
+         */
+        void merge(Sample o) {
+            for (int i = 0; i < mins.length; i++) {
+                mins[i] = Math.min(mins[i], o.mins[i]);
+                maxs[i] = Math.max(maxs[i], o.maxs[i]);
+                sketches[i].merge(o.sketches[i]);
             }
-            t.commit();
-        } catch (Exception e) {
-            e.printStackTrace();
+            ArrayList<Tuple> a = tuples, b = o.tuples;
+            Collections.shuffle(a, rand);
+            Collections.shuffle(b, rand);
+            long na = count, nb = o.count;
+            int ia = 0, ib = 0;
+            ArrayList<Tuple> merged = new ArrayList<Tuple>();
+            while (merged.size() < size && (ia < a.size() || ib < b.size())) {
+                boolean fromA = ib == b.size() || (ia < a.size() && rand.nextDouble() * (na + nb) < na);
+                if (fromA) {
+                    merged.add(a.get(ia++));
+                    na--;
+                } else {
+                    merged.add(b.get(ib++));
+                    nb--;
+                }
+            }
+            tuples = merged;
+            count += o.count;
         }
 
-        baseTups = count;
+        void add(Tuple tup) {
+            for (int i = 0; i < td.numFields(); i++) {
+                sketches[i].add(tup.getField(i));
+                if (td.getFieldType(i) == Type.INT_TYPE) {
+                    int v = ((IntField) tup.getField(i)).getValue();
+                    if (v > maxs[i])
+                        maxs[i] = v;
+                    if (v < mins[i])
+                        mins[i] = v;
+                }
+            }
+            count++;
+            if (tuples.size() < size) {
+                tuples.add(tup);
+            } else {
+                int r = rand.nextInt(count);
+                if (r < size)
+                    tuples.set(r, tup);
+            }
+        }
     }
 
     /**
@@ -189,6 +775,25 @@ public class TableStats {
         //return 0;
     }
 
+    /**
+     * Estimates the cost of one probe of the B+ tree this table is stored in,
+     * given that the probe returns the specified number of tuples: one page
+     * read per level of the tree on the way down, plus the leaf pages that
+     * hold the matching tuples. The fan-out of the tree is approximated by the
+     * number of tuples per page.
+     *
+     * @param matchingTuples
+     *            The number of tuples the probe is expected to return
+     * @return The estimated cost of the probe.
+     */
+    public double estimateIndexProbeCost(double matchingTuples) {
+        if (basePages == 0 || baseTups == 0)
+            return costPerPageIO;
+        double tupsPerPage = Math.max(2.0, (double) baseTups / basePages);
+        double height = Math.ceil(Math.log(Math.max(basePages, 2)) / Math.log(tupsPerPage));
+        return (height + Math.ceil(matchingTuples / tupsPerPage)) * costPerPageIO;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
@@ -212,26 +817,39 @@ public class TableStats {
      *        the operator in the predicate
      * The semantic of the method is that, given the table, and then given a
      * tuple, of which we do not know the value of the field, return the
-     * expected selectivity. You may estimate this value from the histograms.
+     * expected selectivity. For EQUALS this is the chance that two tuples
+     * drawn at random agree on the field, computed from the most common
+     * values and an even spread of the other distinct values.
      * */
     public double avgSelectivity(int field, Predicate.Op op) {
         // some code goes here
-        if (op == Predicate.Op.EQUALS) {
-            if (this.histograms != null)
-                if (td.getFieldType(field) == Type.INT_TYPE) {
-                    return ((IntHistogram) this.histograms[field])
-                            .avgSelectivity();
-                } else if (td.getFieldType(field) == Type.STRING_TYPE) {
-                    return ((StringHistogram) this.histograms[field])
-                            .avgSelectivity();
-                }
+        if (op == Predicate.Op.EQUALS && histograms != null) {
+            if (numDistinct[field] == 0)
+                return 0.0;
+            double sel = 0;
+            for (double freq : mcvs.get(field).values())
+                sel += freq * freq;
+            double rest = 1 - mcvTotals[field];
+            return sel + rest * rest / Math.max(1, numDistinct[field] - mcvs.get(field).size());
         }
         return 1.0; // make something up
     }
 
+    /**
+     * @param field
+     *            the index of the field
+     * @return the estimated number of distinct values of the field, from a
+     *         HyperLogLog sketch of the tuples read
+     */
+    public long getNumDistinct(int field) {
+        return numDistinct == null ? 0 : numDistinct[field];
+    }
+
     /**
      * Estimate the selectivity of predicate <tt>field op constant</tt> on the
-     * table.
+     * table. Equality is estimated from the most common values of the field,
+     * and otherwise from the number of distinct values; ranges over integer
+     * fields from an equi-depth histogram.
      *
      * @param field
      *            The field over which the predicate ranges
@@ -240,28 +858,75 @@ public class TableStats {
      * @param constant
      *            The value against which the field is compared
      * @return The estimated selectivity (fraction of tuples that satisfy) the
-     *         predicate
+     *         predicate, corrected by what {@link CardinalityFeedback} learned
+     *         from earlier executions of predicates of the same shape
      */
     public double estimateSelectivity(int field, Predicate.Op op, Field constant) {
-        if (histograms != null) {
-            if (td.getFieldType(field) == Type.INT_TYPE) {
-                IntHistogram hist = (IntHistogram) histograms[field];
-                double sel = hist.estimateSelectivity(op,
-                        ((IntField) constant).getValue());
-//                System.out.println("SELECTIVITY OF PREDICATE " + field + " "
-//                        + op + " " + constant + " IS " + sel);
-                return sel;
-            } else {
-                StringHistogram hist = (StringHistogram) histograms[field];
-                double sel = hist.estimateSelectivity(op,
-                        ((StringField) constant).getValue());
-//                System.out.println("SELECTIVITY OF PREDICATE " + field + " "
-//                        + op + " " + constant + " IS " + sel);
+        double sel = estimateRawSelectivity(field, op, constant);
+        return Math.min(1.0, sel * CardinalityFeedback.getSelectivityCorrection(tableid, field, op));
+    }
 
-                return sel;
-            }
+    /**
+     * Estimate the selectivity of predicate <tt>field op constant</tt> from
+     * the statistics alone, without feedback.
+     */
+    double estimateRawSelectivity(int field, Predicate.Op op, Field constant) {
+        if (histograms == null)
+            return 1.0; // make something up.
+        if (op == Predicate.Op.EQUALS)
+            return equalsSelectivity(field, constant);
+        if (op == Predicate.Op.NOT_EQUALS)
+            return 1 - equalsSelectivity(field, constant);
+        if (td.getFieldType(field) == Type.INT_TYPE) {
+            EquiDepthHistogram hist = (EquiDepthHistogram) histograms[field];
+            return hist.estimateSelectivity(op, ((IntField) constant).getValue());
+        } else {
+            StringHistogram hist = (StringHistogram) histograms[field];
+            return hist.estimateSelectivity(op, ((StringField) constant).getValue());
         }
-        return 1.0; // make something up.
+    }
+
+    private double equalsSelectivity(int field, Field constant) {
+        if (td.getFieldType(field) == Type.INT_TYPE) {
+            int v = ((IntField) constant).getValue();
+            if (v < mins[field] || v > maxs[field])
+                return 0.0;
+        }
+        Double freq = mcvs.get(field).get(constant);
+        if (freq != null)
+            return freq;
+        long others = numDistinct[field] - mcvs.get(field).size();
+        return (1 - mcvTotals[field]) / Math.max(1, others);
+    }
+
+    /**
+     * Estimate the selectivity of the join predicate <tt>field op
+     * other.otherField</tt> over the cross product of this table and
+     * another, from the histograms of both fields.
+     *
+     * @param field
+     *            an integer field of this table
+     * @param op
+     *            a range operator
+     * @param other
+     *            the statistics of the other table
+     * @param otherField
+     *            an integer field of the other table
+     * @return The estimated selectivity of the join predicate
+     */
+    public double estimateJoinSelectivity(int field, Predicate.Op op, TableStats other, int otherField) {
+        if (histograms == null || other.histograms == null)
+            return 1.0;
+        return ((EquiDepthHistogram) histograms[field]).estimateJoinSelectivity(op,
+                (EquiDepthHistogram) other.histograms[otherField]);
+    }
+
+    /**
+     * @return false if reading the table failed part way, so that these
+     * statistics describe only the tuples read before the failure
+     */
+    boolean isComplete() {
+        return complete;
     }
 
     /**
@@ -9,15 +9,32 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
+    // reads a snapshot, so it neither locks nor logs
+    private volatile boolean snapshot = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * Creates a transaction. A read-only transaction reads a snapshot of the
+     * database when the buffer pool keeps page versions (see
+     * {@link BufferPool#beginSnapshot}), and locks pages as usual otherwise.
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly && Database.getBufferPool().beginSnapshot(tid)) {
+            snapshot = true;
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -44,11 +61,13 @@ public class Transaction {
 
         if (started) {
             //write commit / abort records
-            if (abort) {
+            if (snapshot) {
+                //nothing to log or undo
+            } else if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
+                //the dirty pages of this transaction are written lazily by
+                //the buffer pool; only the commit record must reach disk
                 Database.getLogFile().logCommit(tid);
             }
 
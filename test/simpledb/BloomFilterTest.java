@@ -0,0 +1,61 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+
+  /**
+   * Every value added must be reported as possibly present
+   */
+  @Test public void noFalseNegatives() {
+    BloomFilter bf = new BloomFilter(1000);
+    for (int i = 0; i < 1000; i++) {
+      bf.add(new IntField(i * 3));
+      bf.add(new StringField("key" + i, Type.STRING_LEN));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(bf.mightContain(new IntField(i * 3)));
+      assertTrue(bf.mightContain(new StringField("key" + i, Type.STRING_LEN)));
+    }
+  }
+
+  /**
+   * Values never added are mostly rejected
+   */
+  @Test public void falsePositiveRate() {
+    BloomFilter bf = new BloomFilter(1000);
+    for (int i = 0; i < 1000; i++) {
+      bf.add(new IntField(i));
+    }
+    int fp = 0;
+    for (int i = 1000; i < 11000; i++) {
+      if (bf.mightContain(new IntField(i)))
+        fp++;
+    }
+    // about 1% expected; allow generous slack
+    assertTrue("false positives: " + fp, fp < 500);
+  }
+
+  /**
+   * An empty filter rejects everything
+   */
+  @Test public void empty() {
+    BloomFilter bf = new BloomFilter(0);
+    assertTrue(bf.numBits() >= 64);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(!bf.mightContain(new IntField(i)));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BloomFilterTest.class);
+  }
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.After;
 import org.junit.Before;
@@ -58,6 +59,7 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
 
     @After public void tearDown() throws Exception {
         Database.getBufferPool().transactionComplete(tid);
+        BufferPool.setCleanerInterval(BufferPool.DEFAULT_CLEANER_INTERVAL);
     }
 
     /**
@@ -134,6 +136,100 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Committing only forces the log: the page the transaction changed stays
+     * dirty in the buffer pool until it is flushed, after its log records
+     */
+    @Test public void noForceCommit() throws Exception {
+        BufferPool.setCleanerInterval(60000);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        Long recLsn = Database.getBufferPool().getDirtyPageTable().get(pid);
+        assertNotNull(recLsn);
+        assertTrue(Database.getLogFile().getFlushedLsn() > recLsn);
+        assertEquals(504, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+
+        Database.getBufferPool().flushAllPages();
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+        assertEquals(503, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * The page cleaner writes dirty pages in the background
+     */
+    @Test public void pageCleaner() throws Exception {
+        BufferPool.setCleanerInterval(10);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), empty.getId(), Utility.getHeapTuple(1, 2));
+        t.commit();
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        for (int i = 0; i < 500 && !Database.getBufferPool().getDirtyPageTable().isEmpty(); i++)
+            Thread.sleep(10);
+        assertTrue(Database.getBufferPool().getDirtyPageTable().isEmpty());
+        assertEquals(503, ((HeapPage) empty.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * peekPage sees changes not yet written, in a copy that later changes
+     * to the cached page do not affect
+     */
+    @Test public void peekPage() throws Exception {
+        BufferPool.setCleanerInterval(60000);
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(1, 2));
+        HeapPageId pid = new HeapPageId(empty.getId(), 0);
+        HeapPage cached = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+        HeapPage peeked = (HeapPage) Database.getBufferPool().peekPage(pid);
+        assertNotSame(cached, peeked);
+        assertEquals(503, peeked.getNumEmptySlots());
+
+        Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(2, 2));
+        assertEquals(502, cached.getNumEmptySlots());
+        assertEquals(503, peeked.getNumEmptySlots());
+    }
+
+    /**
+     * Readers missing the cache at the same time never grow it past the
+     * size of the buffer pool
+     */
+    @Test(timeout = 60000) public void concurrentMisses() throws Exception {
+        final int pages = 40;
+        Database.resetBufferPool(4);
+        final HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final int offset = i;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        TransactionId t = new TransactionId();
+                        for (int round = 0; round < 5; round++) {
+                            for (int p = 0; p < pages; p++) {
+                                Database.getBufferPool().getPage(t,
+                                        new HeapPageId(f.getId(), (p + offset) % pages), Permissions.READ_ONLY);
+                                assertTrue(Database.getBufferPool().numCachedPages() <= 4);
+                            }
+                        }
+                        Database.getBufferPool().transactionComplete(t);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads)
+            t.start();
+        for (Thread t : threads)
+            t.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        assertTrue(Database.getBufferPool().numCachedPages() <= 4);
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class CardinalityFeedbackTest extends SimpleDbTestBase {
+
+  @After public void tearDown() {
+    CardinalityFeedback.clear();
+  }
+
+  private static HeapFile createTable(String name, int rows, int offset, boolean correlated) throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < rows; i++) {
+      ArrayList<Integer> t = new ArrayList<Integer>();
+      t.add(offset + i % 50);
+      t.add(correlated ? offset + i % 50 : i);
+      tuples.add(t);
+    }
+    HeapFile f = JoinOptimizerTest.createDuplicateHeapFile(tuples, 2, "c");
+    Database.getCatalog().addTable(f, name);
+    TableStats.setTableStats(name, new TableStats(f.getId(), 10));
+    return f;
+  }
+
+  /**
+   * Operators count the tuples of their first complete pass, and filters
+   * the tuples they read
+   */
+  @Test public void countTuples() throws Exception {
+    HeapFile f = createTable("cf", 1000, 0, true);
+    TransactionId tid = new TransactionId();
+    Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)),
+        new SeqScan(tid, f.getId(), "cf"));
+    filter.open();
+    assertEquals(-1, filter.getActualCardinality());
+    assertTrue(filter.hasNext());
+    filter.next();
+    assertEquals(-1, filter.getInputCardinality());
+    while (filter.hasNext())
+      filter.next();
+    assertEquals(200, filter.getActualCardinality());
+    assertEquals(1000, filter.getInputCardinality());
+
+    // a rewound operator keeps the count of its first pass
+    Join j = new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, f.getId(), "a"), filter);
+    j.open();
+    int n = 0;
+    while (j.hasNext()) {
+      j.next();
+      n++;
+    }
+    assertEquals(n, j.getActualCardinality());
+    assertEquals(200, filter.getActualCardinality());
+    j.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A predicate on a column correlated with one already filtered on passes
+   * far more tuples than estimated; later estimates are corrected
+   */
+  @Test public void filterFeedback() throws Exception {
+    HeapFile f = createTable("cf", 1000, 0, true);
+    TableStats s = TableStats.getTableStats("cf");
+    double before = s.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(10));
+    assertEquals(0.2, before, 0.02);
+    int version = CardinalityFeedback.getVersion();
+
+    new Parser().processNextStatement("SELECT * FROM cf WHERE cf.c0 < 10 AND cf.c1 < 10;");
+
+    assertTrue(CardinalityFeedback.getSelectivityCorrection(f.getId(), 1, Predicate.Op.LESS_THAN) > 3);
+    assertEquals(1.0, CardinalityFeedback.getSelectivityCorrection(f.getId(), 0, Predicate.Op.LESS_THAN), 0.1);
+    assertTrue(s.estimateSelectivity(1, Predicate.Op.LESS_THAN, new IntField(20)) > 0.9);
+    assertTrue(CardinalityFeedback.getVersion() != version);
+  }
+
+  /**
+   * A join on disjoint values produces nothing; later estimates of the same
+   * join, in either direction, are corrected
+   */
+  @Test public void joinFeedback() throws Exception {
+    HeapFile fa = createTable("fa", 200, 0, false);
+    HeapFile fb = createTable("fb", 500, 1000, false);
+    new Parser().processNextStatement("SELECT * FROM fa, fb WHERE fa.c0 = fb.c0;");
+
+    assertTrue(CardinalityFeedback.getJoinCorrection(fa.getId(), 0, Predicate.Op.EQUALS, fb.getId(), 0) < 0.01);
+    assertTrue(CardinalityFeedback.getJoinCorrection(fb.getId(), 0, Predicate.Op.EQUALS, fa.getId(), 0) < 0.01);
+    Map<String, Integer> aliases = new HashMap<String, Integer>();
+    aliases.put("fa", fa.getId());
+    aliases.put("fb", fb.getId());
+    int card = JoinOptimizer.estimateTableJoinCardinality(Predicate.Op.EQUALS, "fb", "fa", "c0", "c0",
+        500, 200, false, false, TableStats.getStatsMap(), aliases);
+    assertTrue(card < 10);
+  }
+
+  /**
+   * A filter on the probe side of a hash join sees only the tuples its
+   * Bloom filter lets through; neither the filter nor the join learns from
+   * the thinned counts
+   */
+  @Test public void bloomFilteredProbe() throws Exception {
+    HeapFile fa = createTable("fa", 200, 0, false);
+    HeapFile fb = createTable("fb", 500, 25, false);
+    TransactionId tid = new TransactionId();
+    // the Bloom filter goes into the filter, as there is no scan right
+    // beneath it
+    Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100)),
+        new OrderBy(0, true, new SeqScan(tid, fb.getId(), "fb")));
+    HashEquiJoin j = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, fa.getId(), "fa"), filter);
+    j.open();
+    while (j.hasNext())
+      j.next();
+    j.close();
+    Database.getBufferPool().transactionComplete(tid);
+    assertTrue(filter.getBloomEliminated() > 0);
+
+    Map<String, Integer> aliases = new HashMap<String, Integer>();
+    aliases.put("fa", fa.getId());
+    aliases.put("fb", fb.getId());
+    CardinalityFeedback.record(j, aliases);
+    assertEquals(1.0, CardinalityFeedback.getSelectivityCorrection(fb.getId(), 1, Predicate.Op.LESS_THAN), 0.1);
+    assertEquals(1.0, CardinalityFeedback.getJoinCorrection(fa.getId(), 0, Predicate.Op.EQUALS, fb.getId(), 0), 0.1);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CardinalityFeedbackTest.class);
+  }
+}
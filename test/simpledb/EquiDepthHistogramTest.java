@@ -0,0 +1,67 @@
+package simpledb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import simpledb.Predicate.Op;
+
+public class EquiDepthHistogramTest {
+
+	/**
+	 * Buckets follow the data, so a dense range of a skewed column is
+	 * estimated as accurately as a sparse one
+	 */
+	@Test public void skewedTest() {
+		int[] values = new int[10000];
+		// 90% of the values in [0, 100), the rest in [100, 100000)
+		for (int i = 0; i < values.length; i++)
+			values[i] = i < 9000 ? i % 100 : 100 + (i - 9000) * 99;
+		EquiDepthHistogram h = new EquiDepthHistogram(100, values);
+
+		Assert.assertEquals(0.45, h.estimateSelectivity(Op.LESS_THAN, 50), 0.01);
+		Assert.assertEquals(0.9, h.estimateSelectivity(Op.LESS_THAN, 100), 0.01);
+		Assert.assertEquals(0.95, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, 50000), 0.01);
+		Assert.assertEquals(0.009, h.estimateSelectivity(Op.EQUALS, 42), 0.003);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.GREATER_THAN, 100000), 0.0);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.GREATER_THAN_OR_EQ, 0), 0.0);
+		Assert.assertEquals(1.0, h.estimateSelectivity(Op.LESS_THAN_OR_EQ, Integer.MAX_VALUE), 0.0);
+	}
+
+	/**
+	 * A value that fills several buckets gets all of their weight
+	 */
+	@Test public void heavyValueTest() {
+		int[] values = new int[1000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = i < 600 ? 5 : i;
+		EquiDepthHistogram h = new EquiDepthHistogram(10, values);
+		Assert.assertEquals(0.6, h.estimateSelectivity(Op.EQUALS, 5), 0.1);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, 5), 0.0);
+		Assert.assertEquals(0.4, h.estimateSelectivity(Op.NOT_EQUALS, 5), 0.1);
+	}
+
+	/**
+	 * Range joins of two histograms are estimated bucket by bucket
+	 */
+	@Test public void joinTest() {
+		int[] a = new int[1000], b = new int[1000];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = i;
+			b[i] = 500 + i;
+		}
+		EquiDepthHistogram ha = new EquiDepthHistogram(100, a), hb = new EquiDepthHistogram(100, b);
+		// P(a < b) = 1 - P(a >= b) = 1 - 0.125
+		Assert.assertEquals(0.875, ha.estimateJoinSelectivity(Op.LESS_THAN, hb), 0.01);
+		Assert.assertEquals(0.125, ha.estimateJoinSelectivity(Op.GREATER_THAN_OR_EQ, hb), 0.01);
+		Assert.assertEquals(0.125, hb.estimateJoinSelectivity(Op.LESS_THAN_OR_EQ, ha), 0.01);
+	}
+
+	/**
+	 * A histogram of no values estimates every predicate as false
+	 */
+	@Test public void emptyTest() {
+		EquiDepthHistogram h = new EquiDepthHistogram(100, new int[0]);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.LESS_THAN, 5), 0.0);
+		Assert.assertEquals(0, h.numBuckets());
+	}
+}
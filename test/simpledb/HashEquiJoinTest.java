@@ -5,6 +5,7 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import java.util.ArrayList;
@@ -45,6 +46,10 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
 
   }
 
+  @After public void resetParallelThreshold() {
+    HashEquiJoin.resetParallelThreshold();
+  }
+
   /**
    * Unit test for Join.getTupleDesc()
    */
@@ -67,6 +72,123 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for the parallel build and probe: every build side is large
+   * enough to be partitioned, and the probe side spans several morsels
+   */
+  @Test public void parallelJoin() throws Exception {
+    HashEquiJoin.setParallelThreshold(0);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2, 4);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    int cnt = 0;
+    while (op.hasNext()) {
+      op.next();
+      cnt++;
+    }
+    assertEquals(3, cnt);
+
+    int rows = 3 * HashEquiJoin.MORSEL_SIZE;
+    int[] build = new int[2 * rows / 4];
+    int[] probe = new int[3 * rows];
+    for (int i = 0; i < rows / 4; i++) {
+      build[2 * i] = i % 97;
+      build[2 * i + 1] = i;
+    }
+    for (int i = 0; i < rows; i++) {
+      probe[3 * i] = i % 101;
+    }
+    HashEquiJoin par = new HashEquiJoin(pred, TestUtil.createTupleList(2, build),
+        TestUtil.createTupleList(3, probe), 4);
+    Join expected = new Join(pred, TestUtil.createTupleList(2, build), TestUtil.createTupleList(3, probe));
+    par.open();
+    expected.open();
+    int expectedCnt = 0;
+    while (expected.hasNext()) {
+      expected.next();
+      expectedCnt++;
+    }
+    cnt = 0;
+    while (par.hasNext()) {
+      par.next();
+      cnt++;
+    }
+    assertEquals(expectedCnt, cnt);
+    TestUtil.matchAllTuples(expected, par);
+  }
+
+  /**
+   * The build keys are pushed into the probe-side scan as a Bloom filter, so
+   * that almost all non-matching probe tuples never reach the join
+   */
+  @Test public void bloomPushdown() throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 1000, null, tuples);
+    int[] build = new int[20];
+    for (int i = 0; i < 10; i++) {
+      build[2 * i] = tuples.get(i * 50).get(0);
+      build[2 * i + 1] = i;
+    }
+    int expected = 0;
+    for (ArrayList<Integer> t : tuples) {
+      for (int i = 0; i < 10; i++) {
+        if (t.get(0) == build[2 * i])
+          expected++;
+      }
+    }
+    int matchingRows = 0;
+    for (ArrayList<Integer> t : tuples) {
+      for (int i = 0; i < 10; i++) {
+        if (t.get(0) == build[2 * i]) {
+          matchingRows++;
+          break;
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    SeqScan ss = new SeqScan(tid, table.getId(), "");
+    Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+        new IntField(Integer.MIN_VALUE)), ss);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, TestUtil.createTupleList(2, build), f);
+    op.open();
+    int cnt = 0;
+    while (op.hasNext()) {
+      op.next();
+      cnt++;
+    }
+    assertEquals(expected, cnt);
+    long eliminated = op.getBloomEliminated();
+    assertEquals(eliminated, ss.getBloomEliminated());
+    assertTrue("eliminated " + eliminated, eliminated <= 1000 - matchingRows);
+    assertTrue("eliminated " + eliminated, eliminated >= 1000 - matchingRows - 100);
+
+    // rewinding runs the join again with the same result
+    op.rewind();
+    cnt = 0;
+    while (op.hasNext()) {
+      op.next();
+      cnt++;
+    }
+    assertEquals(expected, cnt);
+
+    // closing the join removes the filter from the scan
+    op.close();
+    ss.open();
+    cnt = 0;
+    while (ss.hasNext()) {
+      ss.next();
+      cnt++;
+    }
+    assertEquals(1000, cnt);
+    ss.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
     private static final int COLUMNS = 2;
     public void validateJoin(int table1ColumnValue, int table1Rows, int table2ColumnValue,
             int table2Rows)
@@ -0,0 +1,45 @@
+package simpledb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+	/**
+	 * Estimates should be within a few percent of the true number of
+	 * distinct values, however often each value is added
+	 */
+	@Test public void estimateTest() {
+		int[] ns = { 0, 1, 100, 5000, 1000000 };
+		for (int n : ns) {
+			HyperLogLog h = new HyperLogLog();
+			for (int r = 0; r < 3; r++)
+				for (int i = 0; i < n; i++)
+					h.add(new IntField(i));
+			Assert.assertEquals("distinct " + n, n, h.estimate(), Math.max(1, n * 0.05));
+		}
+	}
+
+	/**
+	 * String values are counted by their contents
+	 */
+	@Test public void stringTest() {
+		HyperLogLog h = new HyperLogLog();
+		for (int i = 0; i < 3000; i++)
+			h.add(new StringField("value" + (i % 700), Type.STRING_LEN));
+		Assert.assertEquals(700, h.estimate(), 700 * 0.05);
+	}
+
+	/**
+	 * Merging sketches of overlapping sets estimates the size of their union
+	 */
+	@Test public void mergeTest() {
+		HyperLogLog a = new HyperLogLog(), b = new HyperLogLog();
+		for (int i = 0; i < 60000; i++)
+			a.add(new IntField(i));
+		for (int i = 40000; i < 100000; i++)
+			b.add(new IntField(i));
+		a.merge(b);
+		Assert.assertEquals(100000, a.estimate(), 100000 * 0.05);
+	}
+}
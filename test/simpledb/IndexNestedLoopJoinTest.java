@@ -0,0 +1,179 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class IndexNestedLoopJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 2;
+  TransactionId tid;
+  BTreeFile index;
+  DbIterator scan1;
+
+  /**
+   * Initialize each unit test. The inner table is a B+ tree keyed on its
+   * first field, with many duplicate keys; it is reopened with named
+   * columns so that the optimizer can refer to its fields.
+   */
+  @Before public void setUp() throws Exception {
+    tid = new TransactionId();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(width2, 300, 40, null, null, 0);
+    index = BTreeUtility.openBTreeFile(width2, "c", f.getFile(), 0);
+    createOuter();
+  }
+
+  private void createOuter() {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 7, 8,
+                    3, 4,
+                    39, 6,
+                    -1, 2,
+                    3, 9,
+                    20, 0 });
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1, new SeqScan(tid, index.getId(), "t"));
+    assertEquals(width1 + width2, op.getTupleDesc().numFields());
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.canProbe()
+   */
+  @Test public void canProbe() throws Exception {
+    SeqScan scan = new SeqScan(tid, index.getId(), "t");
+    assertTrue(IndexNestedLoopJoin.canProbe(scan, 0, Predicate.Op.EQUALS));
+    assertTrue(IndexNestedLoopJoin.canProbe(scan, 0, Predicate.Op.LESS_THAN));
+    assertFalse(IndexNestedLoopJoin.canProbe(scan, 1, Predicate.Op.EQUALS));
+    assertFalse(IndexNestedLoopJoin.canProbe(scan, 0, Predicate.Op.NOT_EQUALS));
+    assertFalse(IndexNestedLoopJoin.canProbe(scan1, 0, Predicate.Op.EQUALS));
+    Filter f = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(5)), scan);
+    assertTrue(IndexNestedLoopJoin.canProbe(f, 0, Predicate.Op.EQUALS));
+
+    assertTrue(Database.getCatalog().hasIndex(index.getId(), "c0"));
+    assertFalse(Database.getCatalog().hasIndex(index.getId(), "c1"));
+  }
+
+  /**
+   * Opening the join does not open the inner scan, which would read and
+   * lock pages of the inner table for nothing
+   */
+  @Test public void innerNotOpened() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, TestUtil.createTupleList(width1, new int[] {}),
+        new SeqScan(tid, index.getId(), "t"));
+    op.open();
+    assertFalse(op.hasNext());
+    assertFalse(Database.getBufferPool().holdsLock(tid, BTreeRootPtrPage.getId(index.getId())));
+    op.close();
+  }
+
+  /**
+   * Unit test for IndexNestedLoopJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    IndexNestedLoopJoin op = new IndexNestedLoopJoin(pred, scan1, new SeqScan(tid, index.getId(), "t"));
+    op.open();
+    int count = 0;
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+      count++;
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+    assertEquals(count, count(op));
+  }
+
+  /**
+   * Every supported operator must produce exactly the tuples a nested-loops
+   * join over a scan of the same table produces
+   */
+  @Test public void matchesNestedLoops() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.EQUALS, Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ };
+    for (Predicate.Op o : ops) {
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      createOuter();
+      Join expected = new Join(pred, scan1, new SeqScan(tid, index.getId(), "t"));
+      expected.open();
+      int expectedCount = count(expected);
+
+      createOuter();
+      IndexNestedLoopJoin actual = new IndexNestedLoopJoin(pred, scan1, new SeqScan(tid, index.getId(), "t"));
+      actual.open();
+      assertEquals("count for " + o, expectedCount, count(actual));
+      TestUtil.matchAllTuples(expected, actual);
+    }
+  }
+
+  /**
+   * Filters over the inner scan, and the index predicate of an inner
+   * BTreeScan, are applied to the probed tuples
+   */
+  @Test public void innerFilters() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    Predicate half = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(20));
+    IndexPredicate ipred = new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(5));
+
+    Join expected = new Join(pred, scan1,
+        new Filter(half, new BTreeScan(tid, index.getId(), "t", ipred)));
+    expected.open();
+    int expectedCount = count(expected);
+
+    createOuter();
+    IndexNestedLoopJoin actual = new IndexNestedLoopJoin(pred, scan1,
+        new Filter(half, new BTreeScan(tid, index.getId(), "t", ipred)));
+    actual.open();
+    assertEquals(expectedCount, count(actual));
+    TestUtil.matchAllTuples(expected, actual);
+  }
+
+  /**
+   * The optimizer's choice of an index join is honoured when the join is
+   * instantiated
+   */
+  @Test public void instantiateJoin() throws Exception {
+    SeqScan outer = new SeqScan(tid, index.getId(), "s");
+    SeqScan inner = new SeqScan(tid, index.getId(), "t");
+    LogicalJoinNode lj = new LogicalJoinNode("s", "t", "c0", "c0", Predicate.Op.EQUALS);
+    assertFalse(JoinOptimizer.instantiateJoin(lj, outer, inner) instanceof IndexNestedLoopJoin);
+    lj.useIndex = true;
+    assertTrue(JoinOptimizer.instantiateJoin(lj, outer, inner) instanceof IndexNestedLoopJoin);
+  }
+
+  private static int count(DbIterator it) throws Exception {
+    it.rewind();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(IndexNestedLoopJoinTest.class);
+  }
+}
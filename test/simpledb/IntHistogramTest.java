@@ -174,4 +174,20 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * The maximum value is counted, and the average selectivity is the
+	 * chance that two values agree
+	 */
+	@Test public void avgSelectivityTest() {
+		IntHistogram h = new IntHistogram(10, 1, 10);
+		for (int v = 1; v <= 10; v++)
+			h.addValue(v);
+		Assert.assertTrue(h.estimateSelectivity(Op.EQUALS, 10) > 0.05);
+		Assert.assertEquals(0.1, h.avgSelectivity(), 0.001);
+
+		h.addValue(3);
+		h.addValue(3);
+		Assert.assertTrue(h.avgSelectivity() > 0.1);
+	}
 }
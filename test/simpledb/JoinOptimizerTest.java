@@ -7,6 +7,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.Vector;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -54,6 +55,12 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
     int tableId2;
     TableStats stats2;
 
+    @After
+    public void resetOptimizer() {
+        JoinOptimizer.setDpThreshold(JoinOptimizer.DEFAULT_DP_THRESHOLD);
+        JoinOptimizer.setTimeBudget(JoinOptimizer.DEFAULT_TIME_BUDGET);
+    }
+
     /**
      * Set up the test; create some initial tables to work with
      */
@@ -145,6 +152,32 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         checkJoinEstimateCosts(jo, equalsJoinNode);
     }
 
+    /**
+     * A block nested loop join scans its inner input once per block of outer
+     * tuples, and at least once; an outer input without a base table is
+     * assumed to hold small tuples, not one tuple per block page
+     */
+    @Test
+    public void blockNestedLoopJoinCost() throws ParsingException {
+        Parser p = new Parser();
+        JoinOptimizer jo = new JoinOptimizer(p.generateLogicalPlan(new TransactionId(),
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                + " t2 WHERE t1.c1 <> t2.c2;"), new Vector<LogicalJoinNode>());
+        LogicalJoinNode base = new LogicalJoinNode("t1", "t2", "c1", "c2",
+                Predicate.Op.NOT_EQUALS);
+        LogicalJoinNode noBase = new LogicalJoinNode("sub", "t2", "c1", "c2",
+                Predicate.Op.NOT_EQUALS);
+
+        Assert.assertEquals(1 + 1000 + 10 * 100,
+                jo.estimateJoinCost(base, 10, 100, 1, 1000), 1e-9);
+        Assert.assertEquals(1 + 1000 + 10 * 100,
+                jo.estimateJoinCost(noBase, 10, 100, 1, 1000), 1e-9);
+        int block = BlockNestedLoopJoin.tuplesPerBlock(JoinOptimizer.DEFAULT_OUTER_DESC,
+                BlockNestedLoopJoin.DEFAULT_BLOCK_PAGES);
+        Assert.assertEquals(1 + 2 * 1000 + (block + 1) * 100.0,
+                jo.estimateJoinCost(noBase, block + 1, 100, 1, 1000), 1e-9);
+    }
+
     private void checkJoinEstimateCosts(JoinOptimizer jo,
             LogicalJoinNode equalsJoinNode) {
         int card1s[] = new int[20];
@@ -265,6 +298,41 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(cardinality == 800 || cardinality == 2000);
     }
 
+    /**
+     * Joins that are not on a primary key are estimated from the number of
+     * distinct values of the join fields, and range joins from their
+     * histograms; both estimates should be close to the actual join sizes
+     */
+    @Test
+    public void statsJoinCardinality() throws ParsingException {
+        TransactionId tid = new TransactionId();
+        Parser p = new Parser();
+        JoinOptimizer j = new JoinOptimizer(p.generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"),
+                new Vector<LogicalJoinNode>());
+
+        int equal = 0, less = 0;
+        int[] counts = new int[20];
+        for (ArrayList<Integer> t : tuples2)
+            counts[t.get(2)]++;
+        for (ArrayList<Integer> t : tuples1) {
+            equal += counts[t.get(1)];
+            for (int v = t.get(1) + 1; v < counts.length; v++)
+                less += counts[v];
+        }
+
+        int cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c1", "c2", Predicate.Op.EQUALS), stats1.estimateTableCardinality(1.0),
+                stats2.estimateTableCardinality(1.0), false, false, TableStats.getStatsMap());
+        Assert.assertEquals(equal, cardinality, equal * 0.1);
+
+        cardinality = j.estimateJoinCardinality(new LogicalJoinNode("t1", "t2",
+                "c1", "c2", Predicate.Op.LESS_THAN), stats1.estimateTableCardinality(1.0),
+                stats2.estimateTableCardinality(1.0), false, false, TableStats.getStatsMap());
+        Assert.assertEquals(less, cardinality, less * 0.15);
+    }
+
     /**
      * Determine whether the orderJoins implementation is doing a reasonable job
      * of ordering joins, and not taking an unreasonable amount of time to do so
@@ -621,4 +689,281 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertTrue(result.get(result.size() - 1).t2Alias.equals("a")
                 || result.get(result.size() - 1).t1Alias.equals("a"));
     }
+
+    /**
+     * The DPccp enumeration in orderJoins must find a plan as cheap as an
+     * exhaustive search over every subset of tables, on random join graphs
+     * with cycles and non-equality predicates
+     */
+    @Test(timeout = 60000)
+    public void orderJoinsMatchesExhaustiveSearch() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int n = 8;
+        java.util.Random rand = new java.util.Random(660);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        LogicalPlan lp = new LogicalPlan();
+        lp.setQuery("random join graph");
+        String[] aliases = new String[n];
+        for (int i = 0; i < n; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 + rand.nextInt(2000), null,
+                    new ArrayList<ArrayList<Integer>>(), "c");
+            aliases[i] = "r" + i;
+            lp.addScan(f.getId(), aliases[i]);
+            stats.put(Database.getCatalog().getTableName(f.getId()), new TableStats(f.getId(), 1 + rand.nextInt(200)));
+        }
+
+        for (int round = 0; round < 4; round++) {
+            HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+            for (String a : aliases)
+                filterSelectivities.put(a, 0.05 + 0.95 * rand.nextDouble());
+            Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+            // a random spanning tree plus a few extra edges
+            for (int i = 1; i < n; i++)
+                nodes.add(randomJoin(rand, aliases[rand.nextInt(i)], aliases[i]));
+            for (int k = 0; k < 2; k++) {
+                int a = rand.nextInt(n), b = rand.nextInt(n);
+                if (a != b)
+                    nodes.add(randomJoin(rand, aliases[a], aliases[b]));
+            }
+
+            JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+            Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+            Assert.assertEquals(nodes.size(), result.size());
+            double actual = planCost(jo, lp, result, stats, filterSelectivities);
+            double expected = exhaustiveCost(jo, lp, aliases, nodes, stats, filterSelectivities);
+            Assert.assertEquals(expected, actual, expected * 1e-9);
+        }
+    }
+
+    /**
+     * Join graphs with more tables than the DP threshold are ordered greedily
+     * in bounded time, and every join appears in the plan
+     */
+    @Test(timeout = 60000)
+    public void greedyForLargeJoinGraphs() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int n = 48;
+        java.util.Random rand = new java.util.Random(661);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        LogicalPlan lp = new LogicalPlan();
+        lp.setQuery("large join graph");
+        String[] aliases = new String[n];
+        for (int i = 0; i < n; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 + rand.nextInt(200), null,
+                    new ArrayList<ArrayList<Integer>>(), "c");
+            aliases[i] = "r" + i;
+            lp.addScan(f.getId(), aliases[i]);
+            stats.put(Database.getCatalog().getTableName(f.getId()), new TableStats(f.getId(), 1 + rand.nextInt(200)));
+        }
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        for (String a : aliases)
+            filterSelectivities.put(a, 1.0);
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        for (int i = 1; i < n; i++)
+            nodes.add(randomJoin(rand, aliases[rand.nextInt(i)], aliases[i]));
+        for (int k = 0; k < n / 4; k++) {
+            int a = rand.nextInt(n), b = rand.nextInt(n);
+            if (a != b)
+                nodes.add(randomJoin(rand, aliases[a], aliases[b]));
+        }
+
+        JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+        long start = System.currentTimeMillis();
+        Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+        Assert.assertEquals(JoinOptimizer.Strategy.GREEDY, jo.getStrategy());
+        Assert.assertEquals(nodes.size(), result.size());
+        for (LogicalJoinNode j : nodes)
+            Assert.assertTrue(result.contains(j) || result.contains(j.swapInnerOuter()));
+    }
+
+    /**
+     * The greedy fallback is used above the DP threshold and when the time
+     * budget runs out, and never finds a cheaper plan than DPccp
+     */
+    @Test(timeout = 60000)
+    public void greedyFallback() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        final int n = 8;
+        java.util.Random rand = new java.util.Random(662);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        LogicalPlan lp = new LogicalPlan();
+        lp.setQuery("random join graph");
+        String[] aliases = new String[n];
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        for (int i = 0; i < n; i++) {
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10 + rand.nextInt(2000), null,
+                    new ArrayList<ArrayList<Integer>>(), "c");
+            aliases[i] = "r" + i;
+            lp.addScan(f.getId(), aliases[i]);
+            stats.put(Database.getCatalog().getTableName(f.getId()), new TableStats(f.getId(), 1 + rand.nextInt(200)));
+            filterSelectivities.put(aliases[i], 0.05 + 0.95 * rand.nextDouble());
+        }
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        for (int i = 1; i < n; i++)
+            nodes.add(randomJoin(rand, aliases[rand.nextInt(i)], aliases[i]));
+
+        JoinOptimizer jo = new JoinOptimizer(lp, nodes);
+        Vector<LogicalJoinNode> result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(JoinOptimizer.Strategy.DPCCP, jo.getStrategy());
+        double dpCost = planCost(jo, lp, result, stats, filterSelectivities);
+
+        JoinOptimizer.setDpThreshold(n - 1);
+        result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(JoinOptimizer.Strategy.GREEDY, jo.getStrategy());
+        Assert.assertEquals(nodes.size(), result.size());
+        double greedyCost = planCost(jo, lp, result, stats, filterSelectivities);
+        Assert.assertTrue(greedyCost >= dpCost * (1 - 1e-9));
+
+        JoinOptimizer.setDpThreshold(JoinOptimizer.DEFAULT_DP_THRESHOLD);
+        JoinOptimizer.setTimeBudget(0);
+        result = jo.orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(JoinOptimizer.Strategy.GREEDY, jo.getStrategy());
+        Assert.assertEquals(greedyCost, planCost(jo, lp, result, stats, filterSelectivities), greedyCost * 1e-9);
+    }
+
+    /**
+     * Two selective range joins connected by an equality join are best
+     * executed as a bushy plan, which physicalPlan must build correctly
+     */
+    @Test(timeout = 60000)
+    public void bushyPlan() throws Exception {
+        String[] names = { "ba", "bb", "bc", "bd" };
+        int[] rows = { 200, 10, 10, 200 };
+        ArrayList<ArrayList<ArrayList<Integer>>> tuples = new ArrayList<ArrayList<ArrayList<Integer>>>();
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        LogicalPlan lp = new LogicalPlan();
+        lp.setQuery("bushy join");
+        for (int i = 0; i < names.length; i++) {
+            tuples.add(new ArrayList<ArrayList<Integer>>());
+            HeapFile f = SystemTestUtil.createRandomHeapFile(2, rows[i], 20, null, tuples.get(i), "c");
+            Database.getCatalog().addTable(f, names[i]);
+            stats.put(names[i], new TableStats(f.getId(), 10));
+            lp.addScan(f.getId(), names[i]);
+        }
+        lp.addJoin("ba.c0", "bb.c0", Predicate.Op.LESS_THAN);
+        lp.addJoin("bb.c1", "bc.c1", Predicate.Op.EQUALS);
+        lp.addJoin("bc.c0", "bd.c0", Predicate.Op.LESS_THAN);
+        lp.addProjectField("ba.c0", null);
+
+        Vector<LogicalJoinNode> nodes = new Vector<LogicalJoinNode>();
+        nodes.add(new LogicalJoinNode("ba", "bb", "c0", "c0", Predicate.Op.LESS_THAN));
+        nodes.add(new LogicalJoinNode("bb", "bc", "c1", "c1", Predicate.Op.EQUALS));
+        nodes.add(new LogicalJoinNode("bc", "bd", "c0", "c0", Predicate.Op.LESS_THAN));
+        HashMap<String, Double> filterSelectivities = new HashMap<String, Double>();
+        for (String n : names)
+            filterSelectivities.put(n, 1.0);
+        Vector<LogicalJoinNode> result = new JoinOptimizer(lp, nodes).orderJoins(stats, filterSelectivities, false);
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(Predicate.Op.EQUALS, result.get(2).p);
+
+        int expected = 0;
+        for (ArrayList<Integer> ta : tuples.get(0))
+            for (ArrayList<Integer> tb : tuples.get(1))
+                for (ArrayList<Integer> tc : tuples.get(2))
+                    for (ArrayList<Integer> td : tuples.get(3))
+                        if (ta.get(0) < tb.get(0) && tb.get(1).equals(tc.get(1)) && tc.get(0) < td.get(0))
+                            expected++;
+
+        TransactionId tid = new TransactionId();
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        plan.open();
+        int actual = 0;
+        while (plan.hasNext()) {
+            plan.next();
+            actual++;
+        }
+        plan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Assert.assertEquals(expected, actual);
+    }
+
+    private static LogicalJoinNode randomJoin(java.util.Random rand, String a, String b) {
+        Predicate.Op op = rand.nextInt(4) == 0 ? Predicate.Op.LESS_THAN : Predicate.Op.EQUALS;
+        return new LogicalJoinNode(a, b, "c" + rand.nextInt(2), "c" + rand.nextInt(2), op);
+    }
+
+    private static TableStats statsFor(LogicalPlan lp, String alias, HashMap<String, TableStats> stats) {
+        return stats.get(Database.getCatalog().getTableName(lp.getTableId(alias)));
+    }
+
+    /**
+     * Cost of executing a join order: each join combines the (possibly
+     * composite) plans holding its two tables
+     */
+    private static double planCost(JoinOptimizer jo, LogicalPlan lp, Vector<LogicalJoinNode> order,
+            HashMap<String, TableStats> stats, HashMap<String, Double> sel) {
+        HashMap<String, double[]> plans = new HashMap<String, double[]>();
+        HashMap<String, String> owner = new HashMap<String, String>();
+        double cost = 0;
+        for (LogicalJoinNode j : order) {
+            String o = owner.containsKey(j.t1Alias) ? owner.get(j.t1Alias) : j.t1Alias;
+            String i = owner.containsKey(j.t2Alias) ? owner.get(j.t2Alias) : j.t2Alias;
+            if (o.equals(i))
+                continue; // another predicate between tables already joined
+            double[] po = plans.containsKey(o) ? plans.get(o) : basePlan(lp, o, stats, sel);
+            double[] pi = plans.containsKey(i) ? plans.get(i) : basePlan(lp, i, stats, sel);
+            cost = jo.estimateJoinCost(j, (int) po[1], (int) pi[1], po[0], pi[0]);
+            int card = jo.estimateJoinCardinality(j, (int) po[1], (int) pi[1], false, false, stats);
+            plans.put(o, new double[] { cost, card });
+            for (String k : new ArrayList<String>(owner.keySet()))
+                if (owner.get(k).equals(i))
+                    owner.put(k, o);
+            owner.put(i, o);
+            owner.put(o, o);
+        }
+        return cost;
+    }
+
+    private static double[] basePlan(LogicalPlan lp, String alias, HashMap<String, TableStats> stats,
+            HashMap<String, Double> sel) {
+        TableStats s = statsFor(lp, alias, stats);
+        return new double[] { s.estimateScanCost(), s.estimateTableCardinality(sel.get(alias)) };
+    }
+
+    /**
+     * Cheapest bushy plan found by dynamic programming over every subset of
+     * tables and every split of it, in increasing numeric order of the
+     * subset bitmask
+     */
+    private static double exhaustiveCost(JoinOptimizer jo, LogicalPlan lp, String[] aliases,
+            Vector<LogicalJoinNode> nodes, HashMap<String, TableStats> stats, HashMap<String, Double> sel) {
+        int n = aliases.length;
+        double[] cost = new double[1 << n];
+        int[] card = new int[1 << n];
+        java.util.Arrays.fill(cost, Double.MAX_VALUE);
+        HashMap<String, Integer> idx = new HashMap<String, Integer>();
+        for (int i = 0; i < n; i++) {
+            idx.put(aliases[i], i);
+            double[] b = basePlan(lp, aliases[i], stats, sel);
+            cost[1 << i] = b[0];
+            card[1 << i] = (int) b[1];
+        }
+        for (int s = 1; s < (1 << n); s++) {
+            if (Integer.bitCount(s) < 2)
+                continue;
+            for (int o = (s - 1) & s; o > 0; o = (o - 1) & s) {
+                int in = s & ~o;
+                if (cost[o] == Double.MAX_VALUE || cost[in] == Double.MAX_VALUE)
+                    continue;
+                for (LogicalJoinNode j : nodes) {
+                    int a = 1 << idx.get(j.t1Alias), b = 1 << idx.get(j.t2Alias);
+                    LogicalJoinNode fwd; // o is the outer of fwd
+                    if ((o & a) != 0 && (in & b) != 0)
+                        fwd = j;
+                    else if ((o & b) != 0 && (in & a) != 0)
+                        fwd = j.swapInnerOuter();
+                    else
+                        continue;
+                    double c = jo.estimateJoinCost(fwd, card[o], card[in], cost[o], cost[in]);
+                    int cd = jo.estimateJoinCardinality(fwd, card[o], card[in], false, false, stats);
+                    if (c < cost[s] || (c == cost[s] && cd < card[s])) {
+                        cost[s] = c;
+                        card[s] = cd;
+                    }
+                }
+            }
+        }
+        return cost[(1 << n) - 1];
+    }
 }
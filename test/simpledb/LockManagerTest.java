@@ -0,0 +1,423 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+  private LockManager lm;
+  private HeapPageId p0, p1;
+  private TransactionId t1, t2, t3;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    lm = new LockManager(LockManager.DEFAULT_STRIPES);
+    p0 = new HeapPageId(-1, 0);
+    p1 = new HeapPageId(-1, 1);
+    t1 = new TransactionId();
+    t2 = new TransactionId();
+    t3 = new TransactionId();
+  }
+
+  // tries to lock a page in another thread; returns the thread, whose
+  // outcome is put into result: null when granted, else the exception
+  private Thread lockLater(final TransactionId tid, final PageId pid, final Permissions perm,
+      final AtomicReference<Exception> result) {
+    Thread t = new Thread() {
+      public void run() {
+        try {
+          lm.acquire(tid, pid, perm);
+          result.set(null);
+        } catch (Exception e) {
+          result.set(e);
+        }
+      }
+    };
+    t.start();
+    return t;
+  }
+
+  /**
+   * Shared locks are compatible with each other, not with exclusive ones
+   */
+  @Test public void sharedLocks() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    lm.acquire(t2, p0, Permissions.READ_ONLY);
+    assertTrue(lm.holdsLock(t1, p0));
+    assertTrue(lm.holdsLock(t2, p0));
+    assertFalse(lm.holdsExclusiveLock(t1, p0));
+
+    AtomicReference<Exception> result = new AtomicReference<Exception>(new Exception());
+    Thread writer = lockLater(t3, p0, Permissions.READ_WRITE, result);
+    Thread.sleep(50);
+    assertTrue(writer.isAlive());
+    assertFalse(lm.holdsLock(t3, p0));
+    lm.releaseAll(t1);
+    Thread.sleep(50);
+    assertTrue(writer.isAlive());
+    lm.releaseAll(t2);
+    writer.join();
+    assertNull(result.get());
+    assertTrue(lm.holdsExclusiveLock(t3, p0));
+  }
+
+  /**
+   * An exclusive lock blocks everyone else until it is released
+   */
+  @Test public void exclusiveLock() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_WRITE);
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    assertTrue(lm.holdsExclusiveLock(t1, p0));
+    // other pages are unaffected
+    lm.acquire(t2, p1, Permissions.READ_WRITE);
+
+    AtomicReference<Exception> result = new AtomicReference<Exception>(new Exception());
+    Thread waiter = lockLater(t2, p0, Permissions.READ_ONLY, result);
+    Thread.sleep(50);
+    assertTrue(waiter.isAlive());
+    lm.release(t1, p0);
+    waiter.join();
+    assertNull(result.get());
+    assertFalse(lm.holdsLock(t1, p0));
+    assertTrue(lm.holdsLock(t2, p0));
+  }
+
+  /**
+   * A reader upgrades its lock once the other readers are gone
+   */
+  @Test public void upgrade() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    lm.acquire(t1, p0, Permissions.READ_WRITE);
+    assertTrue(lm.holdsExclusiveLock(t1, p0));
+    lm.release(t1, p0);
+
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    lm.acquire(t2, p0, Permissions.READ_ONLY);
+    AtomicReference<Exception> result = new AtomicReference<Exception>(new Exception());
+    Thread waiter = lockLater(t1, p0, Permissions.READ_WRITE, result);
+    Thread.sleep(50);
+    assertTrue(waiter.isAlive());
+    lm.release(t2, p0);
+    waiter.join();
+    assertNull(result.get());
+    assertTrue(lm.holdsExclusiveLock(t1, p0));
+  }
+
+  /**
+   * New readers wait behind a waiting writer
+   */
+  @Test public void writerPreference() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    AtomicReference<Exception> writer = new AtomicReference<Exception>(new Exception());
+    Thread w = lockLater(t2, p0, Permissions.READ_WRITE, writer);
+    Thread.sleep(50);
+    AtomicReference<Exception> reader = new AtomicReference<Exception>(new Exception());
+    Thread r = lockLater(t3, p0, Permissions.READ_ONLY, reader);
+    Thread.sleep(50);
+    assertTrue(w.isAlive());
+    assertTrue(r.isAlive());
+
+    lm.release(t1, p0);
+    w.join();
+    assertNull(writer.get());
+    assertTrue(r.isAlive());
+    lm.release(t2, p0);
+    r.join();
+    assertNull(reader.get());
+  }
+
+  /**
+   * Releasing all locks of a transaction releases exactly its locks
+   */
+  @Test public void releaseAll() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    lm.acquire(t1, p1, Permissions.READ_WRITE);
+    lm.acquire(t2, p0, Permissions.READ_ONLY);
+    assertEquals(2, lm.getLockedPages(t1).size());
+
+    lm.releaseAll(t1);
+    assertTrue(lm.getLockedPages(t1).isEmpty());
+    assertFalse(lm.holdsLock(t1, p0));
+    assertFalse(lm.holdsLock(t1, p1));
+    assertTrue(lm.holdsLock(t2, p0));
+    lm.acquire(t3, p1, Permissions.READ_WRITE);
+    lm.releaseAll(t1);
+  }
+
+  /**
+   * The buffer pool locks the pages it hands out until the transaction
+   * completes
+   */
+  @Test public void bufferPool() throws Exception {
+    HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2 * 504, null, null);
+    HeapPageId q0 = new HeapPageId(hf.getId(), 0);
+    HeapPageId q1 = new HeapPageId(hf.getId(), 1);
+    BufferPool bp = Database.getBufferPool();
+
+    bp.getPage(t1, q0, Permissions.READ_WRITE);
+    bp.getPage(t1, q1, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(t1, q0));
+    assertTrue(bp.holdsLock(t1, q1));
+    bp.getPage(t2, q1, Permissions.READ_ONLY);
+    final HeapPageId page = q0;
+    final AtomicReference<Exception> result = new AtomicReference<Exception>(new Exception());
+    Thread reader = new Thread() {
+      public void run() {
+        try {
+          Database.getBufferPool().getPage(t2, page, Permissions.READ_ONLY);
+          result.set(null);
+        } catch (Exception e) {
+          result.set(e);
+        }
+      }
+    };
+    reader.start();
+    Thread.sleep(50);
+    assertTrue("page read while it is being written", reader.isAlive());
+
+    bp.releasePage(t1, q1);
+    assertFalse(bp.holdsLock(t1, q1));
+    bp.transactionComplete(t1);
+    assertFalse(bp.holdsLock(t1, q0));
+    reader.join();
+    assertNull(result.get());
+    bp.getPage(t2, q0, Permissions.READ_WRITE);
+    bp.transactionComplete(t2, false);
+  }
+
+  /**
+   * Two transactions that each wait for a page the other holds deadlock;
+   * the younger one is aborted at once and the older one goes on
+   */
+  @Test public void deadlock() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_WRITE);
+    lm.acquire(t2, p1, Permissions.READ_WRITE);
+    AtomicReference<Exception> older = new AtomicReference<Exception>(new Exception());
+    Thread w1 = lockLater(t1, p1, Permissions.READ_ONLY, older);
+    Thread.sleep(50);
+    assertTrue(w1.isAlive());
+
+    long start = System.currentTimeMillis();
+    AtomicReference<Exception> younger = new AtomicReference<Exception>(new Exception());
+    Thread w2 = lockLater(t2, p0, Permissions.READ_WRITE, younger);
+    w2.join();
+    assertTrue(younger.get() instanceof DeadlockException);
+    assertTrue(System.currentTimeMillis() - start < 500);
+    assertEquals(1, lm.getDeadlockCount());
+    assertTrue(w1.isAlive());
+
+    lm.releaseAll(t2);
+    w1.join();
+    assertNull(older.get());
+    assertTrue(lm.holdsLock(t1, p1));
+  }
+
+  /**
+   * A victim that is already waiting is woken up; the transaction that
+   * closed the cycle keeps waiting
+   */
+  @Test public void wakeVictim() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_WRITE);
+    lm.acquire(t2, p1, Permissions.READ_WRITE);
+    AtomicReference<Exception> younger = new AtomicReference<Exception>(new Exception());
+    Thread w2 = lockLater(t2, p0, Permissions.READ_ONLY, younger);
+    Thread.sleep(50);
+    assertTrue(w2.isAlive());
+
+    AtomicReference<Exception> older = new AtomicReference<Exception>(new Exception());
+    Thread w1 = lockLater(t1, p1, Permissions.READ_WRITE, older);
+    w2.join(500);
+    assertFalse("victim not woken up", w2.isAlive());
+    assertTrue(younger.get() instanceof DeadlockException);
+    assertTrue(w1.isAlive());
+    lm.releaseAll(t2);
+    w1.join();
+    assertNull(older.get());
+  }
+
+  /**
+   * Two readers that both upgrade deadlock, and so do three transactions
+   * waiting in a ring
+   */
+  @Test public void upgradeAndRingDeadlocks() throws Exception {
+    lm.acquire(t1, p0, Permissions.READ_ONLY);
+    lm.acquire(t2, p0, Permissions.READ_ONLY);
+    AtomicReference<Exception> r1 = new AtomicReference<Exception>(new Exception());
+    Thread u1 = lockLater(t1, p0, Permissions.READ_WRITE, r1);
+    Thread.sleep(50);
+    AtomicReference<Exception> r2 = new AtomicReference<Exception>(new Exception());
+    Thread u2 = lockLater(t2, p0, Permissions.READ_WRITE, r2);
+    u2.join();
+    assertTrue(r2.get() instanceof DeadlockException);
+    lm.releaseAll(t2);
+    u1.join();
+    assertNull(r1.get());
+    lm.releaseAll(t1);
+
+    HeapPageId p2 = new HeapPageId(-1, 2);
+    TransactionId[] tids = { t1, t2, t3 };
+    PageId[] pids = { p0, p1, p2 };
+    for (int i = 0; i < 3; i++)
+      lm.acquire(tids[i], pids[i], Permissions.READ_WRITE);
+    ArrayList<AtomicReference<Exception>> results = new ArrayList<AtomicReference<Exception>>();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < 3; i++) {
+      results.add(new AtomicReference<Exception>(new Exception()));
+      threads.add(lockLater(tids[i], pids[(i + 1) % 3], Permissions.READ_WRITE, results.get(i)));
+      Thread.sleep(20);
+    }
+    // t3 is the youngest
+    threads.get(2).join(500);
+    assertTrue(results.get(2).get() instanceof DeadlockException);
+    lm.releaseAll(t3);
+    threads.get(1).join();
+    assertNull(results.get(1).get());
+    lm.releaseAll(t2);
+    threads.get(0).join();
+    assertNull(results.get(0).get());
+    assertEquals(2, lm.getDeadlockCount());
+  }
+
+  /**
+   * Concurrent transactions read and write a few
+   * pages through the buffer pool; no page is ever written while another
+   * transaction reads or writes it.
+   */
+  @Test public void contention() throws Exception {
+    final int numPages = 8, numThreads = 8, txnsPerThread = 300;
+    final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, numPages * 504, null, null);
+    final AtomicInteger[] readers = new AtomicInteger[numPages];
+    final AtomicInteger[] writers = new AtomicInteger[numPages];
+    for (int i = 0; i < numPages; i++) {
+      readers[i] = new AtomicInteger();
+      writers[i] = new AtomicInteger();
+    }
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < numThreads; i++) {
+      final long seed = i;
+      threads.add(new Thread() {
+        public void run() {
+          Random rand = new Random(seed);
+          try {
+            for (int n = 0; n < txnsPerThread; n++) {
+              TransactionId tid = new TransactionId();
+              // pages are locked in order, so transactions cannot deadlock
+              TreeSet<Integer> pages = new TreeSet<Integer>();
+              for (int k = 1 + rand.nextInt(3); pages.size() < k; )
+                pages.add(rand.nextInt(numPages));
+              ArrayList<Integer> written = new ArrayList<Integer>();
+              ArrayList<Integer> read = new ArrayList<Integer>();
+              for (int p : pages) {
+                boolean write = rand.nextInt(4) == 0;
+                Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), p),
+                    write ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+                if (write) {
+                  written.add(p);
+                  if (writers[p].incrementAndGet() != 1 || readers[p].get() != 0)
+                    throw new AssertionError("page " + p + " written concurrently");
+                } else {
+                  read.add(p);
+                  readers[p].incrementAndGet();
+                  if (writers[p].get() != 0)
+                    throw new AssertionError("page " + p + " read while written");
+                }
+              }
+              for (int p : written)
+                writers[p].decrementAndGet();
+              for (int p : read)
+                readers[p].decrementAndGet();
+              Database.getBufferPool().transactionComplete(tid);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+    }
+
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+  }
+
+  /**
+   * Concurrent transactions lock pages in random order and are retried
+   * when chosen as victims; every transaction completes, and every victim
+   * is counted as a deadlock. Whether any deadlock forms depends on the
+   * scheduling; the deadlock tests above form them deterministically.
+   */
+  @Test public void deadlocks() throws Exception {
+    final int numPages = 4, numThreads = 8, txnsPerThread = 100;
+    final LockManager lm = new LockManager(LockManager.DEFAULT_STRIPES);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    final AtomicLong aborts = new AtomicLong();
+
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < numThreads; i++) {
+      final long seed = i;
+      threads.add(new Thread() {
+        public void run() {
+          Random rand = new Random(seed);
+          try {
+            for (int n = 0; n < txnsPerThread; ) {
+              TransactionId tid = new TransactionId();
+              try {
+                for (int k = 0; k < 3; k++) {
+                  lm.acquire(tid, new HeapPageId(-1, rand.nextInt(numPages)),
+                      rand.nextBoolean() ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+                  // hold the locks long enough for transactions to overlap
+                  Thread.sleep(1);
+                }
+                n++;
+              } catch (DeadlockException e) {
+                aborts.incrementAndGet();
+              }
+              lm.releaseAll(tid);
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+    }
+
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join(30000);
+    for (Thread t : threads)
+      assertFalse("transactions left deadlocked", t.isAlive());
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+    assertEquals(aborts.get(), lm.getDeadlockCount());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LockManagerTest.class);
+  }
+}
@@ -0,0 +1,544 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+
+  File file;
+  LogFile log;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    file = File.createTempFile("logfiletest", ".log");
+    file.deleteOnExit();
+    log = new LogFile(file);
+  }
+
+  @After public void tearDown() {
+    LogFile.setGroupCommitDelay(LogFile.DEFAULT_GROUP_COMMIT_DELAY);
+    LogFile.setGroupCommitSize(LogFile.DEFAULT_GROUP_COMMIT_SIZE);
+    LogFile.setBufferSize(LogFile.DEFAULT_BUFFER_SIZE);
+    LogFile.setSegmentSize(LogFile.DEFAULT_SEGMENT_SIZE);
+    BufferPool.setCleanerInterval(BufferPool.DEFAULT_CLEANER_INTERVAL);
+    LogFile.setRecoveryThreads(LogFile.DEFAULT_RECOVERY_THREADS);
+    for (File f : file.getParentFile().listFiles())
+      if (f.getName().startsWith(file.getName() + "."))
+        f.delete();
+    file.delete();
+  }
+
+  /**
+   * Concurrent committers share forces of the log
+   */
+  @Test public void groupCommit() throws Exception {
+    final int threads = 8, commits = 50;
+    final CyclicBarrier barrier = new CyclicBarrier(threads);
+    final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+    ArrayList<Thread> workers = new ArrayList<Thread>();
+    long before = log.getForceCount();
+    for (int i = 0; i < threads; i++) {
+      Thread t = new Thread() {
+        public void run() {
+          try {
+            for (int j = 0; j < commits; j++) {
+              TransactionId tid = new TransactionId();
+              log.logXactionBegin(tid);
+              barrier.await();
+              log.logCommit(tid);
+            }
+          } catch (Throwable e) {
+            synchronized (errors) {
+              errors.add(e);
+            }
+          }
+        }
+      };
+      workers.add(t);
+      t.start();
+    }
+    for (Thread t : workers)
+      t.join();
+    assertTrue(errors.toString(), errors.isEmpty());
+    long forces = log.getForceCount() - before;
+    assertTrue("forces: " + forces, forces > 0 && forces < threads * commits / 2);
+  }
+
+  /**
+   * A transaction that commits while no other is running does not wait for
+   * a group to form
+   */
+  @Test public void loneCommitDoesNotWait() throws Exception {
+    LogFile.setGroupCommitDelay(10 * 1000 * 1000);
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long start = System.currentTimeMillis();
+    log.logCommit(tid);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(1, log.getForceCount());
+  }
+
+  /**
+   * The leader stops waiting once the group is full
+   */
+  @Test public void fullGroupDoesNotWait() throws Exception {
+    LogFile.setGroupCommitDelay(10 * 1000 * 1000);
+    LogFile.setGroupCommitSize(1);
+    TransactionId running = new TransactionId();
+    log.logXactionBegin(running);
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long start = System.currentTimeMillis();
+    log.logCommit(tid);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  /**
+   * Records are buffered and get increasing LSNs; only waiting for an LSN
+   * writes and forces them
+   */
+  @Test public void bufferedAppends() throws Exception {
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long lsn = log.getCurrentLsn();
+    log.logXactionBegin(new TransactionId());
+    assertTrue(log.getCurrentLsn() > lsn);
+    assertTrue(log.getFlushedLsn() < lsn);
+    assertEquals(0, log.getForceCount());
+
+    log.flushTo(lsn);
+    assertTrue(log.getFlushedLsn() >= lsn);
+    LogFile.LogRecord r = LogFile.readRecord(log.openLog(log.getStartLsn()), log.getStartLsn(), lsn);
+    assertEquals(tid.getId(), r.tid);
+    assertEquals(1, log.getForceCount());
+    log.flushTo(lsn);
+    assertEquals(1, log.getForceCount());
+  }
+
+  /**
+   * A small buffer is drained as it fills, and records larger than the
+   * buffer are still written whole
+   */
+  @Test public void smallBuffer() throws Exception {
+    LogFile.setBufferSize(64);
+    log = new LogFile(file);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPage page = new HeapPage(new HeapPageId(f.getId(), 0), HeapPage.createEmptyPageData());
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    for (int i = 0; i < 20; i++) {
+      log.logXactionBegin(new TransactionId());
+      log.logWrite(tid, page, page);
+    }
+    log.logCommit(tid);
+    assertEquals(log.getCurrentLsn(), log.getFlushedLsn());
+    assertEquals(42, records().size());
+  }
+
+  // the records of the log, as read back from the file
+  private ArrayList<LogFile.LogRecord> records() throws Exception {
+    log.force();
+    ArrayList<LogFile.LogRecord> records = new ArrayList<LogFile.LogRecord>();
+    long start = log.getStartLsn(), end = log.getFileEnd();
+    DataInputStream in = log.openLog(start);
+    LogFile.LogRecord r;
+    for (long pos = start; (r = LogFile.readRecord(in, pos, end)) != null; pos += r.length)
+      records.add(r);
+    in.close();
+    return records;
+  }
+
+  /**
+   * Pages are logged with their kind instead of their class name and
+   * recreated without reflection
+   */
+  @Test public void pageRoundTrip() throws Exception {
+    BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+    TransactionId tid = new TransactionId();
+    BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+        BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+    Page leaf = Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+    assertTrue(leaf instanceof BTreeLeafPage);
+
+    for (Page p : new Page[] { rootPtr, leaf }) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      log.writePageData(new DataOutputStream(bytes), p);
+      assertTrue(bytes.size() <= p.getPageData().length + 32);
+      Page q = log.readPageData(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+      assertEquals(p.getClass(), q.getClass());
+      assertEquals(p.getId(), q.getId());
+      assertTrue(Arrays.equals(p.getPageData(), q.getPageData()));
+    }
+  }
+
+  /**
+   * An update record holds little more than the two page images
+   */
+  @Test public void compactUpdateRecord() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPage page = new HeapPage(new HeapPageId(f.getId(), 0), HeapPage.createEmptyPageData());
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long start = log.getCurrentLsn();
+    log.logWrite(tid, page, page);
+    assertTrue(log.getCurrentLsn() - start <= 2 * BufferPool.getPageSize() + 64);
+    ArrayList<LogFile.LogRecord> records = records();
+    assertEquals(2, records.size());
+    assertEquals(LogFile.UPDATE_RECORD, records.get(1).type);
+    assertEquals(tid.getId(), records.get(1).tid);
+  }
+
+  /**
+   * The changes of a heap page insert are logged as the changed slot, an
+   * order of magnitude less than an update record with two page images
+   */
+  @Test public void compactDeltaRecord() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPage page = new HeapPage(new HeapPageId(f.getId(), 0), HeapPage.createEmptyPageData());
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    long start = log.getCurrentLsn();
+    page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+    log.logChanges(tid, page);
+    assertTrue(log.getCurrentLsn() - start < 2 * BufferPool.getPageSize() / 10);
+    ArrayList<LogFile.LogRecord> records = records();
+    assertEquals(2, records.size());
+    assertEquals(LogFile.DELTA_RECORD, records.get(1).type);
+
+    // nothing changed since
+    log.logChanges(tid, page);
+    assertEquals(2, records().size());
+  }
+
+  /**
+   * Aborting a transaction undoes its changes in the buffer pool; the page
+   * on disk never saw them
+   */
+  @Test public void rollback() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    byte[] before = page.getPageData();
+    page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+    log.logChanges(tid, page);
+    page.deleteTuple(page.iterator().next());
+    log.logChanges(tid, page);
+
+    log.logAbort(tid);
+    assertArrayEquals(before, f.readPage(pid).getPageData());
+    assertArrayEquals(before, Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY).getPageData());
+  }
+
+  /**
+   * Recovery redoes the changes of committed transactions that never
+   * reached the disk and undoes those of transactions that did not finish
+   */
+  @Test public void recover() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    TransactionId committed = new TransactionId(), loser = new TransactionId();
+    log.logXactionBegin(committed);
+    log.logXactionBegin(loser);
+    HeapPage page = (HeapPage) Database.getBufferPool().getPage(committed, pid, Permissions.READ_WRITE);
+    page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+    log.logChanges(committed, page);
+    log.logCommit(committed);
+    byte[] expected = page.getPageData();
+    page.insertTuple(Utility.getHeapTuple(new int[] { 3, 4 }));
+    log.logChanges(loser, page);
+    log.force();
+
+    // crash without writing the page
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    log = new LogFile(file);
+    log.recover();
+    assertArrayEquals(expected, f.readPage(pid).getPageData());
+    ArrayList<LogFile.LogRecord> records = records();
+    LogFile.LogRecord last = records.get(records.size() - 1);
+    assertEquals(LogFile.ABORT_RECORD, last.type);
+    assertEquals(loser.getId(), last.tid);
+  }
+
+  /**
+   * Redo on several threads replays the changes of each page in order
+   */
+  @Test public void parallelRedo() throws Exception {
+    LogFile.setRecoveryThreads(4);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 504 * 8, null, null);
+    Database.getCatalog().addTable(f);
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    byte[][] expected = new byte[8][];
+    for (int i = 0; i < 8; i++) {
+      HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), i),
+          Permissions.READ_WRITE);
+      for (int j = 0; j < 3; j++) {
+        page.deleteTuple(page.iterator().next());
+        log.logChanges(tid, page);
+      }
+      page.insertTuple(Utility.getHeapTuple(new int[] { i, i }));
+      log.logChanges(tid, page);
+      expected[i] = page.getPageData();
+    }
+    log.logCommit(tid);
+
+    // crash without writing the pages
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    log = new LogFile(file);
+    log.recover();
+    assertEquals(8 * 4, log.getRedoCount());
+    assertTrue(log.getRedoNanos() > 0);
+    for (int i = 0; i < 8; i++)
+      assertArrayEquals(expected[i], f.readPage(new HeapPageId(f.getId(), i)).getPageData());
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void invalidRecoveryThreads() {
+    LogFile.setRecoveryThreads(0);
+  }
+
+  /**
+   * Recovery does not undo again the changes that the CLRs of an
+   * interrupted rollback show to be undone already
+   */
+  @Test public void interruptedRollback() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    byte[] before = f.readPage(pid).getPageData();
+    TransactionId tid = new TransactionId();
+    log.logXactionBegin(tid);
+    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+    page.insertTuple(Utility.getHeapTuple(new int[] { 1, 2 }));
+    log.logChanges(tid, page);
+    page.insertTuple(Utility.getHeapTuple(new int[] { 3, 4 }));
+    log.logChanges(tid, page);
+
+    // crash after the CLRs, before the ABORT record and the page write
+    log.rollback(tid);
+    log.force();
+    assertTrue(Database.getBufferPool().getDirtyPageTable().containsKey(pid));
+    assertArrayEquals(before, Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY).getPageData());
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    log = new LogFile(file);
+    log.recover();
+    assertArrayEquals(before, f.readPage(pid).getPageData());
+
+    int clrs = 0;
+    for (LogFile.LogRecord r : records())
+      if (r.type == LogFile.CLR_RECORD)
+        clrs++;
+    assertEquals(2, clrs);
+  }
+
+  /**
+   * A record whose checksum does not match ends the log
+   */
+  @Test public void corruptRecordEndsLog() throws Exception {
+    for (int i = 0; i < 3; i++)
+      log.logXactionBegin(new TransactionId());
+    long last = log.getCurrentLsn() - (LogFile.RECORD_OVERHEAD);
+    assertEquals(3, records().size());
+
+    RandomAccessFile raf = new RandomAccessFile(log.segmentFile(last / LogFile.getSegmentSize()), "rw");
+    raf.seek(last % LogFile.getSegmentSize() + 6);
+    raf.write(raf.read() ^ 1);
+    raf.close();
+    assertEquals(2, records().size());
+  }
+
+  /**
+   * Truncating the log after a checkpoint keeps the records of running
+   * transactions, with their LSNs
+   */
+  @Test public void truncate() throws Exception {
+    TransactionId done = new TransactionId(), running = new TransactionId();
+    log.logXactionBegin(done);
+    log.logCommit(done);
+    long begin = log.getCurrentLsn();
+    log.logXactionBegin(running);
+    log.logCheckpoint();
+
+    ArrayList<LogFile.LogRecord> records = records();
+    assertEquals(2, records.size());
+    assertEquals(LogFile.BEGIN_RECORD, records.get(0).type);
+    assertEquals(running.getId(), records.get(0).tid);
+    assertEquals(LogFile.CHECKPOINT_RECORD, records.get(1).type);
+    DataInputStream cp = records.get(1).data();
+    cp.readLong(); // the begin LSN
+    assertEquals(1, cp.readInt());
+    assertEquals(running.getId(), cp.readLong());
+    assertEquals(begin, cp.readLong());
+    assertEquals(begin, log.getStartLsn());
+    assertEquals(0, cp.readInt());
+
+    log.logCommit(running);
+    assertEquals(3, records().size());
+  }
+
+  /**
+   * Records span segment files, and truncation recycles the segments
+   * before the new start of the log as segments past its end, whose old
+   * records are never read as new ones
+   */
+  @Test public void segments() throws Exception {
+    LogFile.setSegmentSize(1024);
+    log = new LogFile(file);
+    TransactionId running = new TransactionId();
+    log.logXactionBegin(running);
+    for (int i = 0; i < 100; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+    assertTrue(log.getCurrentLsn() > 4 * 1024);
+    assertEquals(201, records().size());
+
+    log.logCommit(running);
+    log.logCheckpoint();
+    assertFalse(log.segmentFile(0).exists());
+    assertEquals(1, records().size());
+    long last = log.getCurrentLsn() / 1024;
+    assertTrue(log.segmentFile(last + 1).exists());
+    assertEquals(1024, log.segmentFile(last + 1).length());
+
+    for (int i = 0; i < 100; i++) {
+      TransactionId tid = new TransactionId();
+      log.logXactionBegin(tid);
+      log.logCommit(tid);
+    }
+    assertEquals(201, records().size());
+  }
+
+  /**
+   * A checkpoint writes no pages: it records the dirty page table, from
+   * which recovery redoes changes logged before the checkpoint
+   */
+  @Test public void fuzzyCheckpoint() throws Exception {
+    BufferPool.setCleanerInterval(60000);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+    t.commit();
+    byte[] expected = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY).getPageData();
+
+    LogFile dbLog = Database.getLogFile();
+    dbLog.logCheckpoint();
+    assertTrue(Database.getBufferPool().getDirtyPageTable().containsKey(pid));
+    assertFalse(Arrays.equals(expected, f.readPage(pid).getPageData()));
+    ArrayList<LogFile.LogRecord> records = new ArrayList<LogFile.LogRecord>();
+    DataInputStream in = dbLog.openLog(dbLog.getStartLsn());
+    LogFile.LogRecord r;
+    for (long pos = dbLog.getStartLsn(); (r = LogFile.readRecord(in, pos, dbLog.getFileEnd())) != null; pos += r.length)
+      records.add(r);
+    in.close();
+    // the log now starts with the insert, kept because the page was not
+    // written
+    assertEquals(LogFile.DELTA_RECORD, records.get(0).type);
+
+    // crash without writing the page
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    new LogFile(dbLog.logFile).recover();
+    assertArrayEquals(expected, f.readPage(pid).getPageData());
+  }
+
+  /**
+   * A page written before its transaction finished has all the changes on
+   * it logged first, including those not logged yet, so that recovery can
+   * undo them
+   */
+  @Test public void stolenPage() throws Exception {
+    BufferPool.setCleanerInterval(60000);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    byte[] before = f.readPage(pid).getPageData();
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+    // a change an insertion has made, but not logged yet
+    HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+    page.insertTuple(Utility.getHeapTuple(new int[] { 3, 4 }));
+
+    Database.getBufferPool().flushAllPages();
+    assertFalse(Arrays.equals(before, f.readPage(pid).getPageData()));
+
+    // crash before the transaction finishes
+    LogFile dbLog = Database.getLogFile();
+    dbLog.force();
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    new LogFile(dbLog.logFile).recover();
+    assertArrayEquals(before, f.readPage(pid).getPageData());
+  }
+
+  /**
+   * Aborting a transaction also undoes the changes of an operation that
+   * failed before logging them, and leaves none of them to be logged by
+   * the next transaction
+   */
+  @Test public void abortUnloggedChanges() throws Exception {
+    BufferPool.setCleanerInterval(60000);
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    Database.getCatalog().addTable(f);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    byte[] before = f.readPage(pid).getPageData();
+    Transaction t = new Transaction();
+    t.start();
+    Database.getBufferPool().insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(new int[] { 1, 2 }));
+    HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE);
+    page.insertTuple(Utility.getHeapTuple(new int[] { 3, 4 }));
+    t.abort();
+
+    Transaction next = new Transaction();
+    next.start();
+    page = (HeapPage) Database.getBufferPool().getPage(next.getId(), pid, Permissions.READ_WRITE);
+    assertArrayEquals(before, page.getPageData());
+    assertEquals(null, page.takeDelta());
+    next.commit();
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void duplicatePageKind() {
+    LogFile.registerPageKind(1, BTreeLeafPage.class, null);
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void invalidGroupSize() {
+    LogFile.setGroupCommitSize(0);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogFileTest.class);
+  }
+}
@@ -0,0 +1,111 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LogicalPlanTest extends SimpleDbTestBase {
+
+  ArrayList<ArrayList<Integer>> tuples;
+  TransactionId tid;
+
+  /**
+   * Create a table stored in a B+ tree keyed on its first field, large
+   * enough that a full scan reads many pages
+   */
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 20000, 100000, null, tuples, 0);
+    BTreeFile index = BTreeUtility.openBTreeFile(2, "c", f.getFile(), 0);
+    Database.getCatalog().addTable(index, "ix");
+    TableStats.setTableStats("ix", new TableStats(index.getId(), TableStats.IOCOSTPERPAGE));
+    tid = new TransactionId();
+  }
+
+  @After public void tearDown() throws Exception {
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private DbIterator plan(String sql) throws Exception {
+    return new Parser().generateLogicalPlan(tid, sql).physicalPlan(tid, TableStats.getStatsMap(), false);
+  }
+
+  // the scan at the bottom of a chain of single-child operators
+  private static DbIterator scanOf(DbIterator it) {
+    while (it instanceof Operator)
+      it = ((Operator) it).getChildren()[0];
+    return it;
+  }
+
+  private static int count(DbIterator it) throws Exception {
+    it.open();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    it.close();
+    return n;
+  }
+
+  /**
+   * Selective filters on the key are answered by the index, other filters
+   * are still applied, and the result is the same as a full scan's
+   */
+  @Test public void indexScan() throws Exception {
+    int key = tuples.get(7).get(0);
+    DbIterator it = plan("SELECT * FROM ix WHERE ix.c1 > 100 AND ix.c0 = " + key + ";");
+    DbIterator scan = scanOf(it);
+    assertTrue(scan instanceof BTreeScan);
+    assertEquals(Predicate.Op.EQUALS, ((BTreeScan) scan).getIndexPredicate().getOp());
+    int expected = 0;
+    for (ArrayList<Integer> t : tuples)
+      if (t.get(0) == key && t.get(1) > 100)
+        expected++;
+    assertEquals(expected, count(it));
+
+    it = plan("SELECT * FROM ix WHERE ix.c0 > 50000 AND ix.c0 < 1000;");
+    scan = scanOf(it);
+    assertTrue(scan instanceof BTreeScan);
+    assertEquals(Predicate.Op.LESS_THAN, ((BTreeScan) scan).getIndexPredicate().getOp());
+    assertEquals(0, count(it));
+
+    it = plan("SELECT * FROM ix WHERE ix.c0 >= 99000;");
+    expected = 0;
+    for (ArrayList<Integer> t : tuples)
+      if (t.get(0) >= 99000)
+        expected++;
+    assertTrue(scanOf(it) instanceof BTreeScan);
+    assertEquals(expected, count(it));
+
+    // the parser runs and prints plans with index scans
+    new Parser().processNextStatement("SELECT * FROM ix WHERE ix.c0 = " + key + ";");
+  }
+
+  /**
+   * Unselective filters on the key, and filters on other fields, are
+   * answered by a full scan
+   */
+  @Test public void fullScan() throws Exception {
+    assertTrue(scanOf(plan("SELECT * FROM ix WHERE ix.c0 > 1000;")) instanceof SeqScan);
+    assertTrue(scanOf(plan("SELECT * FROM ix WHERE ix.c1 = 5;")) instanceof SeqScan);
+    assertTrue(scanOf(plan("SELECT * FROM ix WHERE ix.c0 <> 5;")) instanceof SeqScan);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogicalPlanTest.class);
+  }
+}
@@ -0,0 +1,128 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+  @Before public void addTable() throws Exception {
+    Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+  }
+
+  // the delta, after a trip through its serialized form
+  private static PageDelta roundTrip(PageDelta d) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    d.write(new DataOutputStream(bytes));
+    return PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  /**
+   * Inserting a tuple into a heap page changes one slot, which redo and
+   * undo set on copies of the page; a tuple inserted and deleted again
+   * leaves no change
+   */
+  @Test public void heapPage() throws Exception {
+    HeapPageId pid = new HeapPageId(-1, -1);
+    HeapPage page = new HeapPage(pid, HeapPage.createEmptyPageData());
+    assertNull(page.takeDelta());
+    byte[] before = page.getPageData();
+
+    page.insertTuple(Utility.getHeapTuple(new int[] { 7, 8 }));
+    Tuple t = Utility.getHeapTuple(new int[] { 9, 10 });
+    page.insertTuple(t);
+    page.deleteTuple(t);
+    PageDelta d = roundTrip(page.takeDelta());
+    assertEquals(1, d.numSlots());
+    assertNull(page.takeDelta());
+
+    HeapPage copy = new HeapPage(pid, before);
+    d.apply(copy, false);
+    assertArrayEquals(page.getPageData(), copy.getPageData());
+    // redo is idempotent
+    d.apply(copy, false);
+    assertArrayEquals(page.getPageData(), copy.getPageData());
+    d.apply(copy, true);
+    assertArrayEquals(before, copy.getPageData());
+    d.inverse().apply(page, false);
+    assertArrayEquals(before, page.getPageData());
+  }
+
+  /**
+   * A leaf insert that shifts tuples and a change of the sibling pointers
+   * are replayed exactly
+   */
+  @Test public void leafPage() throws Exception {
+    BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.LEAF);
+    BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPageTest.EXAMPLE_DATA, 0);
+    byte[] before = page.getPageData();
+
+    page.insertTuple(BTreeUtility.getBTreeTuple(new int[] { 0, 1 }));
+    page.setRightSiblingId(new BTreePageId(-1, 5, BTreePageId.LEAF));
+    PageDelta d = roundTrip(page.takeDelta());
+    assertEquals(DeltaPage.META_SLOT, d.getSlot(0));
+    assertTrue(d.numSlots() <= BTreeLeafPageTest.EXAMPLE_VALUES.length + 2);
+
+    BTreeLeafPage copy = new BTreeLeafPage(pid, before, 0);
+    d.apply(copy, false);
+    assertArrayEquals(page.getPageData(), copy.getPageData());
+    assertEquals(page.getRightSiblingId(), copy.getRightSiblingId());
+    d.apply(copy, true);
+    assertArrayEquals(before, copy.getPageData());
+  }
+
+  /**
+   * Inserting, updating and deleting entries of an internal page, and
+   * changing its parent, are replayed exactly
+   */
+  @Test public void internalPage() throws Exception {
+    BTreePageId pid = new BTreePageId(-1, -1, BTreePageId.INTERNAL);
+    BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPageTest.EXAMPLE_DATA, 0);
+    byte[] before = page.getPageData();
+
+    BTreeEntry e = new BTreeEntry(new IntField(8000), new BTreePageId(-1, 4, BTreePageId.LEAF),
+        new BTreePageId(-1, 100, BTreePageId.LEAF));
+    page.insertEntry(e);
+    e.setKey(new IntField(8500));
+    page.updateEntry(e);
+    page.setParentId(new BTreePageId(-1, 3, BTreePageId.INTERNAL));
+    PageDelta d = roundTrip(page.takeDelta());
+
+    BTreeInternalPage copy = new BTreeInternalPage(pid, before, 0);
+    d.apply(copy, false);
+    assertArrayEquals(page.getPageData(), copy.getPageData());
+    d.apply(copy, true);
+    assertArrayEquals(before, copy.getPageData());
+
+    byte[] inserted = page.getPageData();
+    page.deleteKeyAndLeftChild(e);
+    d = roundTrip(page.takeDelta());
+    copy = new BTreeInternalPage(pid, inserted, 0);
+    d.apply(copy, false);
+    assertArrayEquals(page.getPageData(), copy.getPageData());
+    d.apply(copy, true);
+    assertArrayEquals(inserted, copy.getPageData());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(PageDeltaTest.class);
+  }
+}
@@ -0,0 +1,155 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Vector;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import Zql.ZQuery;
+import Zql.ZqlParser;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class QueryPlanCacheTest extends SimpleDbTestBase {
+
+  ArrayList<ArrayList<Integer>> tuples;
+  HeapFile f;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    tuples = new ArrayList<ArrayList<Integer>>();
+    f = SystemTestUtil.createRandomHeapFile(2, 500, 50, null, tuples, "c");
+    Database.getCatalog().addTable(f, "pc");
+    TableStats.setTableStats("pc", new TableStats(f.getId(), 10));
+  }
+
+  private static ZQuery parse(String sql) throws Exception {
+    return (ZQuery) new ZqlParser(new ByteArrayInputStream(sql.getBytes("UTF-8"))).readStatement();
+  }
+
+  /**
+   * Queries that differ only in their literals have the same key, and the
+   * literals are extracted in order
+   */
+  @Test public void normalize() throws Exception {
+    Vector<String> c1 = new Vector<String>(), c2 = new Vector<String>();
+    String k1 = QueryPlanCache.normalize(parse("SELECT * FROM pc WHERE pc.c0 > 5 AND pc.c1 = 7;"), c1);
+    String k2 = QueryPlanCache.normalize(parse("SELECT * FROM pc WHERE pc.c0 > 12 AND pc.c1 = 3;"), c2);
+    assertNotNull(k1);
+    assertEquals(k1, k2);
+    assertEquals(2, c1.size());
+    assertEquals("5", c1.get(0));
+    assertEquals("7", c1.get(1));
+    assertEquals("12", c2.get(0));
+
+    String k3 = QueryPlanCache.normalize(parse("SELECT * FROM pc WHERE pc.c0 < 5 AND pc.c1 = 7;"),
+        new Vector<String>());
+    assertFalse(k1.equals(k3));
+    assertNull(QueryPlanCache.normalize(
+        parse("SELECT * FROM pc WHERE pc.c0 = (SELECT pc.c1 FROM pc);"), new Vector<String>()));
+  }
+
+  /**
+   * A cached plan is re-instantiated with new constants and returns the
+   * same tuples as a freshly optimized one
+   */
+  @Test public void bind() throws Exception {
+    QueryPlanCache cache = new QueryPlanCache(4);
+    TransactionId tid = new TransactionId();
+    Parser p = new Parser();
+    ZQuery q1 = parse("SELECT * FROM pc WHERE pc.c0 > 10 AND pc.c1 < 40;");
+    Vector<String> c1 = new Vector<String>();
+    String key = QueryPlanCache.normalize(q1, c1);
+    assertNull(cache.get(key, q1.toString(), c1));
+    LogicalPlan lp = p.parseQueryLogicalPlan(tid, q1);
+    lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    cache.put(key, lp);
+
+    ZQuery q2 = parse("SELECT * FROM pc WHERE pc.c0 > 30 AND pc.c1 < 20;");
+    Vector<String> c2 = new Vector<String>();
+    assertEquals(key, QueryPlanCache.normalize(q2, c2));
+    LogicalPlan bound = cache.get(key, q2.toString(), c2);
+    assertNotNull(bound);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    int expected = 0;
+    for (ArrayList<Integer> t : tuples)
+      if (t.get(0) > 30 && t.get(1) < 20)
+        expected++;
+    DbIterator it = bound.physicalPlan(tid, TableStats.getStatsMap(), false);
+    it.open();
+    int actual = 0;
+    while (it.hasNext()) {
+      it.next();
+      actual++;
+    }
+    it.close();
+    Database.getBufferPool().transactionComplete(tid);
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * The least recently used plan is evicted when the cache is full
+   */
+  @Test public void evictLeastRecentlyUsed() throws Exception {
+    QueryPlanCache cache = new QueryPlanCache(2);
+    LogicalPlan a = new LogicalPlan(), b = new LogicalPlan(), c = new LogicalPlan();
+    Vector<String> none = new Vector<String>();
+    cache.put("a", a);
+    cache.put("b", b);
+    assertNotNull(cache.get("a", "a", none));
+    cache.put("c", c);
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b", "b", none));
+    assertNotNull(cache.get("a", "a", none));
+    assertNotNull(cache.get("c", "c", none));
+  }
+
+  /**
+   * Changes to the catalog or to table statistics invalidate all plans
+   */
+  @Test public void invalidate() throws Exception {
+    QueryPlanCache cache = new QueryPlanCache(2);
+    Vector<String> none = new Vector<String>();
+    cache.put("a", new LogicalPlan());
+    assertNotNull(cache.get("a", "a", none));
+
+    TableStats.setTableStats("pc", new TableStats(f.getId(), 10));
+    assertNull(cache.get("a", "a", none));
+
+    cache.put("a", new LogicalPlan());
+    Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(1, 1, null, null), "pc2");
+    assertNull(cache.get("a", "a", none));
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Statements processed by the Parser reuse the plans of earlier
+   * statements of the same shape
+   */
+  @Test public void parserUsesCache() throws Exception {
+    QueryPlanCache cache = Parser.getPlanCache();
+    Parser p = new Parser();
+    p.processNextStatement("SELECT * FROM pc WHERE pc.c0 > 10;");
+    int hits = cache.getHits();
+    p.processNextStatement("SELECT * FROM pc WHERE pc.c0 > 20;");
+    assertEquals(hits + 1, cache.getHits());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(QueryPlanCacheTest.class);
+  }
+}
@@ -0,0 +1,208 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SnapshotReadTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 1000;
+  private HeapFile hf;
+
+  @Before public void setUp() throws Exception {
+    super.setUp();
+    BufferPool.setMvccEnabled(true);
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+  }
+
+  @After public void tearDown() {
+    BufferPool.setMvccEnabled(BufferPool.DEFAULT_MVCC);
+  }
+
+  // the number of tuples a transaction sees in the table
+  private int count(TransactionId tid) throws Exception {
+    SeqScan scan = new SeqScan(tid, hf.getId());
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      scan.next();
+      n++;
+    }
+    scan.close();
+    return n;
+  }
+
+  private Transaction insert(int n) throws Exception {
+    Transaction w = new Transaction();
+    w.start();
+    for (int i = 0; i < n; i++)
+      Database.getBufferPool().insertTuple(w.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+    return w;
+  }
+
+  /**
+   * A snapshot reader neither waits for a writer nor sees its changes, and
+   * keeps reading the same versions after the writer commits
+   */
+  @Test(timeout = 20000) public void readsSnapshot() throws Exception {
+    Transaction w = insert(10);
+    Transaction r = new Transaction(true);
+    r.start();
+    assertEquals(ROWS, count(r.getId()));
+    w.commit();
+    assertEquals(ROWS, count(r.getId()));
+    assertFalse(Database.getBufferPool().holdsLock(r.getId(), new HeapPageId(hf.getId(), 0)));
+
+    Transaction r2 = new Transaction(true);
+    r2.start();
+    assertEquals(ROWS + 10, count(r2.getId()));
+    r.commit();
+    r2.commit();
+  }
+
+  /**
+   * Deletions of a writer that aborts are never seen
+   */
+  @Test(timeout = 20000) public void abortedWriter() throws Exception {
+    Transaction w = new Transaction();
+    w.start();
+    SeqScan scan = new SeqScan(w.getId(), hf.getId());
+    scan.open();
+    for (int i = 0; i < 100 && scan.hasNext(); i++)
+      Database.getBufferPool().deleteTuple(w.getId(), scan.next());
+    scan.close();
+
+    Transaction r = new Transaction(true);
+    r.start();
+    assertEquals(ROWS, count(r.getId()));
+    w.abort();
+    r.commit();
+
+    r = new Transaction(true);
+    r.start();
+    assertEquals(ROWS, count(r.getId()));
+    r.commit();
+  }
+
+  /**
+   * A transaction reading a snapshot cannot write
+   */
+  @Test public void readOnly() throws Exception {
+    Transaction r = new Transaction(true);
+    r.start();
+    try {
+      Database.getBufferPool().getPage(r.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+      fail("snapshot transaction got a page to write");
+    } catch (DbException e) {
+      // expected
+    }
+    r.commit();
+  }
+
+  /**
+   * Old versions are kept while a snapshot may see them, and dropped when
+   * it completes
+   */
+  @Test public void garbageCollection() throws Exception {
+    BufferPool bp = Database.getBufferPool();
+    Transaction r = new Transaction(true);
+    r.start();
+    assertEquals(ROWS, count(r.getId()));
+    int pages = hf.numPages();
+    assertEquals(pages, bp.numVersions());
+
+    for (int i = 0; i < 3; i++)
+      insert(1).commit();
+    assertTrue(bp.numVersions() > pages);
+    assertEquals(ROWS, count(r.getId()));
+
+    r.commit();
+    assertEquals(0, bp.numVersions());
+    // with no snapshot running, a commit leaves no version behind
+    insert(1).commit();
+    assertEquals(0, bp.numVersions());
+  }
+
+  /**
+   * Without MVCC, read-only transactions lock pages as usual
+   */
+  @Test public void disabled() throws Exception {
+    BufferPool.setMvccEnabled(false);
+    Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+    Transaction r = new Transaction(true);
+    r.start();
+    assertEquals(ROWS, count(r.getId()));
+    assertTrue(Database.getBufferPool().holdsLock(r.getId(), new HeapPageId(hf.getId(), 0)));
+    r.commit();
+  }
+
+  /**
+   * Snapshot readers scan the table while writers commit insertions; every
+   * scan of one snapshot sees the same tuples, and readers never wait
+   */
+  @Test(timeout = 60000) public void concurrentWriters() throws Exception {
+    final int commits = 40;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    ArrayList<Thread> threads = new ArrayList<Thread>();
+    threads.add(new Thread() {
+      public void run() {
+        try {
+          for (int i = 0; i < commits; i++)
+            insert(5).commit();
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      }
+    });
+    for (int i = 0; i < 3; i++) {
+      threads.add(new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < 20; i++) {
+              Transaction r = new Transaction(true);
+              r.start();
+              int n = count(r.getId());
+              assertTrue(n >= ROWS && n <= ROWS + 5 * commits && (n - ROWS) % 5 == 0);
+              assertEquals(n, count(r.getId()));
+              r.commit();
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+
+    Transaction r = new Transaction(true);
+    r.start();
+    assertEquals(ROWS + 5 * commits, count(r.getId()));
+    r.commit();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SnapshotReadTest.class);
+  }
+}
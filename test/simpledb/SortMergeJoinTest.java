@@ -0,0 +1,180 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class SortMergeJoinTest extends SimpleDbTestBase {
+
+  int width1 = 2;
+  int width2 = 3;
+  DbIterator scan1;
+  DbIterator scan2;
+  DbIterator eqJoin;
+  DbIterator gtJoin;
+
+  /**
+   * Initialize each unit test. The inputs are deliberately unsorted and
+   * contain duplicate join keys.
+   */
+  @Before public void createTupleLists() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 7, 8,
+                    3, 4,
+                    5, 6,
+                    1, 2,
+                    3, 9 });
+    this.scan2 = TestUtil.createTupleList(width2,
+        new int[] { 4, 5, 6,
+                    2, 3, 4,
+                    5, 6, 7,
+                    3, 4, 5,
+                    1, 2, 3,
+                    3, 0, 0 });
+    this.eqJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] { 1, 2, 1, 2, 3,
+                    3, 4, 3, 4, 5,
+                    3, 4, 3, 0, 0,
+                    3, 9, 3, 4, 5,
+                    3, 9, 3, 0, 0,
+                    5, 6, 5, 6, 7 });
+    this.gtJoin = TestUtil.createTupleList(width1 + width2,
+        new int[] {
+                    3, 4, 1, 2, 3, // 1, 2 < 3
+                    3, 4, 2, 3, 4,
+                    3, 9, 1, 2, 3,
+                    3, 9, 2, 3, 4,
+                    5, 6, 1, 2, 3, // 1, 2, 3, 3, 4 < 5
+                    5, 6, 2, 3, 4,
+                    5, 6, 3, 4, 5,
+                    5, 6, 3, 0, 0,
+                    5, 6, 4, 5, 6,
+                    7, 8, 1, 2, 3, // everything < 7
+                    7, 8, 2, 3, 4,
+                    7, 8, 3, 4, 5,
+                    7, 8, 3, 0, 0,
+                    7, 8, 4, 5, 6,
+                    7, 8, 5, 6, 7 });
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getTupleDesc()
+   */
+  @Test public void getTupleDesc() {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    TupleDesc expected = Utility.getTupleDesc(width1 + width2);
+    TupleDesc actual = op.getTupleDesc();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.rewind()
+   */
+  @Test public void rewind() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    while (op.hasNext()) {
+      assertNotNull(op.next());
+    }
+    assertTrue(TestUtil.checkExhausted(op));
+    op.rewind();
+
+    assertEquals(6, count(op));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using an = predicate with
+   * duplicate keys on both sides
+   */
+  @Test public void eqJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    eqJoin.open();
+    TestUtil.matchAllTuples(eqJoin, op);
+    op.rewind();
+    assertEquals(6, count(op));
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using a &gt; predicate
+   */
+  @Test public void gtJoin() throws Exception {
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, scan1, scan2);
+    op.open();
+    gtJoin.open();
+    TestUtil.matchAllTuples(gtJoin, op);
+    op.rewind();
+    assertEquals(15, count(op));
+  }
+
+  /**
+   * Every supported operator must produce exactly the tuples a nested-loops
+   * join produces
+   */
+  @Test public void rangeJoins() throws Exception {
+    Predicate.Op[] ops = { Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+        Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ, Predicate.Op.EQUALS };
+    for (Predicate.Op o : ops) {
+      createTupleLists();
+      JoinPredicate pred = new JoinPredicate(0, o, 0);
+      Join expected = new Join(pred, scan1, scan2);
+      expected.open();
+      int expectedCount = count(expected);
+
+      createTupleLists();
+      SortMergeJoin actual = new SortMergeJoin(pred, scan1, scan2);
+      actual.open();
+      assertEquals("count for " + o, expectedCount, count(actual));
+      TestUtil.matchAllTuples(expected, actual);
+    }
+  }
+
+  /**
+   * Inputs that are already sorted on the join field are not sorted again,
+   * and the output of a sort-merge join is sorted on its outer join field
+   */
+  @Test public void interestingOrder() throws Exception {
+    OrderBy sorted1 = new OrderBy(0, true, scan1);
+    OrderBy sorted2 = new OrderBy(0, true, scan2);
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SortMergeJoin op = new SortMergeJoin(pred, sorted1, sorted2);
+    assertSame(sorted1, op.getChildren()[0]);
+    assertSame(sorted2, op.getChildren()[1]);
+
+    assertTrue(SortMergeJoin.isSortedOn(op, 0));
+    assertTrue(SortMergeJoin.isSortedOn(new OrderBy(1, true, scan1), 1));
+    assertTrue(!SortMergeJoin.isSortedOn(new OrderBy(1, false, scan1), 1));
+    assertTrue(!SortMergeJoin.isSortedOn(scan1, 0));
+
+    SortMergeJoin unsorted = new SortMergeJoin(pred, scan1, scan2);
+    assertTrue(unsorted.getChildren()[0] instanceof OrderBy);
+  }
+
+  private static int count(DbIterator it) throws Exception {
+    it.rewind();
+    int n = 0;
+    while (it.hasNext()) {
+      it.next();
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(SortMergeJoinTest.class);
+  }
+}
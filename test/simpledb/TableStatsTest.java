@@ -1,13 +1,18 @@
 package simpledb;
 
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
 
 public class TableStatsTest extends SimpleDbTestBase {
 	public static final int IO_COST = 71;
@@ -26,6 +31,14 @@ public class TableStatsTest extends SimpleDbTestBase {
 		Database.getCatalog().addTable(f, tableName);
 		this.tableId = Database.getCatalog().getTableId(tableName);		
 	}
+
+	@After public void resetSampling() {
+		TableStats.setSampleSize(TableStats.DEFAULT_SAMPLE_SIZE);
+		TableStats.setSamplePages(TableStats.DEFAULT_SAMPLE_PAGES);
+		TableStats.setRefreshFraction(TableStats.DEFAULT_REFRESH_FRACTION);
+		TableStats.setStatsFile(null);
+		TableStats.setSampleSeed(null);
+	}
 	
 	private double[] getRandomTableScanCosts(int[] pageNums, int[] ioCosts) throws IOException, DbException, TransactionAbortedException {
 		double[] ret = new double[ioCosts.length];
@@ -150,4 +163,216 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Histograms built from a reservoir sample still give reasonable
+	 * selectivities, and the tuple count of a full scan stays exact
+	 */
+	@Test public void reservoirSampleTest() throws IOException {
+		// fixed data and a fixed seed, so that the sample is the same on
+		// every run
+		Random rand = new Random(0);
+		ArrayList<ArrayList<Integer>> fixed = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 10200; i++) {
+			ArrayList<Integer> t = new ArrayList<Integer>();
+			for (int col = 0; col < 10; col++)
+				t.add(rand.nextInt(32));
+			fixed.add(t);
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(fixed, 10, "c");
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats.setSampleSeed(1L);
+		TableStats.setSampleSize(1000);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(10200, s.totalTuples());
+		for (int col = 0; col < 10; col++) {
+			Assert.assertEquals(0.5, s.estimateSelectivity(col, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+			Assert.assertEquals(1.0/32.0, s.estimateSelectivity(col, Predicate.Op.EQUALS, new IntField(16)), 0.02);
+		}
+	}
+
+	/**
+	 * Large heap files are block-sampled, and their tuple count is
+	 * extrapolated from the sampled pages
+	 */
+	@Test public void blockSampleTest() throws IOException, DbException, TransactionAbortedException {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992*40, 32, null, tuples);
+		Assert.assertEquals(40, hf.numPages());
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats.setSamplePages(8);
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+		Assert.assertEquals(992*40, s.totalTuples());
+		Assert.assertEquals(40.0 * IO_COST, s.estimateScanCost(), 0.001);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+	}
+
+	/**
+	 * Saved statistics are loaded lazily, and only for tables that still
+	 * match them
+	 */
+	@Test public void persistTest() throws IOException, DbException, TransactionAbortedException {
+		File file = File.createTempFile("stats", ".dat");
+		file.deleteOnExit();
+		file.delete();
+		TableStats.setStatsFile(file);
+		HeapFile other = SystemTestUtil.createRandomHeapFile(1, 10, null, null);
+		Database.getCatalog().addTable(other, "statsOther");
+		TableStats.setTableStats(tableName, new TableStats(tableId, IO_COST));
+		TableStats.setTableStats("statsOther", new TableStats(other.getId(), IO_COST));
+		TableStats.saveStatistics();
+		Assert.assertTrue(file.exists());
+
+		// a new table by that name replaces the analyzed one
+		Database.getCatalog().addTable(SystemTestUtil.createRandomHeapFile(1, 10, null, null), "statsOther");
+		TableStats.clearStatistics();
+		TableStats.setStatsFile(file);
+		Assert.assertNull(TableStats.getStatsMap().get("statsOther"));
+		TableStats s = TableStats.getTableStats(tableName);
+		Assert.assertNotNull(s);
+		Assert.assertEquals(10200, s.totalTuples());
+		Assert.assertEquals(1.0/32.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(16)), 0.015);
+	}
+
+	/**
+	 * Statistics are recomputed in the background once enough tuples have
+	 * been inserted into a table
+	 */
+	@Test public void refreshTest() throws Exception {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 200, null, null);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats.setRefreshFraction(0.5);
+		TableStats old = new TableStats(hf.getId(), IO_COST);
+		TableStats.setTableStats(name, old);
+
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < TableStats.MIN_REFRESH_MODIFICATIONS - 1; i++)
+			Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+		Assert.assertEquals(TableStats.MIN_REFRESH_MODIFICATIONS - 1, TableStats.getModifications(hf.getId()));
+		Assert.assertSame(old, TableStats.getTableStats(name));
+
+		Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(0, 2));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getTableStats(name) == old && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Database.getBufferPool().transactionComplete(tid);
+		Assert.assertEquals(200 + TableStats.MIN_REFRESH_MODIFICATIONS, TableStats.getTableStats(name).totalTuples());
+		Assert.assertEquals(0, TableStats.getModifications(hf.getId()));
+	}
+
+	// true once the refresher thread waits for a lock
+	private static boolean refresherWaiting() {
+		for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+			if (!e.getKey().getName().equals("TableStats refresher") || e.getKey().getState() != Thread.State.WAITING)
+				continue;
+			for (StackTraceElement frame : e.getValue())
+				if (frame.getClassName().equals(LockManager.class.getName()))
+					return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A background refresh of a B+ tree's statistics that is chosen as the
+	 * victim of a deadlock releases its locks and keeps the old statistics
+	 */
+	@Test(timeout = 30000) public void refreshDeadlockTest() throws Exception {
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10, null, null, 0);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(bf, name);
+		TableStats old = new TableStats(bf.getId(), IO_COST);
+		TableStats.setTableStats(name, old);
+
+		// the refresh blocks on the leaf this transaction changes, holding a
+		// shared lock on the root pointer that the transaction then upgrades
+		Transaction t = new Transaction();
+		t.start();
+		for (int i = 0; i < TableStats.MIN_REFRESH_MODIFICATIONS; i++)
+			Database.getBufferPool().insertTuple(t.getId(), bf.getId(), Utility.getHeapTuple(i, 2));
+		BTreePageId rootPtr = BTreeRootPtrPage.getId(bf.getId());
+		while (!refresherWaiting())
+			Thread.sleep(10);
+		Database.getBufferPool().getPage(t.getId(), rootPtr, Permissions.READ_WRITE);
+		t.commit();
+
+		long deadline = System.currentTimeMillis() + 10000;
+		while (TableStats.getModifications(bf.getId()) != 0 && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		Assert.assertSame(old, TableStats.getTableStats(name));
+		Assert.assertEquals(0, TableStats.getModifications(bf.getId()));
+	}
+
+	/**
+	 * Heap files spanning several page ranges are sampled in parallel, and
+	 * the merged sample covers all of them; computeStatistics analyzes every
+	 * table in the catalog
+	 */
+	@Test public void partitionedTest() throws IOException, DbException, TransactionAbortedException {
+		int pages = 3 * TableStats.PARTITION_PAGES + 1;
+		ArrayList<ArrayList<Integer>> big = new ArrayList<ArrayList<Integer>>();
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992*pages, 32, null, big);
+		String name = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, name);
+		TableStats.setSampleSize(5000);
+		TableStats.computeStatistics();
+
+		TableStats s = TableStats.getTableStats(name);
+		Assert.assertEquals(992*pages, s.totalTuples());
+		int below = 0;
+		for (ArrayList<Integer> t : big)
+			if (t.get(0) < 16)
+				below++;
+		Assert.assertEquals((double) below / big.size(), s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)), 0.05);
+		Assert.assertEquals(10200, TableStats.getTableStats(tableName).totalTuples());
+	}
+
+	/**
+	 * On a skewed column the most common value is estimated from its own
+	 * frequency and the other values from the number of distinct values,
+	 * and range estimates follow the equi-depth histogram
+	 */
+	@Test public void skewedTest() throws IOException {
+		ArrayList<ArrayList<Integer>> skewed = new ArrayList<ArrayList<Integer>>();
+		for (int i = 0; i < 10000; i++) {
+			ArrayList<Integer> t = new ArrayList<Integer>();
+			t.add(i < 5000 ? 7 : i);
+			skewed.add(t);
+		}
+		HeapFile hf = JoinOptimizerTest.createDuplicateHeapFile(skewed, 1, "c");
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+
+		Assert.assertEquals(5001, s.getNumDistinct(0), 5001 * 0.05);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(7)), 0.01);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.NOT_EQUALS, new IntField(7)), 0.01);
+		Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(6000)) < 0.001);
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(10000)), 0.0);
+		Assert.assertEquals(0.75, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(7500)), 0.02);
+		Assert.assertEquals(0.25, s.avgSelectivity(0, Predicate.Op.EQUALS), 0.01);
+	}
+
+	/**
+	 * Equality on strings that share a long prefix is estimated from the
+	 * distinct values, not from the prefix
+	 */
+	@Test public void stringEqualityTest() throws IOException {
+		File csv = File.createTempFile("strings", ".txt");
+		csv.deleteOnExit();
+		PrintWriter out = new PrintWriter(csv);
+		for (int i = 0; i < 2000; i++)
+			out.println(i + ",prefix" + (i % 50));
+		out.close();
+		File dat = File.createTempFile("strings", ".dat");
+		dat.deleteOnExit();
+		Type[] types = new Type[] { Type.INT_TYPE, Type.STRING_TYPE };
+		HeapFileEncoder.convert(csv, dat, BufferPool.getPageSize(), 2, types);
+		HeapFile hf = new HeapFile(dat, new TupleDesc(types, new String[] { "id", "name" }));
+		Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+		TableStats s = new TableStats(hf.getId(), IO_COST);
+
+		Assert.assertEquals(50, s.getNumDistinct(1), 2);
+		Assert.assertEquals(2000, s.getNumDistinct(0), 2000 * 0.05);
+		Assert.assertEquals(0.02, s.estimateSelectivity(1, Predicate.Op.EQUALS, new StringField("prefix7", Type.STRING_LEN)), 0.002);
+		Assert.assertEquals(0.98, s.estimateSelectivity(1, Predicate.Op.NOT_EQUALS, new StringField("prefix7", Type.STRING_LEN)), 0.002);
+	}
 }